@@ -0,0 +1,55 @@
+/* class AccumulationBuffer
+ * Running sum of the samples traced through each pixel, for rendering
+ * an image in passes.  Each pixel is only ever added to by the thread
+ * rendering its tile, so no locking is needed.
+ */
+import javax.vecmath.*;
+
+class AccumulationBuffer
+{
+    int width, height;
+
+    // Sum of the sample colors (3 values per pixel, row by row)
+    float[] sums;
+
+    // Number of samples in each sum
+    int passes = 0;
+
+    //------------------------------------------------------------------------
+
+    public AccumulationBuffer(int newWidth, int newHeight)
+    {
+        width  = newWidth;
+        height = newHeight;
+        sums   = new float[width * height * 3];
+    }
+
+    /** add a sample color to pixel (i,j) */
+    public void add(int i, int j, Vector3d c)
+    {
+        int n = 3 * (j * width + i);
+
+        sums[n]   += (float)c.x;
+        sums[n+1] += (float)c.y;
+        sums[n+2] += (float)c.z;
+    }
+
+    /** count a finished pass (one sample added to every pixel) */
+    public void endPass() { passes++; }
+
+    public int getPasses() { return passes; }
+
+    /** set every pixel of an image to the average of its samples so far */
+    public void resolve(RGBImage image)
+    {
+        Vector3d c = new Vector3d();
+        double scale = passes > 0 ? 1.0 / passes : 0.0;
+
+        for (int j = 0, n = 0; j < height; j++) {
+            for (int i = 0; i < width; i++, n += 3) {
+                c.set(sums[n] * scale, sums[n+1] * scale, sums[n+2] * scale);
+                image.setPixel(i, j, c);
+            }
+        }
+    }
+}
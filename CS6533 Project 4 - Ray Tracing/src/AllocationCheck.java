@@ -0,0 +1,76 @@
+/* class AllocationCheck
+ * Checks that tracing rays does not allocate: renders the reference
+ * scenes (once to warm up, then once measured) and fails if any of them
+ * allocates more than a fixed number of bytes per ray, as counted by
+ * the virtual machine for the rendering threads.
+ *
+ *   java AllocationCheck [maxBytesPerRay] [scene ...]
+ *
+ * Exits with status 1 if a scene is over the bound, 2 if the bytes could
+ * not be counted.
+ */
+import java.util.*;
+
+class AllocationCheck
+{
+    // Bytes allocated per ray allowed: what is left is per tile (the
+    // task that renders it), well under a byte per ray, while a single
+    // vector allocated for each ray would be 40
+    static final double MAX_BYTES_PER_RAY = 1;
+
+    static final String[] scenes = {
+        "easy", "hard", "hardchecker", "easytex", "custom2", "custom3"
+    };
+
+    static final int SIZE = 128;
+
+    public static void main(String arguments[])
+    {
+        double bound = MAX_BYTES_PER_RAY;
+        Vector<String> names = new Vector<String>();
+        for (int i = 0; i < arguments.length; i++) {
+            if (i == 0 && Character.isDigit(arguments[i].charAt(0)))
+              bound = Double.parseDouble(arguments[i]);
+            else
+              names.addElement(arguments[i]);
+        }
+        if (names.isEmpty())
+          names.addAll(Arrays.asList(scenes));
+
+        Trace.verbose = false;
+        boolean failed = false;
+        try {
+            System.out.printf("scene            rays   bytes/ray  (at most %.2f)%n",
+                              bound);
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.elementAt(i);
+                TraceOptions options = new TraceOptions(new String[] {
+                    name, "-threads", "1", "-nocache", "-quiet" });
+                Scene scene = options.readScene(name, null);
+
+                // (The first render loads the textures, and compiles the
+                // code that traces the rays)
+                scene.render(SIZE, SIZE, false);
+                scene.render(SIZE, SIZE, false);
+
+                double bytes = scene.getBytesPerRay();
+                if (bytes < 0) {
+                    System.err.println("Allocated bytes cannot be counted " +
+                                       "by this virtual machine");
+                    System.exit(2);
+                }
+
+                boolean over = bytes > bound;
+                System.out.printf("%-12s %8d %11.2f  %s%n", name,
+                                  scene.stats.rays, bytes,
+                                  over ? "FAILED" : "ok");
+                failed |= over;
+            }
+        } catch (Exception e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+}
@@ -0,0 +1,57 @@
+/* class Animation
+ * The transformation of an object that moves from frame to frame: the
+ * product of the fixed matrices and keyframed transformations that were
+ * on the matrix stack when it was placed, in the order they were given.
+ * Animations are not changed once made (the matrix stack makes a new one
+ * for each transformation), so objects can share them.
+ */
+import java.util.*;
+import javax.vecmath.*;
+
+class Animation
+{
+    // M = matrices[0] * keys[0] * matrices[1] * keys[1] * ... * matrices[n]
+    // (one more matrix than keyframed transformations)
+    Vector<Matrix4d>  matrices = new Vector<Matrix4d>();
+    Vector<Keyframes> keys     = new Vector<Keyframes>();
+
+    //------------------------------------------------------------------------
+
+    /** an animation that goes on from before (the identity if null): the
+     *  fixed matrix m, then the keyframed transformation k (if not null)
+     */
+    public Animation(Animation before, Matrix4d m, Keyframes k)
+    {
+        if (before == null) {
+            Matrix4d identity = new Matrix4d();
+            identity.setIdentity();
+            matrices.addElement(identity);
+        } else {
+            for (int i = 0; i < before.matrices.size(); i++)
+              matrices.addElement(new Matrix4d(before.matrices.elementAt(i)));
+            keys.addAll(before.keys);
+        }
+
+        matrices.lastElement().mul(m);
+
+        if (k != null) {
+            Matrix4d identity = new Matrix4d();
+            identity.setIdentity();
+            keys.addElement(k);
+            matrices.addElement(identity);
+        }
+    }
+
+    /** set m to the transformation at a frame */
+    public void getMatrix(double frame, Matrix4d m)
+    {
+        Matrix4d key = new Matrix4d();
+
+        m.set(matrices.firstElement());
+        for (int i = 0; i < keys.size(); i++) {
+            keys.elementAt(i).getMatrix(frame, key);
+            m.mul(key);
+            m.mul(matrices.elementAt(i + 1));
+        }
+    }
+}
@@ -0,0 +1,681 @@
+/* class BVH
+ * Bounding volume hierarchy over a set of primitives (anything that has
+ * a bounding box).  Used to find the few primitives a ray can possibly
+ * hit, instead of testing every one of them.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.vecmath.*;
+
+class BVH
+{
+    // Maximum number of primitives stored in a leaf
+    static int leafSize = 4;
+
+    // Node storage (flat arrays, nodes in depth-first order):
+    //   - node n has bounds nodeBounds[6n .. 6n+5] (min x,y,z, max x,y,z)
+    //   - an interior node has its first child at n+1 and its second child
+    //     at nodeOffset[n], and was split along nodeAxis[n]
+    //   - a leaf holds the nodeCount[n] > 0 primitives that start at
+    //     primitives[nodeOffset[n]]
+    double[] nodeBounds;
+    int[]    nodeOffset;
+    int[]    nodeCount;
+    byte[]   nodeAxis;
+    int      nodes    = 0;
+    int      maxDepth = 0;
+
+    // Primitive indices, in leaf order
+    int[] primitives;
+
+    /** Called for each primitive in a leaf reached by a ray */
+    interface Visitor
+    {
+        /** test primitive number 'primitive' against the ray (hits
+         *  beyond tMax are not needed), and return the new tMax; a
+         *  negative value stops the traversal
+         */
+        double visit(int primitive, double tMax);
+    }
+
+    //------------------------------------------------------------------------
+
+    /** build a hierarchy over primitives with the given bounds */
+    public BVH(BoundingBox[] bounds)
+    {
+        this(bounds, null);
+    }
+
+    /** build a hierarchy over primitives with the given bounds, splitting
+     *  large subtrees across the pool (sequentially if pool is null)
+     */
+    public BVH(BoundingBox[] bounds, ForkJoinPool pool)
+    {
+        int n = bounds.length;
+
+        primitives = new int[n];
+        double[] centers = new double[3*n];
+        for (int i = 0; i < n; i++) {
+            primitives[i] = i;
+            centers[3*i]   = bounds[i].getCenter(0);
+            centers[3*i+1] = bounds[i].getCenter(1);
+            centers[3*i+2] = bounds[i].getCenter(2);
+        }
+
+        allocate(Math.max(1, 2*n));
+
+        if (n > 0) {
+            BuildTask task = new BuildTask(bounds, centers, 0, n);
+            BuildNode root = pool != null ? pool.invoke(task) : task.compute();
+            flatten(root, 1);
+        }
+    }
+
+    /** empty hierarchy (for reading from a file) */
+    private BVH()
+    {
+    }
+
+    private void allocate(int capacity)
+    {
+        nodeBounds = new double[6*capacity];
+        nodeOffset = new int[capacity];
+        nodeCount  = new int[capacity];
+        nodeAxis   = new byte[capacity];
+    }
+
+    //------------------------------------------------------------------------
+    // Construction using the surface area heuristic (SAH)
+
+    // Number of bins the centers are sorted into when looking for a split
+    static int sahBins = 16;
+
+    // Cost of visiting a node, relative to the cost of testing a primitive
+    static double traversalCost = 0.5;
+
+    // Subtrees with more primitives than this are built in parallel
+    static int parallelThreshold = 1024;
+
+    /** node of the tree while it is being built */
+    private static class BuildNode
+    {
+        BoundingBox box = new BoundingBox();
+        int first, count, axis;
+        BuildNode left, right;
+    }
+
+    /** builds the subtree over primitives[first .. last-1] (tasks work on
+     *  disjoint ranges of primitives, so they can run in parallel)
+     */
+    private class BuildTask extends RecursiveTask<BuildNode>
+    {
+        private static final long serialVersionUID = 1L;
+
+        BoundingBox[] bounds;
+        double[] centers;
+        int first, last;
+
+        BuildTask(BoundingBox[] newBounds, double[] newCenters,
+                  int newFirst, int newLast)
+        {
+            bounds = newBounds;
+            centers = newCenters;
+            first = newFirst;
+            last = newLast;
+        }
+
+        protected BuildNode compute()
+        {
+            BuildNode node = new BuildNode();
+            node.first = first;
+            node.count = last - first;
+
+            // Bounds of the primitives, and of their centers
+            BoundingBox centerBox = new BoundingBox();
+            for (int i = first; i < last; i++) {
+                int p = primitives[i];
+                node.box.extend(bounds[p]);
+                centerBox.extend(centers[3*p], centers[3*p+1], centers[3*p+2]);
+            }
+
+            if (node.count <= 1)
+              return node;
+
+            int middle = splitSAH(node, centerBox);
+            if (middle < 0) {
+                // A leaf is cheaper than any split
+                if (node.count <= leafSize)
+                  return node;
+
+                // Too big for a leaf, but the centers could not be
+                // separated by the bins: split at the median instead
+                node.axis = centerBox.getLongestAxis();
+                middle = (first + last) / 2;
+                select(centers, node.axis, first, last - 1, middle);
+            }
+
+            BuildTask leftTask  = new BuildTask(bounds, centers, first, middle);
+            BuildTask rightTask = new BuildTask(bounds, centers, middle, last);
+            if (node.count > parallelThreshold && inForkJoinPool()) {
+                leftTask.fork();
+                node.right = rightTask.compute();
+                node.left  = leftTask.join();
+            } else {
+                node.left  = leftTask.compute();
+                node.right = rightTask.compute();
+            }
+
+            return node;
+        }
+
+        /** find the cheapest split of the node's primitives between
+         *  sahBins bins along each axis, and partition the primitives
+         *  there; returns the start of the second half, or -1 if a leaf
+         *  is cheaper
+         */
+        private int splitSAH(BuildNode node, BoundingBox centerBox)
+        {
+            int bestAxis = -1, bestBin = 0;
+            double bestCost = Double.MAX_VALUE;
+
+            int[] binCount = new int[sahBins];
+            BoundingBox[] binBox = new BoundingBox[sahBins];
+            BoundingBox[] rightBox = new BoundingBox[sahBins];
+            for (int b = 0; b < sahBins; b++) {
+                binBox[b] = new BoundingBox();
+                rightBox[b] = new BoundingBox();
+            }
+
+            for (int axis = 0; axis < 3; axis++) {
+                double lo = axis == 0 ? centerBox.getMin().x :
+                            axis == 1 ? centerBox.getMin().y :
+                                        centerBox.getMin().z;
+                double hi = axis == 0 ? centerBox.getMax().x :
+                            axis == 1 ? centerBox.getMax().y :
+                                        centerBox.getMax().z;
+                if (hi <= lo)
+                  continue;
+
+                for (int b = 0; b < sahBins; b++) {
+                    binCount[b] = 0;
+                    binBox[b].clear();
+                }
+                for (int i = first; i < last; i++) {
+                    int p = primitives[i];
+                    int b = bin(centers[3*p + axis], lo, hi);
+                    binCount[b]++;
+                    binBox[b].extend(bounds[p]);
+                }
+
+                // Sweep from the right to get the bounds right of each plane
+                rightBox[sahBins-1].clear();
+                rightBox[sahBins-1].extend(binBox[sahBins-1]);
+                for (int b = sahBins - 2; b > 0; b--) {
+                    rightBox[b].clear();
+                    rightBox[b].extend(rightBox[b+1]);
+                    rightBox[b].extend(binBox[b]);
+                }
+
+                // Sweep from the left, evaluating the plane before bin b
+                BoundingBox leftBox = new BoundingBox();
+                int leftCount = 0;
+                for (int b = 1; b < sahBins; b++) {
+                    leftBox.extend(binBox[b-1]);
+                    leftCount += binCount[b-1];
+                    int rightCount = node.count - leftCount;
+                    if (leftCount == 0 || rightCount == 0)
+                      continue;
+
+                    double cost = leftCount * surfaceArea(leftBox) +
+                        rightCount * surfaceArea(rightBox[b]);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin  = b;
+                    }
+                }
+            }
+
+            // Small nodes become leaves unless splitting them is cheaper
+            // (costs are relative to the area of the node)
+            double area = surfaceArea(node.box);
+            if (bestAxis < 0 ||
+                (node.count <= leafSize &&
+                 traversalCost * area + bestCost >= node.count * area))
+              return -1;
+
+            // Partition the primitives at the chosen plane
+            node.axis = bestAxis;
+            double lo = bestAxis == 0 ? centerBox.getMin().x :
+                        bestAxis == 1 ? centerBox.getMin().y :
+                                        centerBox.getMin().z;
+            double hi = bestAxis == 0 ? centerBox.getMax().x :
+                        bestAxis == 1 ? centerBox.getMax().y :
+                                        centerBox.getMax().z;
+            int i = first, j = last - 1;
+            while (i <= j) {
+                if (bin(centers[3*primitives[i] + bestAxis], lo, hi) < bestBin) {
+                    i++;
+                } else {
+                    int tmp = primitives[i];
+                    primitives[i] = primitives[j];
+                    primitives[j--] = tmp;
+                }
+            }
+
+            return i;
+        }
+
+        private int bin(double center, double lo, double hi)
+        {
+            int b = (int)(sahBins * (center - lo) / (hi - lo));
+            return b < 0 ? 0 : (b >= sahBins ? sahBins - 1 : b);
+        }
+    }
+
+    /** surface area of a box (0 if it is empty) */
+    private static double surfaceArea(BoundingBox box)
+    {
+        if (box.isEmpty())
+          return 0;
+
+        double dx = box.getMax().x - box.getMin().x;
+        double dy = box.getMax().y - box.getMin().y;
+        double dz = box.getMax().z - box.getMin().z;
+
+        return 2 * (dx*dy + dy*dz + dz*dx);
+    }
+
+    /** store the built tree in the flat node arrays (depth-first) */
+    private int flatten(BuildNode b, int depth)
+    {
+        int node = nodes++;
+        maxDepth = Math.max(maxDepth, depth);
+        setNodeBounds(node, b.box);
+
+        if (b.left == null) {
+            nodeOffset[node] = b.first;
+            nodeCount[node]  = b.count;
+        } else {
+            nodeAxis[node]  = (byte)b.axis;
+            nodeCount[node] = 0;
+            flatten(b.left, depth + 1);
+            nodeOffset[node] = flatten(b.right, depth + 1);
+        }
+
+        return node;
+    }
+
+    /** partially sort primitives[lo .. hi] by center along axis, so that
+     *  the k-th element is in place (quickselect)
+     */
+    private void select(double[] centers, int axis, int lo, int hi, int k)
+    {
+        while (lo < hi) {
+            double pivot = centers[3*primitives[(lo + hi) >>> 1] + axis];
+            int i = lo, j = hi;
+
+            while (i <= j) {
+                while (centers[3*primitives[i] + axis] < pivot) i++;
+                while (centers[3*primitives[j] + axis] > pivot) j--;
+                if (i <= j) {
+                    int tmp = primitives[i];
+                    primitives[i++] = primitives[j];
+                    primitives[j--] = tmp;
+                }
+            }
+
+            if (k <= j)
+              hi = j;
+            else if (k >= i)
+              lo = i;
+            else
+              return;
+        }
+    }
+
+    private void setNodeBounds(int node, BoundingBox box)
+    {
+        nodeBounds[6*node]   = box.getMin().x;
+        nodeBounds[6*node+1] = box.getMin().y;
+        nodeBounds[6*node+2] = box.getMin().z;
+        nodeBounds[6*node+3] = box.getMax().x;
+        nodeBounds[6*node+4] = box.getMax().y;
+        nodeBounds[6*node+5] = box.getMax().z;
+    }
+
+    /** recompute the node bounds bottom-up from the primitive bounds,
+     *  keeping the tree structure
+     */
+    public void refit(BoundingBox[] bounds)
+    {
+        refit(bounds, null);
+    }
+
+    /** recompute the bounds of the nodes over the primitives that moved
+     *  (those p with moved[p] true; all of them if moved is null), bottom
+     *  up from the primitive bounds; the other nodes keep their bounds
+     */
+    public void refit(BoundingBox[] bounds, boolean[] moved)
+    {
+        BoundingBox box = new BoundingBox();
+        boolean[] changed = new boolean[nodes];
+
+        // Children are always stored after their parent
+        for (int node = nodes - 1; node >= 0; node--) {
+            if (nodeCount[node] > 0) {
+                int end = nodeOffset[node] + nodeCount[node];
+                for (int i = nodeOffset[node]; i < end; i++)
+                  changed[node] |= moved == null || moved[primitives[i]];
+            } else {
+                changed[node] = changed[node + 1] || changed[nodeOffset[node]];
+            }
+            if (!changed[node])
+              continue;
+
+            box.clear();
+            if (nodeCount[node] > 0) {
+                int end = nodeOffset[node] + nodeCount[node];
+                for (int i = nodeOffset[node]; i < end; i++)
+                  box.extend(bounds[primitives[i]]);
+            } else {
+                extendByNode(box, node + 1);
+                extendByNode(box, nodeOffset[node]);
+            }
+            setNodeBounds(node, box);
+        }
+    }
+
+    private void extendByNode(BoundingBox box, int node)
+    {
+        box.extend(nodeBounds[6*node],   nodeBounds[6*node+1],
+                   nodeBounds[6*node+2]);
+        box.extend(nodeBounds[6*node+3], nodeBounds[6*node+4],
+                   nodeBounds[6*node+5]);
+    }
+
+    //------------------------------------------------------------------------
+    // Cache file
+    //
+    // Only the tree structure is stored (the bounds are recomputed with
+    // refit() when it is read back):
+    //   "BVH1", key length, key, primitive count, node count, max depth,
+    //   primitives[], then offset, count and axis of each node
+
+    /** write the tree structure to a file, tagged with a key (such as a
+     *  hash of the scene file) that identifies what it was built from
+     */
+    public void write(String fileName, byte[] key)
+        throws IOException
+    {
+        // Written to a file of its own, then moved in place, so that
+        // another render reading (or writing) the same cache never sees
+        // a partial file
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(),
+                                         target.getFileName().toString(), ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)));
+
+            try {
+                out.writeBytes("BVH1");
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(primitives.length);
+                out.writeInt(nodes);
+                out.writeInt(maxDepth);
+                for (int i = 0; i < primitives.length; i++)
+                  out.writeInt(primitives[i]);
+                for (int i = 0; i < nodes; i++) {
+                    out.writeInt(nodeOffset[i]);
+                    out.writeInt(nodeCount[i]);
+                    out.writeByte(nodeAxis[i]);
+                }
+            } finally {
+                out.close();
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** read a tree written by write() for the given primitives; returns
+     *  null if the file is missing, was written for a different key or
+     *  number of primitives, or does not hold a valid tree (such as a
+     *  truncated or corrupt file)
+     */
+    public static BVH read(String fileName, byte[] key, BoundingBox[] bounds)
+        throws IOException
+    {
+        File file = new File(fileName);
+        if (!file.canRead())
+          return null;
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!new String(magic, "US-ASCII").equals("BVH1"))
+              return null;
+
+            if (in.readInt() != key.length)
+              return null;
+            byte[] fileKey = new byte[key.length];
+            in.readFully(fileKey);
+            if (!Arrays.equals(fileKey, key) || in.readInt() != bounds.length)
+              return null;
+
+            BVH tree = new BVH();
+            tree.nodes = in.readInt();
+            tree.maxDepth = in.readInt();
+
+            // The counts must fit the primitives (a binary tree over n
+            // primitives has at most 2n - 1 nodes), and the file must
+            // hold exactly that many of them
+            int n = bounds.length;
+            if (tree.nodes < 0 || tree.nodes > Math.max(0, 2*n - 1) ||
+                (tree.nodes == 0) != (n == 0) ||
+                tree.maxDepth < 0 || tree.maxDepth > tree.nodes)
+              return null;
+            long size = 4 + 4 + key.length + 3*4 + 4L*n + 9L*tree.nodes;
+            if (file.length() != size)
+              return null;
+
+            tree.primitives = new int[n];
+            tree.allocate(Math.max(1, tree.nodes));
+
+            for (int i = 0; i < n; i++)
+              tree.primitives[i] = in.readInt();
+            for (int i = 0; i < tree.nodes; i++) {
+                tree.nodeOffset[i] = in.readInt();
+                tree.nodeCount[i]  = in.readInt();
+                tree.nodeAxis[i]   = in.readByte();
+            }
+
+            if (!tree.isValid())
+              return null;
+
+            tree.refit(bounds);
+            return tree;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** true if the tree read from a file is laid out as flatten() lays
+     *  it out: every primitive in exactly one leaf, the nodes in depth-
+     *  first order (so that the leaves hold consecutive primitives), and
+     *  no deeper than maxDepth
+     */
+    private boolean isValid()
+    {
+        int n = primitives.length;
+
+        boolean[] used = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int p = primitives[i];
+            if (p < 0 || p >= n || used[p])
+              return false;
+            used[p] = true;
+        }
+
+        // Walk the tree, checking that each node is the next one in order
+        int[] stack = new int[maxDepth + 1];
+        int[] depths = new int[maxDepth + 1];
+        int top = 0, node = 0, depth = 1, covered = 0;
+
+        for (int next = 0; next < nodes; next++) {
+            if (node != next || depth > maxDepth)
+              return false;
+
+            if (nodeCount[node] > 0) {
+                // a leaf: the primitives after those of the leaves before
+                if (nodeOffset[node] != covered ||
+                    nodeCount[node] > n - covered)
+                  return false;
+                covered += nodeCount[node];
+
+                if (top == 0) {
+                    node = -1;
+                } else {
+                    top--;
+                    node = stack[top];
+                    depth = depths[top];
+                }
+            } else if (nodeCount[node] == 0) {
+                // an interior node: its first child is next, its second
+                // one after the subtree of the first
+                if (nodeAxis[node] < 0 || nodeAxis[node] > 2 ||
+                    top == stack.length)
+                  return false;
+                stack[top] = nodeOffset[node];
+                depths[top] = depth + 1;
+                top++;
+                node++;
+                depth++;
+            } else {
+                return false;
+            }
+        }
+
+        return (nodes == 0 || node == -1) && covered == n;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** visit the primitives whose leaves are hit by ray r in [0, tMax],
+     *  nearest subtree first; returns the final tMax
+     */
+    public double traverse(Ray r, double tMax, Visitor visitor)
+    {
+        return traverse(r, tMax, visitor, newStack());
+    }
+
+    /** traversal stack large enough for this hierarchy (it can be reused
+     *  for any number of traversals, one at a time)
+     */
+    public int[] newStack()
+    {
+        return new int[maxDepth + 1];
+    }
+
+    /** same as traverse() above, with a stack from newStack() */
+    public double traverse(Ray r, double tMax, Visitor visitor, int[] stack)
+    {
+        if (nodes == 0)
+          return tMax;
+
+        Point3d  o = r.getPoint();
+        Vector3d d = r.getDirection();
+        double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+
+        int top = 0, node = 0;
+
+        while (true) {
+            if (hitNode(node, o, ix, iy, iz, tMax)) {
+                if (nodeCount[node] > 0) {
+                    int end = nodeOffset[node] + nodeCount[node];
+                    for (int i = nodeOffset[node]; i < end; i++) {
+                        tMax = visitor.visit(primitives[i], tMax);
+                        if (tMax < 0)
+                          return tMax;
+                    }
+                } else {
+                    // Descend into the nearer child first
+                    int near = node + 1, far = nodeOffset[node];
+                    int axis = nodeAxis[node];
+                    if ((axis == 0 ? d.x : axis == 1 ? d.y : d.z) < 0) {
+                        near = far;
+                        far  = node + 1;
+                    }
+                    stack[top++] = far;
+                    node = near;
+                    continue;
+                }
+            }
+
+            if (top == 0)
+              return tMax;
+            node = stack[--top];
+        }
+    }
+
+    /** slab test of node bounds against the ray segment [0, tMax]
+     *  (comparisons are written so NaNs from 0 * infinity are ignored)
+     */
+    private boolean hitNode(int node, Point3d o,
+                            double ix, double iy, double iz, double tMax)
+    {
+        int b = 6*node;
+        double tNear = 0.0, tFar = tMax, t0, t1;
+
+        t0 = (nodeBounds[b]   - o.x) * ix;
+        t1 = (nodeBounds[b+3] - o.x) * ix;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tNear) tNear = t0;
+        if (t1 < tFar)  tFar  = t1;
+
+        t0 = (nodeBounds[b+1] - o.y) * iy;
+        t1 = (nodeBounds[b+4] - o.y) * iy;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tNear) tNear = t0;
+        if (t1 < tFar)  tFar  = t1;
+
+        t0 = (nodeBounds[b+2] - o.z) * iz;
+        t1 = (nodeBounds[b+5] - o.z) * iz;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tNear) tNear = t0;
+        if (t1 < tFar)  tFar  = t1;
+
+        return tNear <= tFar;
+    }
+
+    //------------------------------------------------------------------------
+
+    // accessors
+    public int getNodeCount() { return nodes; }
+    public int getMaxDepth()  { return maxDepth; }
+
+    /** bounds of everything in the hierarchy */
+    public void getBounds(BoundingBox box)
+    {
+        box.clear();
+        if (nodes > 0) {
+            box.extend(nodeBounds[0], nodeBounds[1], nodeBounds[2]);
+            box.extend(nodeBounds[3], nodeBounds[4], nodeBounds[5]);
+        }
+    }
+}
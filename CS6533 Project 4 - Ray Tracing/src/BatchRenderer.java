@@ -0,0 +1,249 @@
+/* class BatchRenderer
+ * Renders many images in one run (Trace -batch): the scenes of a list
+ * file or of a directory, each at one or more sizes.  Each scene is read
+ * once and rendered at all its sizes, and textures are shared by all the
+ * scenes through TextureCache.
+ *
+ * Scenes are rendered at the same time on one pool of threads, which
+ * also renders their tiles: a thread that is done with the tiles of its
+ * scene takes tiles of the others, so the cores are kept busy without
+ * running more threads than asked for.
+ *
+ * A list file has one scene file per line (relative to the list file),
+ * followed by the sizes to render it at, as WxH (by default, the sizes
+ * given with -sizes, or else the one given with -res); '#' starts a
+ * comment.  For a directory, every file in it without an extension is
+ * rendered at the default sizes.  Each image is written next to its
+ * scene file, as <scene>-<W>x<H>.ppm (.pfm if -out names a PFM file).
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class BatchRenderer
+{
+    TraceOptions options;
+
+    // Scene files, and the sizes each is rendered at
+    Vector<String> sceneFiles = new Vector<String>();
+    Vector<Vector<int[]>> sceneSizes = new Vector<Vector<int[]>>();
+    Vector<int[]> defaultSizes;
+
+    // Images rendered and failed, and milliseconds taken reading scenes
+    // and rendering images (added up over the scenes and images)
+    int renderedCount = 0;
+    int failedCount = 0;
+    long readTime = 0;
+    long renderTime = 0;
+
+    //------------------------------------------------------------------------
+
+    /** find the scenes to render, in a list file or directory (named in
+     *  the options, with the settings of every image)
+     */
+    public BatchRenderer(TraceOptions newOptions) throws IOException
+    {
+        options = newOptions;
+
+        defaultSizes = options.sizes;
+        if (defaultSizes.isEmpty()) {
+            defaultSizes = new Vector<int[]>();
+            defaultSizes.addElement(new int[] { options.width, options.height });
+        }
+
+        File batch = new File(options.batchName);
+        if (batch.isDirectory())
+          readDirectory(batch);
+        else
+          readList(batch);
+    }
+
+    /** every file without an extension in a directory */
+    private void readDirectory(File directory)
+    {
+        String[] names = directory.list();
+        Arrays.sort(names);
+
+        for (int n = 0; n < names.length; n++) {
+            File file = new File(directory, names[n]);
+            if (names[n].indexOf('.') < 0 && file.isFile()) {
+                sceneFiles.addElement(file.getPath());
+                sceneSizes.addElement(defaultSizes);
+            }
+        }
+    }
+
+    /** the scenes and sizes of a list file */
+    private void readList(File list) throws IOException
+    {
+        File directory = list.getAbsoluteFile().getParentFile();
+        BufferedReader in = new BufferedReader(new FileReader(list));
+
+        try {
+            String line;
+            for (int number = 1; (line = in.readLine()) != null; number++) {
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                  line = line.substring(0, comment);
+
+                StringTokenizer tokens = new StringTokenizer(line);
+                if (!tokens.hasMoreTokens())
+                  continue;
+
+                String scene = tokens.nextToken();
+                if (!new File(scene).isAbsolute())
+                  scene = new File(directory, scene).getPath();
+
+                Vector<int[]> sizes = new Vector<int[]>();
+                try {
+                    while (tokens.hasMoreTokens())
+                      sizes.addAll(TraceOptions.parseSizes(tokens.nextToken()));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(list + ", line " + number + ": " +
+                                          e.getMessage());
+                }
+
+                sceneFiles.addElement(scene);
+                sceneSizes.addElement(sizes.isEmpty() ? defaultSizes : sizes);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** render every image, and print how long each one took */
+    public void run()
+    {
+        int threads = Math.max(1, options.threads);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        options.pool = pool;
+
+        int imageCount = 0;
+        final Vector<SceneTask> tasks = new Vector<SceneTask>();
+        for (int s = 0; s < sceneFiles.size(); s++) {
+            tasks.addElement(new SceneTask(sceneFiles.elementAt(s),
+                                           sceneSizes.elementAt(s)));
+            imageCount += sceneSizes.elementAt(s).size();
+        }
+
+        if (options.verbose)
+          System.out.println("Rendering " + imageCount + " images of " +
+                             tasks.size() + " scenes on " + threads +
+                             " threads");
+
+        long start = System.currentTimeMillis();
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        long elapsed = System.currentTimeMillis() - start;
+        pool.shutdown();
+
+        if (options.verbose) {
+            System.out.println("Done: " + renderedCount + " images in " +
+                               seconds(elapsed) + " s (" + seconds(renderTime) +
+                               " s rendering and " + seconds(readTime) +
+                               " s reading scenes, added up)");
+            if (failedCount > 0)
+              System.out.println(failedCount + " images failed");
+        }
+    }
+
+    /** the file an image of a scene is written to */
+    private String getOutputName(String sceneFile, int[] size)
+    {
+        return sceneFile + "-" + size[0] + "x" + size[1] +
+            (RGBImage.isPFM(options.outputFileName) ? ".pfm" : ".ppm");
+    }
+
+    /** count an image (rendered in milliseconds, or failed with an
+     *  error message) and print it
+     */
+    private synchronized void report(String sceneFile, int[] size,
+                                     long milliseconds, String error)
+    {
+        if (error == null) {
+            renderedCount++;
+            renderTime += milliseconds;
+        } else {
+            failedCount++;
+        }
+
+        if (options.verbose && error == null)
+          System.out.printf("  %-24s %5dx%-5d %8d ms  %s%n",
+                            new File(sceneFile).getName(), size[0], size[1],
+                            milliseconds, getOutputName(sceneFile, size));
+        else if (error != null)
+          System.err.printf("  %-24s %5dx%-5d   failed     %s%n",
+                            new File(sceneFile).getName(), size[0], size[1],
+                            error);
+    }
+
+    private synchronized void countRead(long milliseconds)
+    {
+        readTime += milliseconds;
+    }
+
+    private static String seconds(long milliseconds)
+    {
+        return String.format("%.2f", milliseconds / 1000.0);
+    }
+
+    /** reads a scene and renders it at each of its sizes */
+    private class SceneTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        String sceneFile;
+        Vector<int[]> sizes;
+
+        SceneTask(String newSceneFile, Vector<int[]> newSizes)
+        {
+            sceneFile = newSceneFile;
+            sizes = newSizes;
+        }
+
+        protected void compute()
+        {
+            long start = System.currentTimeMillis();
+            Scene scene;
+            try {
+                if (!new File(sceneFile).isFile())
+                  throw new FileNotFoundException(sceneFile);
+                scene = options.readScene(sceneFile, null);
+            } catch (Exception e) {
+                for (int s = 0; s < sizes.size(); s++)
+                  report(sceneFile, sizes.elementAt(s), 0,
+                         "could not read the scene (" + e + ")");
+                return;
+            }
+            countRead(System.currentTimeMillis() - start);
+
+            for (int s = 0; s < sizes.size(); s++) {
+                int[] size = sizes.elementAt(s);
+                String outputName = getOutputName(sceneFile, size);
+
+                start = System.currentTimeMillis();
+                try {
+                    scene.setSnapshots(outputName, options.snapshotSeconds,
+                                       options.snapshotPasses);
+                    scene.setOutputFile(options.mapped ? outputName : null,
+                                        options.resume);
+
+                    RGBImage image = scene.render(size[0], size[1], false);
+                    if (image != null)
+                      image.writeAtomically(outputName);
+                    scene.setImage(null);
+
+                    report(sceneFile, size,
+                           System.currentTimeMillis() - start, null);
+                } catch (Exception e) {
+                    report(sceneFile, size, 0, e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* class BoundingBox
+ * An axis-aligned bounding box, used to cull objects that a ray
+ * cannot hit
+ */
+import javax.vecmath.*;
+
+class BoundingBox
+{
+    // Box corners (an empty box has min > max)
+    Point3d min = new Point3d( Double.MAX_VALUE,  Double.MAX_VALUE,
+                               Double.MAX_VALUE);
+    Point3d max = new Point3d(-Double.MAX_VALUE, -Double.MAX_VALUE,
+                              -Double.MAX_VALUE);
+
+    //------------------------------------------------------------------------
+
+    /** Constructors */
+    public BoundingBox()
+    {
+    }
+
+    public BoundingBox(double minX, double minY, double minZ,
+                       double maxX, double maxY, double maxZ)
+    {
+        min.set(minX, minY, minZ);
+        max.set(maxX, maxY, maxZ);
+    }
+
+    public BoundingBox(BoundingBox original)
+    {
+        min.set(original.min);
+        max.set(original.max);
+    }
+
+    //------------------------------------------------------------------------
+
+    // accessors
+    public Point3d getMin() { return min; }
+    public Point3d getMax() { return max; }
+
+    public boolean isEmpty()
+    {
+        return min.x > max.x || min.y > max.y || min.z > max.z;
+    }
+
+    /** make the box empty */
+    public void clear()
+    {
+        min.set( Double.MAX_VALUE,  Double.MAX_VALUE,  Double.MAX_VALUE);
+        max.set(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+    }
+
+    /** grow the box to contain point (x,y,z) */
+    public void extend(double x, double y, double z)
+    {
+        if (x < min.x) min.x = x;
+        if (y < min.y) min.y = y;
+        if (z < min.z) min.z = z;
+        if (x > max.x) max.x = x;
+        if (y > max.y) max.y = y;
+        if (z > max.z) max.z = z;
+    }
+
+    /** grow the box to contain another box */
+    public void extend(BoundingBox other)
+    {
+        if (other.isEmpty())
+          return;
+
+        extend(other.min.x, other.min.y, other.min.z);
+        extend(other.max.x, other.max.y, other.max.z);
+    }
+
+    /** center of the box along an axis (0, 1 or 2) */
+    public double getCenter(int axis)
+    {
+        switch (axis) {
+          case 0:  return 0.5 * (min.x + max.x);
+          case 1:  return 0.5 * (min.y + max.y);
+          default: return 0.5 * (min.z + max.z);
+        }
+    }
+
+    /** axis (0, 1 or 2) along which the box is the longest */
+    public int getLongestAxis()
+    {
+        double dx = max.x - min.x, dy = max.y - min.y, dz = max.z - min.z;
+
+        if (dx >= dy && dx >= dz)
+          return 0;
+        return dy >= dz ? 1 : 2;
+    }
+
+    /** true if ray r passes through the box between its origin and tMax
+     *  along it (NaNs from 0 * infinity are ignored, as in the BVH)
+     */
+    public boolean hit(Ray r, double tMax)
+    {
+        Point3d  o = r.getPoint();
+        Vector3d d = r.getDirection();
+        double tNear = 0.0, tFar = tMax, t0, t1, inv;
+
+        inv = 1.0 / d.x;
+        t0 = (min.x - o.x) * inv;
+        t1 = (max.x - o.x) * inv;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tNear) tNear = t0;
+        if (t1 < tFar)  tFar  = t1;
+
+        inv = 1.0 / d.y;
+        t0 = (min.y - o.y) * inv;
+        t1 = (max.y - o.y) * inv;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tNear) tNear = t0;
+        if (t1 < tFar)  tFar  = t1;
+
+        inv = 1.0 / d.z;
+        t0 = (min.z - o.z) * inv;
+        t1 = (max.z - o.z) * inv;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tNear) tNear = t0;
+        if (t1 < tFar)  tFar  = t1;
+
+        return tNear <= tFar;
+    }
+
+    /** set this box to the bounds of box b transformed by m (the 8
+     *  transformed corners are enclosed)
+     */
+    public void transform(BoundingBox b, Matrix4d m)
+    {
+        if (b.isEmpty()) {
+            clear();
+            return;
+        }
+
+        Point3d corner = new Point3d();
+
+        // (b may be this box)
+        double x0 = b.min.x, y0 = b.min.y, z0 = b.min.z;
+        double x1 = b.max.x, y1 = b.max.y, z1 = b.max.z;
+
+        clear();
+        for (int i = 0; i < 8; i++) {
+            corner.set((i & 1) == 0 ? x0 : x1,
+                       (i & 2) == 0 ? y0 : y1,
+                       (i & 4) == 0 ? z0 : z1);
+            m.transform(corner);
+            extend(corner.x, corner.y, corner.z);
+        }
+    }
+
+    public String toString()
+    {
+        return "BoundingBox " + min + " - " + max;
+    }
+}
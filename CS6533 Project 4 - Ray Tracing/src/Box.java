@@ -27,89 +27,119 @@ class Box extends Shape
      *  origin with side length 2 (same bounds as the sphere)
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	return hit(r, intersection, all, minT, -1);
+    }
+
+    /** first hit beyond epsilon, texture coordinates only for a crossing */
+    boolean firstCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	return hit(r, intersection, true, epsilon, epsilon);
+    }
+
+    /** hit(); if epsilon is not negative, returns false for a hit that is
+     *  not a crossing (see Shape.nearestHit()) without computing its
+     *  texture coordinates
+     */
+    private boolean hit(Ray r, ISect intersection, boolean all, double minT,
+			double epsilon)
     {
 	double rayLength = r.getDirection().length();
 	r.getDirection().normalize();
 	minT *= rayLength;
-	boolean objHit = false;
        
-	double[] rayPos = new double[3];
-	r.getPoint().get( rayPos);
-	double[] rayDir = new double[3];
-	r.getDirection().get( rayDir);
+	Point3d  rayPos = r.getPoint();
+	Vector3d rayDir = r.getDirection();
        
-	double t1, t2;
+	// Only the closest face fills in the rest of the intersection
+	int face = -1;
+	double t1, t2, t = 0.0;
        
-	for (int i = 0; i < rayDir.length; i++) {
+	for (int i = 0; i < 3; i++) {
 	    int i1 = (i+1) % 3;
 	    int i2 = (i+2) % 3;
 	    double left = -1.0;
 	    double right = 1.0;
-	    double dir = rayDir[i];
-	    double pos = rayPos[i];
+	    double dir = component(rayDir, i);
+	    double pos = component(rayPos, i);
 	   
 	    if (dir != 0.0) {
 		t1 = (left - pos) / dir;
-		if (t1 >= minT && (!objHit || t1 < intersection.t)) {
-		    Point3d iPoint = new Point3d((Tuple3d)r.getDirection());
-		    iPoint.scaleAdd(t1, r.getPoint());
-		   
-		    double[] temp = new double[3];
-		    iPoint.get(temp);
-		    if (!(temp[i1] < left || temp[i1] > right ||
-			  temp[i2] < left || temp[i2] > right)) {
-		       
-			objHit = true;
-			intersection.t = t1;
-			intersection.setHitPoint(iPoint);
-			if (all) {
-			    intersection.getNormal().set(0,0,0);
-			    double[] nVector = new double[3];
-			    intersection.getNormal().get(nVector);
-			    nVector[i] = -1.0;
-			    intersection.getNormal().set(nVector);
-			    uvPlane(intersection, i1, i2);
-			}
-		    }
+		if (t1 >= minT && (face < 0 || t1 < t) &&
+		    onFace(r, t1, i1, i2)) {
+		    face = 2*i;
+		    t = t1;
 		}
 		t2 = (right - pos) / dir;
-		if (t2 >= minT && (!objHit || t2 < intersection.t)) {
-		    Point3d iPoint = new Point3d((Tuple3d)r.getDirection());
-		    iPoint.scaleAdd(t2, r.getPoint());
-		    double[] temp = new double[3];
-		    iPoint.get(temp);
-		    if (!(temp[i1] < left || temp[i1] > right ||
-			  temp[i2] < left || temp[i2] > right)) {
-			objHit = true;
-			intersection.setHitPoint(iPoint);
-			intersection.t = t2;
-			if (all) {
-			    intersection.getNormal().set(0,0,0);
-			    double[] nVector = new double[3];
-			    intersection.getNormal().get(nVector);
-			    nVector[i] = 1.0;
-			    intersection.getNormal().set(nVector);
-			    uvPlane(intersection, i1, i2);
-			}
-		    }
+		if (t2 >= minT && (face < 0 || t2 < t) &&
+		    onFace(r, t2, i1, i2)) {
+		    face = 2*i + 1;
+		    t = t2;
 		}
 	    }
 	}
 
-	if (objHit) {
-	    intersection.t /= rayLength;
-	    intersection.setHitObject(this);
+	if (face < 0)
+	    return false;
+
+	int axis = face / 2;
+	intersection.t = t;
+	intersection.getHitPoint().scaleAdd(t, rayDir, rayPos);
+
+	boolean crossing = true;
+	if (all) {
+	    setAxis(intersection.getNormal(), axis, face % 2 == 0 ? -1.0 : 1.0);
+
+	    crossing = epsilon < 0 || isCrossing(r, intersection, epsilon);
+	    if (crossing)
+		uvPlane(intersection, (axis+1) % 3, (axis+2) % 3);
 	}
-	return objHit;
+
+	intersection.t /= rayLength;
+	intersection.setHitObject(this);
+
+	return crossing;
+    }
+
+    /** the box is its own bounds */
+    void getLocalBounds(BoundingBox box)
+    {
+	box.getMin().set(-1, -1, -1);
+	box.getMax().set( 1,  1,  1);
+    }
+    
+    /** true if the point at t along ray r is within the face, along
+     *  axes i1 and i2
+     */
+    private static boolean onFace(Ray r, double t, int i1, int i2)
+    {
+	Point3d  p = r.getPoint();
+	Vector3d d = r.getDirection();
+	double x1 = t * component(d, i1) + component(p, i1);
+	double x2 = t * component(d, i2) + component(p, i2);
+
+	return !(x1 < -1.0 || x1 > 1.0 || x2 < -1.0 || x2 > 1.0);
+    }
+
+    /** coordinate of v along an axis (0, 1 or 2) */
+    private static double component(Tuple3d v, int axis)
+    {
+	return axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+    }
+
+    /** set v to value along an axis (0, 1 or 2) and zero along the others */
+    private static void setAxis(Tuple3d v, int axis, double value)
+    {
+	v.set(axis == 0 ? value : 0, axis == 1 ? value : 0,
+	      axis == 2 ? value : 0);
     }
     
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((component(ipoint, x)+1.0)/2);
+	intersection.setV((component(ipoint, y)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
@@ -6,6 +6,7 @@
 import java.io.*;
 import java.lang.reflect.*;
 import java.text.ParseException;
+import java.util.*;
 import javax.vecmath.*;
 
 class Camera extends RaytracerObject
@@ -23,6 +24,10 @@ class Camera extends RaytracerObject
     /** near plane */
     double near = 1;
 
+    /** frame this camera is a key of, for an animated camera (NaN if
+     *  it is not a key) */
+    double keyFrame = Double.NaN;
+
     // ------
 
     /** aspect ratio (width/height) */
@@ -31,6 +36,9 @@ class Camera extends RaytracerObject
     /** Camera coordinate system (u, v are scaled based on image size) */
     Vector3d u, v, n;
 
+    /** center of the near plane (where the rays start) */
+    Point3d nearCenter;
+
     //-----------------------------------------------------------------------
 
     /** if the camera is specified by default values, pass a null as tokenizer
@@ -48,6 +56,7 @@ class Camera extends RaytracerObject
         addSpec("up",     "setUp",     up.getClass().getName());
         addSpec("fovy",   "setFovy",   "java.lang.Double");
         addSpec("near",   "setNear",   "java.lang.Double");
+        addSpec("frame",  "setKeyFrame", "java.lang.Double");
 
         read(tokenizer);
     }
@@ -84,6 +93,39 @@ class Camera extends RaytracerObject
     public void setFovy(Double newVal)   { fovy   = newVal.doubleValue(); }
     public void setNear(Double newVal)   { near   = newVal.doubleValue(); }
 
+    public double  getKeyFrame() { return keyFrame; }
+    public void    setKeyFrame(Double newVal) { keyFrame = newVal.doubleValue(); }
+    public boolean isKey()       { return !Double.isNaN(keyFrame); }
+
+    /** set the camera to where an animated camera is at a frame, given
+     *  its keys (in order of their frames): each setting is interpolated
+     *  linearly between the keys around the frame
+     */
+    public void interpolate(Vector<Camera> keys, double frame)
+    {
+        Vector<Double>   frames   = new Vector<Double>();
+        Vector<Point3d>  eyes     = new Vector<Point3d>();
+        Vector<Vector3d> looks    = new Vector<Vector3d>();
+        Vector<Vector3d> ups      = new Vector<Vector3d>();
+        Vector<Vector3d> settings = new Vector<Vector3d>();
+        for (int k = 0; k < keys.size(); k++) {
+            Camera key = keys.elementAt(k);
+            frames.addElement(key.keyFrame);
+            eyes.addElement(key.eye);
+            looks.addElement(key.look);
+            ups.addElement(key.up);
+            settings.addElement(new Vector3d(key.fovy, key.near, 0));
+        }
+
+        Vector3d setting = new Vector3d();
+        Keyframes.interpolate(frames, frame, eyes, eye);
+        Keyframes.interpolate(frames, frame, looks, look);
+        Keyframes.interpolate(frames, frame, ups, up);
+        Keyframes.interpolate(frames, frame, settings, setting);
+        fovy = setting.x;
+        near = setting.y;
+    }
+
     //-----------------------------------------------------------------------
 
     /** create and compute u, v, n from camera specification
@@ -115,6 +157,10 @@ class Camera extends RaytracerObject
         // Scale u and v to be size of image
         u.scale(W);
         v.scale(H);
+
+        nearCenter = new Point3d(n);
+        nearCenter.scale(-near);
+        nearCenter.add(eye);
     }
 
     /** construct ray through pixel (x,y)
@@ -127,19 +173,26 @@ class Camera extends RaytracerObject
      *   by computeUVN(), the origin of which is eye
      */
     public Ray pixelRay(double x, double y)
+    {
+        Ray r = new Ray();
+        pixelRay(x, y, r);
+        return r;
+    }
+
+    /** same as pixelRay() above, but sets an existing ray */
+    public void pixelRay(double x, double y, Ray r)
     {
     	// origin of ray = eye , adjusted for placement on the near plane
     	// direction of ray = u * x + v * y - n * near
-    	
-    	Point3d origin = (Point3d)this.getEye().clone();
-    	origin.z = -this.near;
-    	
-    	Vector3d direction = new Vector3d(this.u.x * x, this.u.y * x, this.u.z * x); 
-    	direction.add(new Vector3d(this.v.x * y, this.v.y * y, this.v.z * y));
-    	direction.sub(new Vector3d(this.n.x * this.near, this.n.y * this.near, this.n.z * this.near));
+
+    	Point3d origin = r.getPoint();
+    	origin.set(this.nearCenter);
+
+    	Vector3d direction = r.getDirection();
+    	direction.set(this.u.x * x + this.v.x * y - this.n.x * this.near,
+    	              this.u.y * x + this.v.y * y - this.n.y * this.near,
+    	              this.u.z * x + this.v.z * y - this.n.z * this.near);
     	direction.normalize();
-    	
-        return new Ray(origin, direction);
     }
 
     public void print(PrintStream out)
@@ -30,99 +30,160 @@ class Cone extends Shape
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	ISect icone = new ISect(), icap1 = new ISect();
-	boolean hit_cone, hit_cap1;
+	return hit(r, intersection, all, minT, -1);
+    }
 
-	hit_cone = hitConeCap(r, icone, all, minT);
-	hit_cap1 = hitCap1(r, icap1, all, minT);
+    /** first hit beyond epsilon, texture coordinates only for a crossing */
+    boolean firstCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	return hit(r, intersection, true, epsilon, epsilon);
+    }
+
+    /** hit(); if epsilon is not negative, returns false for a hit that is
+     *  not a crossing (see Shape.nearestHit()) without computing its
+     *  texture coordinates
+     */
+    private boolean hit(Ray r, ISect intersection, boolean all, double minT,
+			double epsilon)
+    {
+	double dlen = r.getDirection().length();
+	double tcone, tcap1;
+	boolean hit_cone, hit_cap1;
 
-	if (hit_cone && (!hit_cap1 || icone.t < icap1.t)) {
-	    intersection.set(icone);
-	} else if (hit_cap1 && (!hit_cone || icap1.t < icone.t)) {
-	    intersection.set(icap1);
+	// Distances along the normalized ray direction (negative if missed);
+	// only the closer part fills in the rest of the intersection
+	tcone = hitConeCap(r, dlen, minT * dlen);
+	tcap1 = hitCap1(r, dlen, minT * dlen);
+	hit_cone = tcone >= 0;
+	hit_cap1 = tcap1 >= 0;
+
+	boolean cone;
+	if (hit_cone && (!hit_cap1 || tcone / dlen < tcap1 / dlen)) {
+	    cone = true;
+	    intersection.t = tcone / dlen;
+	} else if (hit_cap1 && (!hit_cone || tcap1 / dlen < tcone / dlen)) {
+	    cone = false;
+	    intersection.t = tcap1 / dlen;
 	} else {
 	    return false;
 	}
 
 	intersection.setHitObject(this);
 
+	if (!all)
+	    return true;
+
+	if (cone)
+	    fillConeCap(r, intersection, dlen, tcone);
+	else
+	    fillCap1(r, intersection, dlen, tcap1);
+
+	if (epsilon >= 0 && !isCrossing(r, intersection, epsilon))
+	    return false;
+
+	if (cone)
+	    uvConeCap(intersection);
+	else
+	    uvPlane(intersection, 0, 1);
+
 	return true;
+    }
+
+    /** bounds of the cone (base radius 1, z from 0 to 1) */
+    void getLocalBounds(BoundingBox box)
+    {
+	box.getMin().set(-1, -1, 0);
+	box.getMax().set( 1,  1, 1);
+    }
+
+    /** sphere through the rim of the base of the cone */
+    double getLocalSphere(Point3d center)
+    {
+	center.set(0, 0, 0.5);
+	return Math.sqrt(1.25);
+    }
 
+    /** u goes around the cone side, v along its height (the lengths on the
+     *  side, which has most of the surface)
+     */
+    void getLocalTextureLengths(Vector2d lengths)
+    {
+	lengths.set(2*Math.PI, 1);
     }
 
-    private boolean hitConeCap(Ray r, ISect intersection, boolean all,
-			       double minT)
+    /** distance to the cone side along the normalized direction of r (of
+     *  length dlen), or -1 if it is not hit
+     */
+    private double hitConeCap(Ray r, double dlen, double minT)
     {
-	double dlen, a, b, c, d, t1, t2, z1, z2;
+	double a, b, c, d, t1, t2, z1, z2;
 	boolean t1bad, t2bad;
 	double epsilon = 1e-6;
 
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
+	Vector3d dir = r.getDirection();
+	double norm = 1.0 / dlen;
+	double rdx = dir.x * norm, rdy = dir.y * norm, rdz = dir.z * norm;
 
- 	a = rd.x * rd.x + rd.y * rd.y - rd.z * rd.z;
-	b = rd.x * rp.x + rd.y * rp.y - rd.z * rp.z;
+ 	a = rdx * rdx + rdy * rdy - rdz * rdz;
+	b = rdx * rp.x + rdy * rp.y - rdz * rp.z;
 	c = rp.x * rp.x + rp.y * rp.y - rp.z * rp.z;
 
 	if (Math.abs(a) < epsilon) {
 	    /* One intersection point */
 	    t1 = -0.5*c / b;
-	    z1 = rp.z + t1 * rd.z;
+	    z1 = rp.z + t1 * rdz;
 
 	    if (t1 < minT || z1 < 0 || z1 > 1)
-	      return false;
+	      return -1;
 
-	    intersection.t = t1;
+	    return t1;
 	} else {
 	    d = b*b - a*c;
 
 	    if (d < 0.0)
-	      return false;
+	      return -1;
 	    d = Math.sqrt(d);
 
 	    t1 = (-b + d) / a;
 	    t2 = (-b - d) / a;
 
-	    z1 = rp.z + t1 * rd.z;
-	    z2 = rp.z + t2 * rd.z;
+	    z1 = rp.z + t1 * rdz;
+	    z2 = rp.z + t2 * rdz;
 
 	    t1bad = (t1 < minT || z1 < 0.0 || z1 > 1.0);
 	    t2bad = (t2 < minT || z2 < 0.0 || z2 > 1.0);
 
 	    if (t1bad && t2bad) {
-		return false;
+		return -1;
 	    } else if (t1bad) {
-		intersection.t = t2;
+		return t2;
 	    } else if (t2bad) {
-		intersection.t = t1;
+		return t1;
 	    } else {
-		intersection.t = (t1 < t2) ? t1 : t2;
+		return (t1 < t2) ? t1 : t2;
 	    }
 	}
+    }
 
-	if (all) {
-	    Point3d ipoint = intersection.getHitPoint();
-	    Vector3d inorm = intersection.getNormal();
-
-	    ipoint.scale(intersection.t, rd);
-	    ipoint.add(rp);
-
-	    Vector3d ipv = new Vector3d(ipoint);
-
-	    inorm.cross(ipv, new Vector3d(0,0,1));
-	    inorm.cross(ipv, inorm);
-	    inorm.normalize();
+    /** hit point and normal at distance t along the normalized direction
+     *  of r, on the cone side
+     */
+    private void fillConeCap(Ray r, ISect intersection, double dlen, double t)
+    {
+	Point3d ipoint = intersection.getHitPoint();
+	Vector3d inorm = intersection.getNormal();
 
-	    uvConeCap(intersection);
-	}
+	setPoint(ipoint, r, dlen, t);
 
-	intersection.t /= dlen;
+	// (dPdV holds the hit point until uvConeCap() sets it)
+	Vector3d ipv = intersection.getDpDv();
+	ipv.set(ipoint);
 
-	return true;
+	inorm.set(0, 0, 1);
+	inorm.cross(ipv, inorm);
+	inorm.cross(ipv, inorm);
+	inorm.normalize();
     }
 
     private void uvConeCap(ISect intersection)
@@ -151,54 +212,65 @@ class Cone extends Shape
 	intersection.getDpDv().normalize();
     }
 
-    private boolean hitCap1(Ray r, ISect intersection, boolean all, 
-			    double minT)
+    /** distance to the base along the normalized direction of r (of
+     *  length dlen), or -1 if it is not hit
+     */
+    private double hitCap1(Ray r, double dlen, double minT)
     {
-	double pz, dz, t, dlen;
+	double pz, dz, t, x, y;
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
+	Vector3d dir = r.getDirection();
+	double norm = 1.0 / dlen;
 
 	pz = rp.z;
-	dz = rd.z;
+	dz = dir.z * norm;
 
 	if (dz == 0.0)
-	  return false;
+	  return -1;
 
 	t = (1 - pz) / dz;
 
 	if (t < minT)
-	  return false;
+	  return -1;
 
-	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	x = t * (dir.x * norm) + rp.x;
+	y = t * (dir.y * norm) + rp.y;
 
-	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
+	if (x * x + y * y <= 1.0)
+	  return t;
 
-	    if (all) {
-		intersection.getNormal().set(0, 0, 1);
-		
-		uvPlane(intersection, 0, 1);
-	    }
-	} else {
-	    return false;
-	}
+	return -1;
+    }
 
-	return true;
+    /** hit point and normal at distance t along the normalized direction
+     *  of r, on the base
+     */
+    private void fillCap1(Ray r, ISect intersection, double dlen, double t)
+    {
+	setPoint(intersection.getHitPoint(), r, dlen, t);
+	intersection.getNormal().set(0, 0, 1);
+    }
+
+    /** set p to the point at distance t along the normalized direction of
+     *  r (of length dlen)
+     */
+    private static void setPoint(Point3d p, Ray r, double dlen, double t)
+    {
+	Point3d rp = r.getPoint();
+	Vector3d dir = r.getDirection();
+	double norm = 1.0 / dlen;
+
+	p.set(t * (dir.x * norm) + rp.x,
+	      t * (dir.y * norm) + rp.y,
+	      t * (dir.z * norm) + rp.z);
     }
 
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((component(ipoint, x)+1.0)/2);
+	intersection.setV((component(ipoint, y)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
@@ -207,4 +279,10 @@ class Cone extends Shape
 				   y == 1 ? 1 : 0,
 				   y == 2 ? 1 : 0);
     }
+
+    /** coordinate of v along an axis (0, 1 or 2) */
+    private static double component(Tuple3d v, int axis)
+    {
+	return axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+    }
 }
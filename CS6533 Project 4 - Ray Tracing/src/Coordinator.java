@@ -0,0 +1,415 @@
+/* class Coordinator
+ * Renders the tiles of an image on worker processes (see Worker), which
+ * connect to it over TCP: it can start them itself, on this machine, and
+ * others can connect from elsewhere.  Each worker is sent the scene file
+ * and the files it refers to (so it needs no access to them), then
+ * ranges of tiles to render, and sends back their pixels.
+ *
+ * The tiles of a worker that dies, or sends nothing for a while (stalls),
+ * are handed to the others.  If no worker is left (or none connects),
+ * the rest are rendered here.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class Coordinator
+{
+    // First number a worker sends
+    static final int MAGIC = 0x54524331;
+
+    Scene scene;
+
+    // Workers connect here (from this machine only, unless a host to
+    // listen on was given); the ones started here, and the number
+    // connected
+    ServerSocket server;
+    boolean      local;
+    Vector<Process> processes = new Vector<Process>();
+    int connectionCount = 0;
+
+    // Milliseconds a worker may take to send a tile, and that workers
+    // are waited for when none is connected
+    int timeout;
+
+    // The current render: what is sent to every worker, the number of
+    // tiles, the tiles not handed out yet and the number finished
+    byte[] job = null;
+    int tileCount = 0;
+    LinkedList<Tile> pending = new LinkedList<Tile>();
+    int finishedCount = 0;
+    boolean verbose = false;
+
+    // Time something last happened with the workers (for timeouts)
+    long lastActivity;
+
+    // Tiles rendered by workers, handed out again after a worker was
+    // lost, and rendered here
+    int remoteTiles = 0;
+    int reassignedTiles = 0;
+    int localTiles = 0;
+
+    //------------------------------------------------------------------------
+
+    /** listen for workers on a port (0 for any free port), on the address
+     *  of host (such as "0.0.0.0" for every network interface; null for
+     *  this machine only), and start workerCount of them here, rendering
+     *  on threads threads each; workers are given up on after
+     *  timeoutSeconds without a tile
+     *
+     * Any program that connects is sent the scene and every file it uses
+     * (there is no authentication), so host should only be given on a
+     * trusted network.
+     */
+    public Coordinator(Scene newScene, String host, int port, int workerCount,
+                       int threads, double timeoutSeconds)
+        throws IOException
+    {
+        scene = newScene;
+        timeout = (int)Math.max(1, timeoutSeconds * 1000);
+        lastActivity = System.currentTimeMillis();
+
+        local = port == 0;
+        if (local || host == null)
+          server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        else
+          server = new ServerSocket(port, 50, InetAddress.getByName(host));
+
+        Thread acceptor = new Thread() {
+            public void run() {
+                acceptWorkers();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // Start the workers (with the same classes as this program)
+        String java = System.getProperty("java.home") + File.separator +
+            "bin" + File.separator + "java";
+        String address = InetAddress.getLoopbackAddress().getHostAddress() +
+            ":" + server.getLocalPort();
+        for (int w = 0; w < workerCount; w++) {
+            ProcessBuilder builder =
+                new ProcessBuilder(java, "-cp",
+                                   System.getProperty("java.class.path"),
+                                   "Trace", "-worker", address,
+                                   "-threads", "" + threads, "-quiet");
+            builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            processes.addElement(builder.start());
+        }
+    }
+
+    /** port the workers connect to */
+    public int getPort() { return server.getLocalPort(); }
+
+    /** stop listening, and wait for the workers started here to end
+     *  (stopping those that do not)
+     */
+    public void close() throws IOException
+    {
+        server.close();
+
+        for (int w = 0; w < processes.size(); w++) {
+            Process process = processes.elementAt(w);
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS))
+                  process.destroy();
+            } catch (InterruptedException e) {
+                process.destroy();
+            }
+        }
+
+        if (verbose)
+          System.out.println("Tiles: " + remoteTiles + " rendered by workers (" +
+                             reassignedTiles + " handed out again), " +
+                             localTiles + " here");
+    }
+
+    //------------------------------------------------------------------------
+
+    /** render tiles on the workers (or here, if there are none); returns
+     *  once every tile is stored in the scene's image or output file
+     */
+    public void render(Vector<Tile> tiles, boolean newVerbose)
+        throws IOException
+    {
+        byte[] newJob = makeJob();
+
+        synchronized (this) {
+            job = newJob;
+            tileCount = tiles.size();
+            pending = new LinkedList<Tile>(tiles);
+            finishedCount = 0;
+            verbose = newVerbose;
+            lastActivity = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        // Wait for the workers, rendering tiles here while there are none
+        try {
+            while (true) {
+                Vector<Tile> batch = new Vector<Tile>();
+                synchronized (this) {
+                    while (finishedCount < tileCount && !mustRenderHere())
+                      wait(100);
+                    if (finishedCount == tileCount)
+                      break;
+                    take(batch, 2 * Math.max(1, scene.getThreads()));
+                }
+
+                scene.renderTiles(batch, tileCount, verbose);
+
+                synchronized (this) {
+                    finishedCount += batch.size();
+                    localTiles += batch.size();
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Render interrupted");
+        }
+    }
+
+    /** true if tiles are left to hand out, but no worker is connected,
+     *  and none is expected soon (none started here is running, and no
+     *  other may connect, or none has for a while)
+     */
+    private boolean mustRenderHere()
+    {
+        if (connectionCount > 0 || pending.isEmpty())
+          return false;
+        if (System.currentTimeMillis() - lastActivity >= timeout)
+          return true;
+        if (!local)
+          return false;
+
+        for (int w = 0; w < processes.size(); w++)
+          if (processes.elementAt(w).isAlive())
+            return false;
+        return true;
+    }
+
+    /** move up to n tiles not handed out yet into batch */
+    private void take(Vector<Tile> batch, int n)
+    {
+        while (batch.size() < n && !pending.isEmpty())
+          batch.addElement(pending.removeFirst());
+    }
+
+    /** what every worker is sent first: the scene file, the files it
+     *  refers to, and the settings that change the pixels
+     */
+    private byte[] makeJob() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        String fileName = scene.getFileName();
+        out.writeUTF(new File(fileName).getName());
+        writeFile(out, fileName);
+
+        // (Files that could not be read are left out; workers report
+        // them missing, as this program did)
+        Vector<String> names = SceneFiles.getNames();
+        Vector<String> found = new Vector<String>();
+        for (int f = 0; f < names.size(); f++)
+          if (new File(names.elementAt(f)).isFile())
+            found.addElement(names.elementAt(f));
+
+        out.writeInt(found.size());
+        for (int f = 0; f < found.size(); f++) {
+            out.writeUTF(found.elementAt(f));
+            writeFile(out, found.elementAt(f));
+        }
+
+        out.writeInt(scene.width);
+        out.writeInt(scene.height);
+        out.writeInt(scene.getTileSize());
+        out.writeBoolean(scene.isAdaptive());
+        out.writeInt(scene.getMaxSamples());
+        out.writeUTF(scene.getCuller().getName());
+        out.writeBoolean(scene.isMipmapping());
+        out.writeInt(scene.getSeed());
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeFile(DataOutputStream out, String fileName)
+        throws IOException
+    {
+        byte[] contents = Files.readAllBytes(Paths.get(fileName));
+        out.writeInt(contents.length);
+        out.write(contents);
+    }
+
+    //------------------------------------------------------------------------
+    // Workers
+
+    /** take connections from workers, until the server is closed */
+    private void acceptWorkers()
+    {
+        try {
+            while (true) {
+                Connection connection = new Connection(server.accept());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    /** the job for workers (once there is one) */
+    private synchronized byte[] waitForJob() throws InterruptedException
+    {
+        while (job == null)
+          wait();
+        return job;
+    }
+
+    /** a worker has connected and been sent the job */
+    private synchronized void connected()
+    {
+        connectionCount++;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /** hand up to n tiles to a worker (waiting while the others have
+     *  all of them); false once every tile is finished
+     */
+    private synchronized boolean takeTiles(Vector<Tile> batch, int n)
+        throws InterruptedException
+    {
+        while (pending.isEmpty() && finishedCount < tileCount)
+          wait();
+        if (finishedCount == tileCount)
+          return false;
+
+        take(batch, n);
+        return true;
+    }
+
+    /** store a tile a worker sent back */
+    private void finish(Vector<Tile> batch, Tile tile, float[] values)
+        throws IOException
+    {
+        scene.storeTile(tile, values);
+        scene.reportProgress(tileCount, verbose);
+
+        synchronized (this) {
+            batch.removeElement(tile);
+            finishedCount++;
+            remoteTiles++;
+            lastActivity = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /** a worker is gone: hand out the tiles it had again, first */
+    private synchronized void disconnected(Vector<Tile> batch,
+                                           boolean wasConnected)
+    {
+        if (wasConnected)
+          connectionCount--;
+
+        pending.addAll(0, batch);
+        reassignedTiles += batch.size();
+        batch.clear();
+
+        lastActivity = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /** talks to one worker */
+    private class Connection extends Thread
+    {
+        Socket socket;
+
+        // Tiles handed to the worker and not sent back yet
+        Vector<Tile> batch = new Vector<Tile>();
+
+        Connection(Socket newSocket)
+        {
+            socket = newSocket;
+        }
+
+        public void run()
+        {
+            boolean wasConnected = false;
+
+            try {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+
+                socket.setSoTimeout(timeout);
+                if (in.readInt() != MAGIC)
+                  throw new IOException("not a worker");
+                int threads = Math.max(1, in.readInt());
+
+                socket.setSoTimeout(0);
+                out.write(waitForJob());
+                out.flush();
+                socket.setSoTimeout(timeout);
+                connected();
+                wasConnected = true;
+
+                // Enough tiles to keep each of its threads busy until the
+                // next ones arrive
+                while (takeTiles(batch, 2 * threads)) {
+                    out.writeInt(batch.size());
+                    for (int t = 0; t < batch.size(); t++)
+                      out.writeInt(batch.elementAt(t).getIndex());
+                    out.flush();
+
+                    for (int count = batch.size(); count > 0; count--)
+                      receiveTile(in);
+                }
+
+                out.writeInt(0);
+                out.flush();
+            } catch (IOException e) {
+                String reason = e instanceof EOFException ?
+                    "connection closed" : e.getMessage();
+                if (verbose)
+                  System.err.println("Lost worker " +
+                                     socket.getRemoteSocketAddress() +
+                                     " (" + reason + ")");
+            } catch (InterruptedException e) {
+                // Stopped
+            } finally {
+                disconnected(batch, wasConnected);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Gone already
+                }
+            }
+        }
+
+        /** read a tile of the batch back from the worker */
+        private void receiveTile(DataInputStream in) throws IOException
+        {
+            int index = in.readInt();
+            Tile tile = null;
+            for (int t = 0; t < batch.size(); t++)
+              if (batch.elementAt(t).getIndex() == index)
+                tile = batch.elementAt(t);
+            if (tile == null)
+              throw new IOException("sent tile " + index + ", not asked for");
+
+            byte[] bytes = new byte[4 * 3 * tile.getPixelCount()];
+            in.readFully(bytes);
+            float[] values = new float[3 * tile.getPixelCount()];
+            ByteBuffer.wrap(bytes).asFloatBuffer().get(values);
+
+            finish(batch, tile, values);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/* class Culler
+ * Quick test of a ray against the world-space bounds of an object,
+ * before the ray is transformed into the object's coordinate system and
+ * intersected with it.  A culler only rejects objects the ray certainly
+ * misses, so the image does not depend on which one is used.
+ */
+import javax.vecmath.*;
+
+abstract class Culler
+{
+    /** false if ray r (from its origin up to tMax along it) certainly
+     *  misses the object
+     */
+    abstract boolean mayHit(Shape object, Ray r, double tMax);
+
+    /** name used on the command line */
+    abstract String getName();
+
+    /** culler for a name ("none", "sphere" or "box"), null if unknown */
+    static Culler forName(String name)
+    {
+        if (name.compareTo("none")==0)
+          return new NoCuller();
+        else if (name.compareTo("sphere")==0)
+          return new SphereCuller();
+        else if (name.compareTo("box")==0)
+          return new BoxCuller();
+
+        return null;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** rejects nothing (every object is intersected) */
+    static class NoCuller extends Culler
+    {
+        boolean mayHit(Shape object, Ray r, double tMax) { return true; }
+        String getName() { return "none"; }
+    }
+
+    /** tests the bounding sphere of the object */
+    static class SphereCuller extends Culler
+    {
+        String getName() { return "sphere"; }
+
+        boolean mayHit(Shape object, Ray r, double tMax)
+        {
+            double radius = object.getBoundingRadius();
+            if (radius < 0)
+              return false;
+
+            Point3d  c = object.getBoundingCenter();
+            Point3d  o = r.getPoint();
+            Vector3d d = r.getDirection();
+
+            // Center relative to the ray origin, and where along the ray
+            // it is closest (in units of the direction's length)
+            double cx = c.x - o.x, cy = c.y - o.y, cz = c.z - o.z;
+            double dd = d.x*d.x + d.y*d.y + d.z*d.z;
+            double b  = (cx*d.x + cy*d.y + cz*d.z) / dd;
+            double cc = cx*cx + cy*cy + cz*cz;
+
+            // Square of half the chord through the sphere, negative if
+            // the ray's line passes outside of it
+            double h2 = radius*radius - (cc - b*b*dd);
+            if (h2 < 0)
+              return false;
+
+            // Sphere behind the origin, or starting beyond tMax
+            double half = Math.sqrt(h2 / dd);
+            return b + half >= 0 && b - half <= tMax;
+        }
+    }
+
+    /** tests the bounding box of the object */
+    static class BoxCuller extends Culler
+    {
+        String getName() { return "box"; }
+
+        boolean mayHit(Shape object, Ray r, double tMax)
+        {
+            return object.getBounds().hit(r, tMax);
+        }
+    }
+}
@@ -31,98 +31,168 @@ class Cylinder extends Shape
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	ISect itube = new ISect(), icap0 = new ISect(), icap1 = new ISect();
-	boolean hit_tube, hit_cap0, hit_cap1;
+	return hit(r, intersection, all, minT, -1);
+    }
 
-	hit_tube = hitTube(r, itube, all, minT);
-	hit_cap0 = hitCap0(r, icap0, all, minT);
-	hit_cap1 = hitCap1(r, icap1, all, minT);
+    /** first hit beyond epsilon, texture coordinates only for a crossing */
+    boolean firstCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	return hit(r, intersection, true, epsilon, epsilon);
+    }
 
+    /** hit(); if epsilon is not negative, returns false for a hit that is
+     *  not a crossing (see Shape.nearestHit()) without computing its
+     *  texture coordinates
+     */
+    private boolean hit(Ray r, ISect intersection, boolean all, double minT,
+			double epsilon)
+    {
+	double dlen = r.getDirection().length();
+	double dtube, dcap0, dcap1, ttube, tcap0, tcap1;
+	boolean hit_tube, hit_cap0, hit_cap1;
+
+	// Distances along the normalized ray direction (negative if missed);
+	// only the closest part fills in the rest of the intersection
+	dtube = hitTube(r, dlen, minT * dlen);
+	dcap0 = hitCap(r, dlen, minT * dlen, 0);
+	dcap1 = hitCap(r, dlen, minT * dlen, 1);
+	hit_tube = dtube >= 0;
+	hit_cap0 = dcap0 >= 0;
+	hit_cap1 = dcap1 >= 0;
+
+	ttube = dtube / dlen;
+	tcap0 = dcap0 / dlen;
+	tcap1 = dcap1 / dlen;
+
+	// Part hit first: the tube (-1) or a cap (z of the cap)
+	int part;
+	double dpart;
 	if (hit_tube && 
-	    (!hit_cap0 || itube.t < icap0.t) && 
-	    (!hit_cap1 || itube.t < icap1.t)) {
-	    intersection.set(itube);
+	    (!hit_cap0 || ttube < tcap0) && 
+	    (!hit_cap1 || ttube < tcap1)) {
+	    part = -1;
+	    dpart = dtube;
+	    intersection.t = ttube;
 	} else if (hit_cap0 && 
-		   (!hit_tube || icap0.t < itube.t) && 
-		   (!hit_cap1 || icap0.t < icap1.t)) {
-	    intersection.set(icap0);
+		   (!hit_tube || tcap0 < ttube) && 
+		   (!hit_cap1 || tcap0 < tcap1)) {
+	    part = 0;
+	    dpart = dcap0;
+	    intersection.t = tcap0;
 	} else if (hit_cap1 && 
-		   (!hit_tube || icap1.t < itube.t) && 
-		   (!hit_cap0 || icap1.t < icap0.t)) {
-	    intersection.set(icap1);
+		   (!hit_tube || tcap1 < ttube) && 
+		   (!hit_cap0 || tcap1 < tcap0)) {
+	    part = 1;
+	    dpart = dcap1;
+	    intersection.t = tcap1;
 	} else {
 	    return false;
 	}
 
 	intersection.setHitObject(this);
 
+	if (!all)
+	    return true;
+
+	if (part < 0)
+	    fillTube(r, intersection, dlen, dpart);
+	else
+	    fillCap(r, intersection, dlen, dpart, part);
+
+	if (epsilon >= 0 && !isCrossing(r, intersection, epsilon))
+	    return false;
+
+	if (part < 0)
+	    uvTube(intersection);
+	else
+	    uvPlane(intersection, 0, 1);
+
 	return true;
     }
 
-    private boolean hitTube(Ray r, ISect intersection, boolean all,
-			    double minT)
+    /** bounds of the cylinder (radius 1, z from 0 to 1) */
+    void getLocalBounds(BoundingBox box)
+    {
+	box.getMin().set(-1, -1, 0);
+	box.getMax().set( 1,  1, 1);
+    }
+
+    /** sphere through the rims of the cylinder */
+    double getLocalSphere(Point3d center)
     {
-	double dlen, a, b, c, d, t1, t2, z1, z2;
+	center.set(0, 0, 0.5);
+	return Math.sqrt(1.25);
+    }
+
+    /** u goes around the cylinder side, v along its height (the lengths on the
+     *  side, which has most of the surface)
+     */
+    void getLocalTextureLengths(Vector2d lengths)
+    {
+	lengths.set(2*Math.PI, 1);
+    }
+
+    /** distance to the tube along the normalized direction of r (of
+     *  length dlen), or -1 if it is not hit
+     */
+    private double hitTube(Ray r, double dlen, double minT)
+    {
+	double a, b, c, d, t1, t2, z1, z2;
 	boolean t1bad, t2bad;
 	double epsilon = 1e-6;
 
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
+	Vector3d dir = r.getDirection();
+	double norm = 1.0 / dlen;
+	double rdx = dir.x * norm, rdy = dir.y * norm, rdz = dir.z * norm;
 
-	a = rd.x * rd.x + rd.y * rd.y;
+	a = rdx * rdx + rdy * rdy;
 	if (a < epsilon * epsilon)
-	  return false;
+	  return -1;
 
-	b = rd.x * rp.x + rd.y * rp.y;
+	b = rdx * rp.x + rdy * rp.y;
 	c = rp.x * rp.x + rp.y * rp.y - 1;
 	d = b*b - a*c;
 
 	if (d < 0.0)
-	  return false;
+	  return -1;
 	d = Math.sqrt(d);
 
 	t1 = (-b + d) / a;
 	t2 = (-b - d) / a;
 
 	if (t1 < minT && t2 < minT)
-	  return false;
+	  return -1;
 
-	z1 = rp.z + t1 * rd.z;
-	z2 = rp.z + t2 * rd.z;
+	z1 = rp.z + t1 * rdz;
+	z2 = rp.z + t2 * rdz;
 
 	t1bad = (t1 < minT || z1 < 0.0 || z1 > 1.0);
 	t2bad = (t2 < minT || z2 < 0.0 || z2 > 1.0);
 
 	if (t1bad && t2bad) {
-	    return false;
+	    return -1;
 	} else if (t1bad) {
-	    intersection.t = t2;
+	    return t2;
 	} else if (t2bad) {
-	    intersection.t = t1;
+	    return t1;
 	} else {
-	    intersection.t = (t1 < t2) ? t1 : t2;
+	    return (t1 < t2) ? t1 : t2;
 	}
+    }
 
-	if (all) {
-	    Point3d ipoint = intersection.getHitPoint();
-	    Vector3d inorm = intersection.getNormal();
-
-	    ipoint.scale(intersection.t, rd);
-	    ipoint.add(rp);
-
-	    inorm.set(ipoint.x, ipoint.y, 0);
-	    inorm.normalize();
-
-	    uvTube(intersection);
-	}
+    /** hit point and normal at distance t along the normalized direction
+     *  of r, on the tube
+     */
+    private void fillTube(Ray r, ISect intersection, double dlen, double t)
+    {
+	Point3d ipoint = intersection.getHitPoint();
+	Vector3d inorm = intersection.getNormal();
 
-	intersection.t /= dlen;
+	setPoint(ipoint, r, dlen, t);
 
-	return true;
+	inorm.set(ipoint.x, ipoint.y, 0);
+	inorm.normalize();
     }
 
     private void uvTube(ISect intersection)
@@ -149,95 +219,66 @@ class Cylinder extends Shape
     }
 
 
-    private boolean hitCap0(Ray r, ISect intersection, boolean all,
-			    double minT)
+    /** distance to the cap at z (0 or 1) along the normalized direction
+     *  of r (of length dlen), or -1 if it is not hit
+     */
+    private double hitCap(Ray r, double dlen, double minT, int z)
     {
-	double pz, dz, t, dlen;
+	double pz, dz, t, x, y;
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
+	Vector3d dir = r.getDirection();
+	double norm = 1.0 / dlen;
 
 	pz = rp.z;
-	dz = rd.z;
+	dz = dir.z * norm;
 
 	if (dz == 0.0)
-	  return false;
+	  return -1;
 
-	t = -pz / dz;
+	t = (z == 0) ? -pz / dz : (1 - pz) / dz;
 
 	if (t < minT)
-	  return false;
+	  return -1;
 
-	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	x = t * (dir.x * norm) + rp.x;
+	y = t * (dir.y * norm) + rp.y;
 
-	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
+	if (x * x + y * y <= 1.0)
+	  return t;
 
-	    if (all) {
-		intersection.getNormal().set(0, 0, -1);
-		
-		uvPlane(intersection, 0, 1);
-	    }
-	} else {
-	    return false;
-	}
+	return -1;
+    }
 
-	return true;
+    /** hit point and normal at distance t along the normalized direction
+     *  of r, on the cap at z (0 or 1)
+     */
+    private void fillCap(Ray r, ISect intersection, double dlen, double t,
+			 int z)
+    {
+	setPoint(intersection.getHitPoint(), r, dlen, t);
+	intersection.getNormal().set(0, 0, z == 0 ? -1 : 1);
     }
 
-    private boolean hitCap1(Ray r, ISect intersection, boolean all, 
-			    double minT)
+    /** set p to the point at distance t along the normalized direction of
+     *  r (of length dlen)
+     */
+    private static void setPoint(Point3d p, Ray r, double dlen, double t)
     {
-	double pz, dz, t, dlen;
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
-
-	pz = rp.z;
-	dz = rd.z;
+	Vector3d dir = r.getDirection();
+	double norm = 1.0 / dlen;
 
-	if (dz == 0.0)
-	  return false;
-
-	t = (1 - pz) / dz;
-
-	if (t < minT)
-	  return false;
-
-	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
-
-	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
-
-	    if (all) {
-		intersection.getNormal().set(0, 0, 1);
-		
-		uvPlane(intersection, 0, 1);
-	    }
-	} else {
-	    return false;
-	}
-
-	return true;
+	p.set(t * (dir.x * norm) + rp.x,
+	      t * (dir.y * norm) + rp.y,
+	      t * (dir.z * norm) + rp.z);
     }
 
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((component(ipoint, x)+1.0)/2);
+	intersection.setV((component(ipoint, y)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
@@ -246,4 +287,10 @@ class Cylinder extends Shape
 				   y == 1 ? 1 : 0,
 				   y == 2 ? 1 : 0);
     }
+
+    /** coordinate of v along an axis (0, 1 or 2) */
+    private static double component(Tuple3d v, int axis)
+    {
+	return axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+    }
 }
@@ -0,0 +1,181 @@
+/* class FrameRenderer
+ * Renders the frames of an animation (Trace -frames a..b) as a numbered
+ * sequence of images: frame f is written to the output file name with f
+ * inserted before its extension, in 4 digits (out0012.ppm).
+ *
+ * Up to -jobs frames are rendered at a time, each by its own copy of
+ * the scene (read once, and moved from frame to frame: the hierarchy
+ * is refitted rather than rebuilt), so the memory used does not grow
+ * with the number of frames.  The frames share one pool of threads,
+ * which also renders their tiles (see BatchRenderer).
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.text.ParseException;
+import java.util.concurrent.*;
+
+class FrameRenderer
+{
+    TraceOptions options;
+
+    // Next frame to render, and frames rendered and failed
+    int nextFrame;
+    int renderedCount = 0;
+    int failedCount = 0;
+    boolean warned = false;
+
+    //------------------------------------------------------------------------
+
+    public FrameRenderer(TraceOptions newOptions)
+    {
+        options = newOptions;
+        nextFrame = options.firstFrame;
+    }
+
+    /** render every frame, and print how long each one took */
+    public void run()
+    {
+        int threads = Math.max(1, options.threads);
+        int frameCount = options.lastFrame - options.firstFrame + 1;
+        int jobCount = Math.min(options.jobCount, frameCount);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        options.pool = pool;
+
+        if (options.verbose)
+          System.out.println("Rendering frames " + options.firstFrame +
+                             " to " + options.lastFrame + ", " + jobCount +
+                             " at a time on " + threads + " threads");
+
+        final FrameTask[] tasks = new FrameTask[jobCount];
+        for (int j = 0; j < jobCount; j++)
+          tasks[j] = new FrameTask();
+
+        long start = System.currentTimeMillis();
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        long elapsed = System.currentTimeMillis() - start;
+        pool.shutdown();
+
+        if (options.verbose) {
+            System.out.println("Done: " + renderedCount + " frames in " +
+                               String.format("%.2f", elapsed / 1000.0) + " s");
+            if (failedCount > 0)
+              System.out.println(failedCount + " frames failed");
+        }
+    }
+
+    /** the file a frame is written to: the output file name, with the
+     *  frame number inserted before the extension
+     */
+    static String getFrameName(String outputFileName, int frame)
+    {
+        String number = String.format("%04d", frame);
+
+        int dot = outputFileName.lastIndexOf('.');
+        if (dot <= outputFileName.lastIndexOf(File.separatorChar))
+          return outputFileName + number;
+        return outputFileName.substring(0, dot) + number +
+            outputFileName.substring(dot);
+    }
+
+    /** what went wrong reading a scene (as Trace reports it) */
+    private static String describe(Throwable e)
+    {
+        if (e instanceof InvocationTargetException)
+          e = ((InvocationTargetException)e).getTargetException();
+        if (e instanceof ParseException)
+          return e.getMessage() + " in line " +
+              ((ParseException)e).getErrorOffset();
+        return String.valueOf(e);
+    }
+
+    /** the next frame to render (-1 once there are none left) */
+    private synchronized int takeFrame()
+    {
+        if (nextFrame > options.lastFrame)
+          return -1;
+        return nextFrame++;
+    }
+
+    /** say once that the frames are all the same */
+    private synchronized void warnStill()
+    {
+        if (options.verbose && !warned)
+          System.out.println("Nothing moves in " + options.inputFileName +
+                             ": the frames are all the same");
+        warned = true;
+    }
+
+    /** count a frame (rendered in milliseconds, or failed with an error
+     *  message) and print it
+     */
+    private synchronized void report(int frame, String outputName,
+                                     long milliseconds, String error)
+    {
+        if (error == null)
+          renderedCount++;
+        else
+          failedCount++;
+
+        if (error != null)
+          System.err.println("  frame " + frame + " failed: " + error);
+        else if (options.verbose)
+          System.out.printf("  frame %-6d %8d ms  %s%n", frame, milliseconds,
+                            outputName);
+    }
+
+    /** reads a copy of the scene, and renders frames with it until there
+     *  are none left
+     */
+    private class FrameTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected void compute()
+        {
+            Scene scene;
+            try {
+                scene = options.readScene(options.inputFileName, null);
+            } catch (Exception e) {
+                // (The frames left would fail the same way)
+                int frame;
+                while ((frame = takeFrame()) >= 0)
+                  report(frame, null, 0, "could not read the scene (" +
+                         describe(e) + ")");
+                return;
+            }
+
+            if (!scene.isAnimated())
+              warnStill();
+
+            int frame;
+            while ((frame = takeFrame()) >= 0) {
+                String outputName = getFrameName(options.outputFileName, frame);
+
+                long start = System.currentTimeMillis();
+                try {
+                    scene.setFrame(frame);
+                    scene.setSnapshots(outputName, options.snapshotSeconds,
+                                       options.snapshotPasses);
+                    scene.setOutputFile(options.mapped ? outputName : null,
+                                        options.resume);
+
+                    RGBImage image = scene.render(options.width,
+                                                  options.height, false);
+                    if (image != null)
+                      image.writeAtomically(outputName);
+                    scene.setImage(null);
+
+                    report(frame, outputName,
+                           System.currentTimeMillis() - start, null);
+                } catch (Exception e) {
+                    report(frame, outputName, 0, e.toString());
+                }
+            }
+        }
+    }
+}
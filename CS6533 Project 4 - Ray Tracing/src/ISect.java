@@ -28,6 +28,11 @@ public class ISect
     Vector3d dPdU = new Vector3d();
     Vector3d dPdV = new Vector3d();
 
+    // size of the area of the surface that the ray stands for, along U
+    // and V (in texture coordinates; 0 for a single point)
+    double footprintU = 0.0;
+    double footprintV = 0.0;
+
     //------------------------------------------------------------------------
     // accessors
 
@@ -39,6 +44,8 @@ public class ISect
     double    getV()         { return v; }
     Vector3d  getDpDu()      { return dPdU; }
     Vector3d  getDpDv()      { return dPdV; }
+    double    getFootprintU() { return footprintU; }
+    double    getFootprintV() { return footprintV; }
     
     void setT(double newT)           { t = newT; }
     void setHitObject(Shape obj)     { hitObject = obj; }
@@ -60,6 +67,16 @@ public class ISect
 
         dPdU.set(other.dPdU);
         dPdV.set(other.dPdV);
+
+        footprintU = other.footprintU;
+        footprintV = other.footprintV;
+    }
+
+    // Forget the intersection (so the same object can be used again)
+    void clear()
+    {
+        hitObject = null;
+        t = 0.0;
     }
 
     public String toString()
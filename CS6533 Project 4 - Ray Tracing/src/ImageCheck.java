@@ -0,0 +1,149 @@
+/* class ImageCheck
+ * Checks that the reference scenes still render the same images: each
+ * one is rendered at 64x64 and the SHA-1 hash of the PPM file written
+ * is compared with the hash recorded here.  The settings that must not
+ * change the image (threads, culling, a mapped output file) are
+ * compared with the default image as well.
+ *
+ *   java ImageCheck          check every scene, in every setting
+ *   java ImageCheck -print   print the hashes of the images rendered now
+ *                            (to record them here, after a change that
+ *                            is meant to change the images)
+ *
+ * Exits with status 1 if an image differs.
+ */
+import java.io.*;
+import java.util.*;
+
+class ImageCheck
+{
+    static final int SIZE = 64;
+
+    // Scenes, and the hashes of their images with the default settings
+    // and with bilinear texture filtering (the images of the textured
+    // scenes before mipmapping); easycamera is easy seen by a camera away
+    // from the origin, with a sphere between the eye and the origin
+    static final String[][] images = {
+        { "easy",
+          "6f0c5a695d1305c61217df0122793566653766df",
+          "6f0c5a695d1305c61217df0122793566653766df" },
+        { "hard",
+          "81fcf83d5cf825176c7b377094bb39af08f6a0e2",
+          "81fcf83d5cf825176c7b377094bb39af08f6a0e2" },
+        { "hardchecker",
+          "86e1fc79dc9612c4f716cf8d008d418556f841a9",
+          "86e1fc79dc9612c4f716cf8d008d418556f841a9" },
+        { "easytex",
+          "5bfbbe5b0a1cdd68bc0354024284ff1a3ffdd448",
+          "b14c01a7efa11d735eeed67e2867e30a8011cb26" },
+        { "custom2",
+          "994a378a62a0fa84cdb26ec56f7997005a500bd9",
+          "c0bd432ca356daadb249be30d49c4d9c72de6ef2" },
+        { "custom3",
+          "c825401d0154419498fc4099069529493da60ee5",
+          "a5f57fc02fb22d9bbe8c97f788308685ed0e6760" },
+        { "easycamera",
+          "b938f839abdd0ac35ea725b2acf3f9f0375f9009",
+          "b938f839abdd0ac35ea725b2acf3f9f0375f9009" },
+    };
+
+    // Settings that give the same image as the default ones
+    static final String[][] sameAsDefault = {
+        { "-threads", "4" },
+        { "-cull", "none" },
+        { "-cull", "box" },
+        { "-mmap" },
+    };
+
+    public static void main(String arguments[])
+    {
+        boolean print = arguments.length > 0 && arguments[0].equals("-print");
+
+        Trace.verbose = false;
+        boolean failed = false;
+        try {
+            for (int i = 0; i < images.length; i++) {
+                String name = images[i][0];
+
+                String image = hash(name, new String[0]);
+                String bilinear = hash(name, new String[] {
+                    "-texfilter", "bilinear" });
+                if (print) {
+                    System.out.printf("        { \"%s\",%n          \"%s\",%n" +
+                                      "          \"%s\" },%n",
+                                      name, image, bilinear);
+                    continue;
+                }
+
+                failed |= !check(name, "default", image, images[i][1]);
+                failed |= !check(name, "-texfilter bilinear", bilinear,
+                                 images[i][2]);
+                for (int s = 0; s < sameAsDefault.length; s++)
+                  failed |= !check(name, join(sameAsDefault[s]),
+                                   hash(name, sameAsDefault[s]), images[i][1]);
+            }
+        } catch (Exception e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+
+        if (!print)
+          System.out.println(failed ? "FAILED" : "All images are the same");
+        System.exit(failed ? 1 : 0);
+    }
+
+    /** print how an image compares with the one expected, and return
+     *  true if it is the same
+     */
+    static boolean check(String name, String settings, String image,
+                         String expected)
+    {
+        boolean same = image.equals(expected);
+        System.out.printf("%-12s %-22s %s%n", name, settings,
+                          same ? "ok" : "DIFFERS (" + image + ")");
+        return same;
+    }
+
+    /** render a scene with extra settings, and return the hash of the
+     *  PPM file written
+     */
+    static String hash(String name, String[] settings) throws Exception
+    {
+        File output = File.createTempFile("check", ".ppm");
+        File journal = new File(output.getPath() + ".journal");
+        try {
+            String[] arguments = {
+                name, "-res", "" + SIZE, "" + SIZE, "-out", output.getPath(),
+                "-nocache", "-quiet" };
+            Vector<String> all = new Vector<String>(Arrays.asList(arguments));
+            all.addAll(Arrays.asList(settings));
+
+            TraceOptions options =
+                new TraceOptions(all.toArray(new String[all.size()]));
+            Scene scene = options.readScene(name, null);
+
+            // (A mapped output file is written while rendering)
+            RGBImage image = scene.render(SIZE, SIZE, false);
+            if (image != null)
+              image.write(output.getPath());
+            scene.shutdown();
+
+            StringBuilder hex = new StringBuilder();
+            byte[] digest = Scene.fileHash(output.getPath());
+            for (int i = 0; i < digest.length; i++)
+              hex.append(String.format("%02x", digest[i] & 0xff));
+            return hex.toString();
+        } finally {
+            output.delete();
+            journal.delete();
+        }
+    }
+
+    static String join(String[] words)
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < words.length; i++)
+          s.append(i > 0 ? " " : "").append(words[i]);
+        return s.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/* class Instance
+ * A placement of a prototype (a set of shapes defined once, or any
+ * named shape).  All instances of a prototype share its shapes and
+ * their hierarchies; only the matrices belong to the instance.
+ */
+import java.io.*;
+import javax.vecmath.*;
+import java.text.ParseException;
+import java.lang.reflect.*;
+
+class Instance extends Shape
+{
+    public static String keyword = "instance";
+
+    // Name of the prototype (or shape) being placed
+    String objectName = null;
+
+    // The prototype (resolved when the instance is added to the scene)
+    Prototype prototype = null;
+
+    /** constructor from tokenizer */
+    public Instance(StreamTokenizer tokenizer)
+	throws ParseException, IOException, NoSuchMethodException,
+	       ClassNotFoundException,IllegalAccessException,
+	       InvocationTargetException
+
+    {
+	super(tokenizer);
+
+	addSpec("object", "setObjectName", "java.lang.String");
+
+	read(tokenizer);
+
+	if (objectName == null)
+	    throw new ParseException("Instance without an object",
+				     tokenizer.lineno());
+    }
+
+    // -----------------------------------------------------------------------
+
+    public String    getObjectName() { return objectName; }
+    public Prototype getPrototype()  { return prototype; }
+
+    public void setObjectName(String newName)   { objectName = newName; }
+    public void setPrototype(Prototype newProto) { prototype = newProto; }
+
+    /** true if the instance replaces the materials of the prototype */
+    public boolean hasOwnMaterial() { return materialName.length() != 0; }
+
+    /** computes the closest ray intersection with the prototype; the
+     *  hit object is the shape of the prototype that was hit, unless the
+     *  instance specifies its own material
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	if (!prototype.hit(r, intersection, all, minT))
+	    return false;
+
+	if (hasOwnMaterial())
+	    intersection.setHitObject(this);
+
+	return true;
+    }
+
+    /** bounds of the prototype */
+    void getLocalBounds(BoundingBox box)
+    {
+	box.clear();
+	box.extend(prototype.getBounds());
+    }
+}
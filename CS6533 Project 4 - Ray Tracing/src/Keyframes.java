@@ -0,0 +1,94 @@
+/* class Keyframes
+ * A translation, rotation or scale that changes from frame to frame: its
+ * value is given at some frames (the keys), interpolated linearly in
+ * between, and held before the first key and after the last.
+ */
+import java.util.*;
+import javax.vecmath.*;
+
+class Keyframes
+{
+    // Kinds of transformation
+    static final int TRANSLATE = 0;
+    static final int ROTATE    = 1;
+    static final int SCALE     = 2;
+
+    int type;
+
+    // Axis of a rotation (its keys are angles, in degrees)
+    Vector3d axis = null;
+
+    // Frame of each key (in increasing order), and the value there (a
+    // vector, or an angle in x)
+    Vector<Double>   frames = new Vector<Double>();
+    Vector<Vector3d> values = new Vector<Vector3d>();
+
+    //------------------------------------------------------------------------
+
+    public Keyframes(int newType, Vector3d newAxis)
+    {
+        type = newType;
+        axis = newAxis;
+    }
+
+    /** add a key after the others (returns false if its frame is not
+     *  after theirs)
+     */
+    public boolean addKey(double frame, Vector3d value)
+    {
+        if (!frames.isEmpty() && frame <= frames.lastElement().doubleValue())
+          return false;
+
+        frames.addElement(frame);
+        values.addElement(value);
+        return true;
+    }
+
+    public int getKeyCount() { return frames.size(); }
+
+    /** set m to the transformation at a frame */
+    public void getMatrix(double frame, Matrix4d m)
+    {
+        Vector3d value = new Vector3d();
+        interpolate(frames, frame, values, value);
+
+        m.setIdentity();
+        switch (type) {
+          case TRANSLATE:
+            m.setTranslation(value);
+            break;
+          case ROTATE:
+            m.setRotation(new AxisAngle4d(axis, value.x * Math.PI / 180));
+            break;
+          default:
+            m.setElement(0, 0, value.x);
+            m.setElement(1, 1, value.y);
+            m.setElement(2, 2, value.z);
+        }
+    }
+
+    /** set result to the value at a frame, of values given at keyFrames
+     *  (in increasing order): interpolated linearly between the keys
+     *  around it, or the value of the nearest key outside of them
+     */
+    static void interpolate(Vector<Double> keyFrames, double frame,
+                            Vector<? extends Tuple3d> values, Tuple3d result)
+    {
+        int next = 0;
+        while (next < keyFrames.size() &&
+               keyFrames.elementAt(next).doubleValue() <= frame)
+          next++;
+
+        if (next == 0) {
+            result.set(values.firstElement());
+        } else if (next == keyFrames.size()) {
+            result.set(values.lastElement());
+        } else {
+            double f0 = keyFrames.elementAt(next - 1).doubleValue();
+            double f1 = keyFrames.elementAt(next).doubleValue();
+            result.interpolate(values.elementAt(next - 1),
+                               values.elementAt(next),
+                               (frame - f0) / (f1 - f0));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/* class LeakCheck
+ * Checks that a scene that has been rendered can be garbage-collected
+ * once it is dropped, while the threads that rendered it keep running:
+ * scenes with a mesh and an instance are rendered on a pool shared by
+ * all of them (as -batch does), then dropped.
+ *
+ *   java LeakCheck
+ *
+ * Exits with status 1 if a scene is still reachable.
+ */
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class LeakCheck
+{
+    static final int SCENES = 3;
+
+    static final String scene =
+        "camera {\n   eye = (0 0 10)\n   look = (0 0 -1)\n" +
+        "   up = (0 1 0)\n   fovy = 45\n}\n" +
+        "material {\n   name = m\n   ka = (0.2 0.2 0.2)\n" +
+        "   kd = (0.8 0.8 0.8)\n   ks = (0 0 0)\n}\n" +
+        "light {\n   position = (4 5 10)\n   color = (1 1 1)\n}\n" +
+        "mesh {\n   file = \"%s\"\n   material = m\n}\n" +
+        "define { pair }\n  sphere { material = m }\n" +
+        "  push {}\n    translate { (2 0 0) }\n" +
+        "    sphere { material = m }\n  pop {}\nend {}\n" +
+        "push {}\n  translate { (0 -3 0) }\n" +
+        "  instance { object = pair }\npop {}\n";
+
+    public static void main(String arguments[])
+    {
+        Trace.verbose = false;
+        ForkJoinPool pool = new ForkJoinPool(3);
+        Vector<WeakReference<Scene>> scenes =
+            new Vector<WeakReference<Scene>>();
+        try {
+            File mesh = File.createTempFile("check", ".obj");
+            File file = File.createTempFile("check", ".ray");
+            try {
+                PrintWriter out = new PrintWriter(new FileWriter(mesh));
+                out.println("v -2 -2 0\nv 2 -2 0\nv 0 2 0\nf 1 2 3");
+                out.close();
+                out = new PrintWriter(new FileWriter(file));
+                out.printf(scene, mesh.getPath());
+                out.close();
+
+                for (int i = 0; i < SCENES; i++) {
+                    TraceOptions options = new TraceOptions(new String[] {
+                        file.getPath(), "-threads", "3", "-nocache",
+                        "-quiet" });
+                    Scene s = options.readScene(file.getPath(), null);
+                    s.setPool(pool);
+                    s.render(64, 64, false);
+                    scenes.addElement(new WeakReference<Scene>(s));
+
+                    // (So the mesh is only held by the scene)
+                    synchronized (Mesh.loaded) {
+                        Mesh.loaded.clear();
+                    }
+                }
+            } finally {
+                mesh.delete();
+                file.delete();
+            }
+
+            // (The parser keeps the last scene it read)
+            new Parser(new Scene());
+        } catch (Exception e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        int reachable = 0;
+        for (int i = 0; i < scenes.size(); i++)
+          if (scenes.elementAt(i).get() != null)
+            reachable++;
+        System.out.println(reachable + " of " + SCENES +
+                           " rendered scenes still reachable " +
+                           (reachable > 0 ? "FAILED" : "ok"));
+        System.exit(reachable > 0 ? 1 : 0);
+    }
+}
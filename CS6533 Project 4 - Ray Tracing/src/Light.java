@@ -28,6 +28,11 @@ class Light extends RaytracerObject
     //    - ambient light is not attenuated
     Vector3d attenuation = new Vector3d(1.0, 0.0, 0.0);
 
+    // Keyframed transformation of a light that moves (null if it does
+    // not), and its position or direction before it
+    Animation animation  = null;
+    Tuple3d   local      = null;
+
     //------------------------------------------------------------------------
 
     /** constructor that reads the content of the object from the tokenizer */
@@ -62,6 +67,37 @@ class Light extends RaytracerObject
         }
     }
 
+    /** make the light follow an animation, placing it where it is at a
+     *  frame
+     */
+    public void setAnimation(Animation newAnimation, double frame)
+    {
+        animation = newAnimation;
+        if (isDirectional())
+          local = new Vector3d(direction);
+        else
+          local = new Point3d(position);
+
+        setFrame(frame);
+    }
+
+    /** move the light to where it is at a frame (if it moves) */
+    public void setFrame(double frame)
+    {
+        if (animation == null)
+          return;
+
+        Matrix4d m = new Matrix4d();
+        animation.getMatrix(frame, m);
+        if (isDirectional()) {
+            direction.set(local);
+            m.transform(direction);
+        } else {
+            position.set(local);
+            m.transform(position);
+        }
+    }
+
     //------------------------------------------------------------------------
 
     // accessors
@@ -132,31 +168,55 @@ class Light extends RaytracerObject
      * The tint does not affect the ambient light.
      */
     Vector3d compute(ISect intersection, Vector3d tint, Ray r)
+    {
+        Vector3d colorResult = new Vector3d();
+        compute(intersection, tint, r, new RayContext(0), colorResult);
+        return colorResult;
+    }
+
+    /** same as compute() above, but stores the color in colorResult and
+     *  uses the vectors of a ray context as temporaries (so nothing gets
+     *  allocated)
+     */
+    void compute(ISect intersection, Vector3d tint, Ray r, RayContext ctx,
+                 Vector3d colorResult)
     {
         // Material for this object
         Material mat = intersection.getHitObject().getMaterialRef();
-        Vector3d colorResult = new Vector3d(0.0,0.0,0.0);
+        colorResult.set(0.0,0.0,0.0);
         
         // adding bump map
         if (mat.hasBumpmap())
         {
-        	intersection.normal = mat.getBumpmapNormal(intersection.getU(), intersection.getV());
-        	//System.out.println(intersection.normal);
+        	mat.getBumpmapNormal(intersection.getU(), intersection.getV(),
+        	                     intersection.getFootprintU(),
+        	                     intersection.getFootprintV(), intersection.normal);
+        }
+        
+        // T(u,v)
+        Vector3d texel = ctx.texel;
+        if (mat.hasTexture())
+        {
+        	mat.getTextureColor(intersection.getU(), intersection.getV(),
+        	                    intersection.getFootprintU(),
+        	                    intersection.getFootprintV(), texel);
         }
         
         /////////////////////////////////////////////////// AMBIENT
-        Vector3d ambientComponent = new Vector3d(this.getColor());
+        Vector3d ambientComponent = ctx.ambient;
+        ambientComponent.set(this.getColor());
         Tools.termwiseMul3d(ambientComponent, mat.getKa());
         if (mat.hasTexture())
         {
-        	Tools.termwiseMul3d(ambientComponent, mat.getTextureColor(intersection.getU(), intersection.getV()));
+        	Tools.termwiseMul3d(ambientComponent, texel);
         }
         
         ambientComponent.clampMax(1.0); 
         colorResult.add(ambientComponent);
         
         /////////////////////////////////////////////////// DIFFUSE
-        Vector3d diffuseComponent = new Vector3d(this.getColor());
+        Vector3d diffuseComponent = ctx.diffuse;
+        diffuseComponent.set(this.getColor());
 
         //attenuation
         double _attenuation = calculateAttenuation(this.getPosition(), intersection.getHitPoint());
@@ -171,25 +231,25 @@ class Light extends RaytracerObject
         // T(u,v)
         if (mat.hasTexture())
         {
-        	Tools.termwiseMul3d(diffuseComponent, mat.getTextureColor(intersection.getU(), intersection.getV()));
+        	Tools.termwiseMul3d(diffuseComponent, texel);
         }
                 
         // max(0, n dot l)
-        Vector3d l = null;
+        Vector3d l = ctx.toLight;
         if (this.isDirectional())
         {
-        	l = new Vector3d(this.getDirection());
+        	l.set(this.getDirection());
         }
         else
         {
-        	l = new Vector3d();
         	l.x = this.getPosition().x - intersection.getHitPoint().x;
         	l.y = this.getPosition().y - intersection.getHitPoint().y;
         	l.z = this.getPosition().z - intersection.getHitPoint().z;
         }
         l.normalize();
         
-        Vector3d n = new Vector3d(intersection.getNormal());
+        Vector3d n = ctx.surfaceNormal;
+        n.set(intersection.getNormal());
         n.normalize();
         double ndotl = n.dot(l);
         diffuseComponent.scale(Math.max(0.0, ndotl));
@@ -200,7 +260,8 @@ class Light extends RaytracerObject
         /////////////////////////////////////////////////// SPECULAR
         if (ndotl >= 0)
         {
-	        Vector3d specularComponent = new Vector3d(this.getColor());
+	        Vector3d specularComponent = ctx.specular;
+	        specularComponent.set(this.getColor());
 	        
 	        // attenuation
 	        specularComponent.scale(_attenuation);
@@ -212,24 +273,19 @@ class Light extends RaytracerObject
 	        Tools.termwiseMul3d(specularComponent, mat.getKs());
 	        
 	        // max(0, r dot v) ^ alpha
-	        Vector3d rtmp = new Vector3d();
+	        Vector3d rtmp = ctx.reflected;
 	        Tools.reflect(rtmp, l, intersection.getNormal());
 	        rtmp.normalize();
 	        
-	        Vector3d v = new Vector3d(r.getDirection());
+	        Vector3d v = ctx.view;
+	        v.set(r.getDirection());
             v.normalize();
             double tmp = rtmp.dot(v);
             specularComponent.scale(Math.pow(Math.max(0, tmp), mat.getShiny()));
 	        
 	        specularComponent.clampMax(1.0);
 	        colorResult.add(specularComponent);
-	        
-	        specularComponent = null;
         }
-        ambientComponent = null;
-        diffuseComponent = null;
-
-        return colorResult;
     }
     
     // Light attenuation (Kc, Kl, Kq); default has no attenuation
@@ -0,0 +1,183 @@
+/* class MappedImage
+ * PPM output file that is written tile by tile while the image is
+ * rendered: the file is created at its full size and mapped into memory,
+ * and each finished tile is copied straight into it (so the whole image
+ * is never held in memory).
+ *
+ * Finished tiles are recorded in a journal next to the file
+ * (<file>.journal), after their pixels.  If the program stops before
+ * the image is done, the journal tells which tiles can be kept when the
+ * same render is resumed.  It is deleted once every tile is written.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+class MappedImage
+{
+    int width, height;
+
+    // Image file, and where its pixels start (after the header)
+    String fileName;
+    RandomAccessFile file;
+    long dataOffset;
+
+    // Mappings of the pixels, rowsPerBand rows each (top row first, as in
+    // the file; a single mapping cannot cover more than 2GB)
+    MappedByteBuffer[] bands;
+    int rowsPerBand;
+
+    // Journal: first line describes the render, then one line per
+    // finished tile (its index)
+    String journalName;
+    OutputStream journal;
+    BitSet done = new BitSet();
+
+    //------------------------------------------------------------------------
+
+    /** open the output file for an image of size width X height, split
+     *  into tileCount tiles; signature describes the render (the scene and
+     *  everything that changes its pixels)
+     *
+     * If resume is true, and the file and its journal are from a render
+     * with the same signature, the tiles recorded in the journal are kept
+     * (see isDone()).  Otherwise, every tile is rendered anew.
+     */
+    public MappedImage(String newFileName, int newWidth, int newHeight,
+                       int tileCount, String signature, boolean resume)
+        throws IOException
+    {
+        fileName = newFileName;
+        journalName = fileName + ".journal";
+        width = newWidth;
+        height = newHeight;
+
+        byte[] header = ("P6" + '\n' + width + " " + height + '\n' +
+                         "255" + '\n').getBytes();
+        dataOffset = header.length;
+        long length = dataOffset + 3L * width * height;
+
+        if (resume && new File(fileName).length() == length)
+          readJournal(signature, tileCount);
+
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(length);
+        file.write(header);
+
+        // Map the pixels, in bands of whole rows
+        FileChannel channel = file.getChannel();
+        long rowBytes = 3L * width;
+        rowsPerBand = (int)Math.max(1, Math.min(height, (1L << 30) / rowBytes));
+        bands = new MappedByteBuffer[(height + rowsPerBand - 1) / rowsPerBand];
+        for (int b = 0; b < bands.length; b++) {
+            int rows = Math.min(rowsPerBand, height - b * rowsPerBand);
+            bands[b] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                   dataOffset + b * rowsPerBand * rowBytes,
+                                   rows * rowBytes);
+        }
+
+        // Start the journal over, with the tiles that are kept (so a
+        // record cut short by a crash does not stay in it)
+        journal = new FileOutputStream(journalName);
+        StringBuilder records = new StringBuilder(signature + '\n');
+        for (int t = done.nextSetBit(0); t >= 0; t = done.nextSetBit(t + 1))
+          records.append(t).append('\n');
+        journal.write(records.toString().getBytes());
+    }
+
+    /** read the tiles recorded in the journal (none unless it is for the
+     *  same render)
+     */
+    private void readJournal(String signature, int tileCount)
+    {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(journalName));
+            try {
+                if (!signature.equals(in.readLine()))
+                  return;
+
+                // (Only complete lines are records)
+                String line;
+                while ((line = in.readLine()) != null) {
+                    try {
+                        int t = Integer.parseInt(line);
+                        if (t >= 0 && t < tileCount)
+                          done.set(t);
+                    } catch (NumberFormatException e) {
+                        // Cut short: ignore it
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // No journal: nothing to keep
+            done.clear();
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** true if a tile was kept from an earlier render */
+    public boolean isDone(Tile tile) { return done.get(tile.getIndex()); }
+
+    /** number of tiles kept from an earlier render */
+    public int getDoneCount() { return done.cardinality(); }
+
+    /** write the pixels of a finished tile (3 bytes per pixel, as they are
+     *  written to the file, row by row along the tile from its row y0),
+     *  then record it in the journal; called from any rendering thread
+     */
+    public void writeTile(Tile tile, byte[] pixels) throws IOException
+    {
+        int rowLength = 3 * tile.getWidth();
+
+        for (int j = tile.y0, n = 0; j < tile.y1; j++, n += rowLength) {
+            // (Rows are written from the top of the image down)
+            int row = height - 1 - j;
+            ByteBuffer band = bands[row / rowsPerBand].duplicate();
+            band.position(3 * ((row % rowsPerBand) * width + tile.x0));
+            band.put(pixels, n, rowLength);
+        }
+
+        synchronized (this) {
+            journal.write((tile.getIndex() + "\n").getBytes());
+            done.set(tile.getIndex());
+        }
+    }
+
+    /** make sure every pixel is on disk, close the file and delete the
+     *  journal (once every tile has been written)
+     */
+    public synchronized void close() throws IOException
+    {
+        for (int b = 0; b < bands.length; b++)
+          bands[b].force();
+        file.close();
+        journal.close();
+
+        new File(journalName).delete();
+    }
+
+    /** close the file and the journal, keeping the journal (when the
+     *  render stops before every tile is written, so that it can be
+     *  resumed); errors are ignored, as the render has failed already
+     */
+    public synchronized void abandon()
+    {
+        try {
+            for (int b = 0; b < bands.length; b++)
+              bands[b].force();
+        } catch (RuntimeException e) {
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+        }
+    }
+}
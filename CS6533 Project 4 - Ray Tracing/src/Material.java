@@ -32,13 +32,14 @@ class Material extends RaytracerObject
     // Shininess (exponent)
     double shininess   = 1.0;
     
-    // Texture image specification
+    // Texture image specification (the image is shared through the
+    // texture cache, and read when first needed)
     String textureFileName     = null;
-    RGBImage textureImage      = null;
+    TextureCache.Entry textureImage = null;
     
     // Bumpmap image specification
     String bumpmapFileName = null;
-    RGBImage bumpmapImage = null;
+    TextureCache.Entry bumpmapImage = null;
 
     // Texture repeating factors
     double textureScaleU       = 1.0;
@@ -106,16 +107,16 @@ class Material extends RaytracerObject
 	read(tokenizer);
     }
 
-    /** Set up materials (read in textures) */
+    /** Set up materials (find the textures in the texture cache) */
     public void setup(boolean verbose)
     {
-        // read the texture file
+        // find the texture file
         if (textureFileName != null) {
             try {
 				if (verbose)
-				  System.out.println("Loading texture " + textureFileName);
+				  System.out.println("Using texture " + textureFileName);
 		
-		                textureImage = new RGBImage(textureFileName);
+		                textureImage = TextureCache.lookup(SceneFiles.resolve(textureFileName));
 		            } catch (IOException E) {
 		                System.err.println("Error while reading file " + 
 						   textureFileName);
@@ -128,9 +129,9 @@ class Material extends RaytracerObject
         {
             try {
 				if (verbose)
-				  System.out.println("Loading bumpmap " + bumpmapFileName);
+				  System.out.println("Using bumpmap " + bumpmapFileName);
 		
-		                bumpmapImage = new RGBImage(bumpmapFileName);
+		                bumpmapImage = TextureCache.lookup(SceneFiles.resolve(bumpmapFileName));
 		            } catch (IOException E) {
 		                System.err.println("Error while reading file " + 
 		                		bumpmapFileName);
@@ -201,6 +202,50 @@ class Material extends RaytracerObject
     	}
     }
 
+    /** same as getTextureColor() above, but stores the color in c */
+    public void getTextureColor(double u, double v, Vector3d c)
+    {
+		getTextureColor(u, v, 0, 0, c);
+    }
+
+    /** same as getTextureColor() above, for a lookup whose footprint
+     *  spans du along u and dv along v (the image is filtered to match)
+     */
+    public void getTextureColor(double u, double v, double du, double dv,
+				Vector3d c)
+    {
+		if (checkerColor1 != null) {
+		    c.set(getCheckerColor(u,v));
+		} else if (textureImage != null) {
+		    textureImage.get().sample((u * textureScaleU) % 1,
+					(v * textureScaleV) % 1,
+					du * textureScaleU, dv * textureScaleV, c);
+		} else {
+		    // Illegal texture specification
+		    System.err.println("Unknown texture specification");
+		}
+    }
+
+    /** same as getBumpmapNormal() above, but stores the normal in n */
+    public void getBumpmapNormal(double u, double v, Vector3d n)
+    {
+    	getBumpmapNormal(u, v, 0, 0, n);
+    }
+
+    /** same as getBumpmapNormal() above, for a lookup whose footprint
+     *  spans du along u and dv along v
+     */
+    public void getBumpmapNormal(double u, double v, double du, double dv,
+				 Vector3d n)
+    {
+    	if (bumpmapImage != null)
+    		bumpmapImage.get().sample((u * bumpmapScaleU) % 1,
+    				    (v * bumpmapScaleV) % 1,
+    				    du * bumpmapScaleU, dv * bumpmapScaleV, n);
+    	else
+    		System.err.println("Unknown bumpmap specification");
+    }
+
     //------------------------------------------------------------------------
     // Texture image
 
@@ -251,14 +296,18 @@ class Material extends RaytracerObject
     /** returns the image color corresponding to the u, v coordinates */
     public Vector3d getTextureImageColor(double u, double v)
     {
-	return textureImage.getSubPixel((u * textureScaleU) % 1,
-					(v * textureScaleV) % 1);
+	Vector3d c = new Vector3d();
+	textureImage.get().sample((u * textureScaleU) % 1,
+			    (v * textureScaleV) % 1, 0, 0, c);
+	return c;
     }
     
     public Vector3d getBumpmapImageNormal(double u, double v)
     {
-    	return bumpmapImage.getSubPixel((u * bumpmapScaleU) % 1,
-					(v * bumpmapScaleV) % 1);
+	Vector3d n = new Vector3d();
+    	bumpmapImage.get().sample((u * bumpmapScaleU) % 1,
+			    (v * bumpmapScaleV) % 1, 0, 0, n);
+	return n;
     }
 
     //------------------------------------------------------------------------
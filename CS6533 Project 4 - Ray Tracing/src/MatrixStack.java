@@ -11,10 +11,15 @@ class MatrixStack
     Stack<Matrix4d> s = new Stack<Matrix4d>();
     Matrix4d topMatrix = new Matrix4d();
 
+    // Keyframed part of each matrix, applied before it (null if there
+    // is none): the transformation is the animation, then the matrix
+    Stack<Animation> animations = new Stack<Animation>();
+
     public MatrixStack()
     {
 	topMatrix.setIdentity();
 	s.push(topMatrix);
+	animations.push(null);
     }
 
     /** pushes a matrix on the stack. Multiplies the top matrix
@@ -27,29 +32,63 @@ class MatrixStack
 	throws EmptyStackException
     {
 	Matrix4d temp;
-       
+
 	if (newMatrix == null) {
 	    // it's a "push" delimiter
 	    temp = new Matrix4d((Matrix4d)s.peek());
 	    s.push(temp);
+	    animations.push(animations.peek());
 	} else {
 	    // it's real matrix (don't push -- just right multiply)
 	    temp = (Matrix4d)s.peek();
 	    temp.mul(newMatrix);
 	}
     }
-    
+
+    /** right multiplies the top of the stack by a keyframed
+	transformation (the top matrix becomes part of the animation, and
+	starts over from the identity)
+    */
+    public void animate( Keyframes keys )
+	throws EmptyStackException
+    {
+	Animation a = new Animation(animations.peek(), s.peek(), keys);
+	animations.set(animations.size() - 1, a);
+	s.peek().setIdentity();
+    }
+
     /** pops a matrix off the stack */
     public void pop()
 	throws EmptyStackException
     {
 	s.pop();
+	animations.pop();
     }
-    
-    /** returns a reference to the top matrix */
+
+    /** returns a reference to the top matrix (without its animation, if
+	it has one) */
     public Matrix4d peek()
 	throws EmptyStackException
     {
 	return (Matrix4d)s.peek();
     }
+
+    /** sets the top of the stack to the identity */
+    public void setIdentity()
+	throws EmptyStackException
+    {
+	s.peek().setIdentity();
+	animations.set(animations.size() - 1, null);
+    }
+
+    /** returns the top of the stack as an animation (null if it has no
+	keyframed transformation) */
+    public Animation peekAnimation()
+	throws EmptyStackException
+    {
+	Animation a = animations.peek();
+	if (a == null)
+	    return null;
+	return new Animation(a, s.peek(), null);
+    }
 }
@@ -0,0 +1,124 @@
+/* class Mesh
+ * Ray-object intersections for a triangle mesh read from an OBJ file
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+import java.text.ParseException;
+import java.lang.reflect.*;
+
+class Mesh extends Shape
+{
+    public static String keyword = "mesh";
+
+    // OBJ file with the triangles
+    String fileName = null;
+
+    // The triangles (null if the file could not be read)
+    TriangleMesh geometry = null;
+
+    // Meshes read so far, by canonical file name, least recently used
+    // first (meshes that use the same file share the triangles and their
+    // hierarchy, until the file changes); only the last maxLoaded files
+    // are kept (meshes still using a dropped one keep it)
+    static LinkedHashMap<String, LoadedFile> loaded =
+	new LinkedHashMap<String, LoadedFile>(16, 0.75f, true);
+    static int maxLoaded = 16;
+
+    /** the triangles of a file, as it was when read */
+    static class LoadedFile
+    {
+	TriangleMesh mesh;
+	long modified;
+
+	LoadedFile(TriangleMesh newMesh, long newModified)
+	{
+	    mesh = newMesh;
+	    modified = newModified;
+	}
+    }
+
+    /** constructor from tokenizer */
+    public Mesh(StreamTokenizer tokenizer)
+	throws ParseException, IOException, NoSuchMethodException,
+	       ClassNotFoundException,IllegalAccessException,
+	       InvocationTargetException
+
+    {
+	super(tokenizer);
+
+	addSpec("file", "setFileName", "java.lang.String");
+
+	read(tokenizer);
+
+	if (fileName == null)
+	    throw new ParseException("Mesh without a file",
+				     tokenizer.lineno());
+
+	try {
+	    geometry = load(fileName);
+	} catch (IOException E) {
+	    System.err.println("Error while reading file " + fileName +
+			       " (" + E.getMessage() + ")");
+	    geometry = null;
+	}
+    }
+
+    // -----------------------------------------------------------------------
+
+    /** read a mesh file, unless it was read already (and has not
+	changed since) */
+    static TriangleMesh load(String name)
+	throws IOException
+    {
+	name = SceneFiles.resolve(name);
+	File file = new File(name).getCanonicalFile();
+	String path = file.getPath();
+	long modified = file.lastModified();
+
+	synchronized (loaded) {
+	    LoadedFile entry = loaded.get(path);
+	    if (entry == null || entry.modified != modified) {
+		if (Trace.verbose)
+		    System.out.println("Loading mesh " + name);
+
+		entry = new LoadedFile(new TriangleMesh(name), modified);
+		loaded.put(path, entry);
+
+		// drop the files used least recently (this one is last)
+		Iterator<LoadedFile> i = loaded.values().iterator();
+		while (loaded.size() > maxLoaded && i.hasNext()) {
+		    i.next();
+		    i.remove();
+		}
+
+		if (Trace.verbose)
+		    System.out.println("  " + entry.mesh.getTriangleCount() +
+				       " triangles");
+	    }
+	    return entry.mesh;
+	}
+    }
+
+    public String getFileName() { return fileName; }
+    public void setFileName(String newName) { fileName = newName; }
+
+    /** computes the closest ray intersection with the triangles */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	if (geometry == null || !geometry.hit(r, intersection, all, minT))
+	    return false;
+
+	intersection.setHitObject(this);
+
+	return true;
+    }
+
+    /** bounds of the triangles (empty if there are none) */
+    void getLocalBounds(BoundingBox box)
+    {
+	box.clear();
+	if (geometry != null)
+	    box.extend(geometry.getBounds());
+    }
+}
@@ -0,0 +1,65 @@
+/* class PFMMerge
+ * Combines renders of the same image (written as PFM files, usually
+ * with different "-seed"s, on different machines) into one: their
+ * pixels are averaged, or added up with -sum.  The result is written as
+ * PFM, or as PPM (gamma corrected and clamped only then) if the output
+ * file name does not end in ".pfm".
+ *
+ *   java PFMMerge [-sum] -out <output> <input.pfm> ...
+ */
+class PFMMerge
+{
+    public static void main(String arguments[])
+    {
+        String outputFileName = null;
+        boolean sum = false;
+        int inputs = 0;
+        RGBImage result = null;
+
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-out")==0 && i+1 < arguments.length) {
+                outputFileName = arguments[++i];
+            } else if (arguments[i].compareTo("-sum")==0) {
+                sum = true;
+            } else if (arguments[i].charAt(0) == '-') {
+                printUsage();
+                System.exit(0);
+            } else {
+                RGBImage image = new RGBImage(1, 1);
+                image.read(arguments[i]);
+
+                if (result == null) {
+                    result = image;
+                } else if (image.getWidth() != result.getWidth() ||
+                           image.getHeight() != result.getHeight()) {
+                    System.err.println(arguments[i] + " is not " +
+                                       result.getWidth() + "x" +
+                                       result.getHeight());
+                    System.exit(-1);
+                } else {
+                    for (int n = 0; n < result.data.length; n++)
+                      result.data[n] += image.data[n];
+                }
+                inputs++;
+            }
+        }
+
+        if (outputFileName == null || result == null) {
+            printUsage();
+            System.exit(0);
+        }
+
+        if (!sum)
+          for (int n = 0; n < result.data.length; n++)
+            result.data[n] /= inputs;
+
+        result.write(outputFileName);
+    }
+
+    private static void printUsage()
+    {
+        System.out.println("Usage: ");
+        System.out.println("java PFMMerge [-sum] -out <output.pfm|output.ppm>" +
+                           " <input.pfm> ...");
+    }
+}
@@ -0,0 +1,148 @@
+/* class PPMBenchmark
+ * Times PPMReader against the line-by-line reader RGBImage used before
+ * (on LineInputStream), on the binary files given and on text (P3)
+ * copies of them, and checks that both read the same pixels.
+ *
+ *   java PPMBenchmark [file.ppm ...]     (default: the .ppm files here)
+ */
+import java.io.*;
+import java.util.*;
+
+class PPMBenchmark
+{
+    // Reads of each file timed (the fastest is reported), after as many
+    // to warm up
+    static final int RUNS = 5;
+
+    public static void main(String arguments[])
+    {
+        try {
+            Vector<String> files = new Vector<String>();
+            for (int i = 0; i < arguments.length; i++)
+              files.addElement(arguments[i]);
+            if (files.isEmpty()) {
+                String[] names = new File(".").list();
+                Arrays.sort(names);
+                for (int i = 0; i < names.length; i++)
+                  if (names[i].endsWith(".ppm"))
+                    files.addElement(names[i]);
+            }
+
+            System.out.println("file                      size    " +
+                               "binary: old     new   text: old     new");
+            for (int i = 0; i < files.size(); i++)
+              benchmark(files.elementAt(i));
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    /** time both readers on a file and on a text copy of it */
+    static void benchmark(String fileName) throws IOException
+    {
+        PPMReader image = new PPMReader(fileName);
+        File text = File.createTempFile("bench", ".ppm");
+        try {
+            writeText(image, text.getPath());
+
+            System.out.printf("%-20s %4dx%-4d    %6.2f  %6.2f     %6.2f  %6.2f ms%n",
+                              fileName, image.getWidth(), image.getHeight(),
+                              time(fileName, true), time(fileName, false),
+                              time(text.getPath(), true),
+                              time(text.getPath(), false));
+        } finally {
+            text.delete();
+        }
+    }
+
+    /** fastest time (in milliseconds) to read a file with the old or the
+     *  new reader
+     */
+    static double time(String fileName, boolean old) throws IOException
+    {
+        byte[] expected = new PPMReader(fileName).getPixels();
+        long best = Long.MAX_VALUE;
+
+        for (int run = 0; run < 2 * RUNS; run++) {
+            long start = System.nanoTime();
+            byte[] pixels = old ? readOld(fileName)
+                                : new PPMReader(fileName).getPixels();
+            long elapsed = System.nanoTime() - start;
+
+            if (!Arrays.equals(pixels, expected))
+              throw new IOException("Readers differ on " + fileName);
+            if (run >= RUNS)
+              best = Math.min(best, elapsed);
+        }
+
+        return best / 1e6;
+    }
+
+    /** write an image as text (P3), top row first */
+    static void writeText(PPMReader image, String fileName) throws IOException
+    {
+        int width = image.getWidth(), height = image.getHeight();
+        byte[] pixels = image.getPixels();
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+        out.println("P3");
+        out.println(width + " " + height);
+        out.println("255");
+        for (int j = height-1; j >= 0; j--) {
+            for (int n = 3 * j * width, end = n + 3 * width; n < end; n++)
+              out.print((pixels[n] & 0xff) + (n % 15 == 14 ? "\n" : " "));
+            out.println();
+        }
+        out.close();
+    }
+
+    //------------------------------------------------------------------------
+    // The old reader (header line by line, text one word at a time)
+
+    static byte[] readOld(String fileName) throws IOException
+    {
+        LineInputStream in = new LineInputStream(new FileInputStream(fileName));
+        try {
+            String magic = getsPPM(in);
+            boolean raw = magic.equals("P6");
+            if (!raw && !magic.equals("P3"))
+              throw new IOException("Not a PPM file");
+
+            String size = getsPPM(in);
+            int width = Integer.parseInt(size.substring(0,size.indexOf(' ')));
+            int height = Integer.parseInt(size.substring(size.indexOf(' ')+1));
+            if (Integer.parseInt(getsPPM(in)) != 255)
+              throw new IOException("Not a PPM file");
+
+            byte[] pixels = new byte[width * height * 3];
+            if (raw) {
+                byte brow[] = new byte[width*3];
+                for (int i=0; i < height; i++) {
+                    in.readdata(brow);
+                    System.arraycopy(brow, 0, pixels, 3 * (height-i-1) * width,
+                                     width*3);
+                }
+            } else {
+                for (int i=0; i < height; i++) {
+                    int n = 3 * (height-i-1) * width;
+                    for (int j=0; j < width*3; j++)
+                      pixels[n++] = (byte)Integer.parseInt(in.getw());
+                }
+            }
+            return pixels;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Read one line of the header, ignoring comments
+    static String getsPPM(LineInputStream in) throws IOException
+    {
+        String line;
+        do {
+            line = in.gets();
+        } while (line.charAt(0) == '#');
+
+        return line;
+    }
+}
@@ -0,0 +1,193 @@
+/* class PPMReader
+ * Reads PPM (color) and PGM (gray) images, in binary (P6, P5) or text
+ * (P3, P2) form.  The file is mapped into memory and decoded from there:
+ * binary rows are copied in one go, and numbers in text are scanned
+ * digit by digit (no strings are made).  Pixels end up as 3 bytes each
+ * (gray is copied to R, G and B), row by row with row 0 at the bottom of
+ * the image, as RGBImage and Texture store them.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+class PPMReader
+{
+    int width, height;
+
+    // Largest sample value in the file (samples are scaled to 0-255)
+    int maxValue;
+
+    // Pixels (R, G, B bytes)
+    byte[] pixels;
+
+    // Contents of the file, while it is read
+    private ByteBuffer buffer;
+
+    //------------------------------------------------------------------------
+
+    /** read an image file */
+    public PPMReader(String fileName) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+        } finally {
+            file.close();
+        }
+
+        try {
+            read();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("File read error");
+        } finally {
+            buffer = null;
+        }
+    }
+
+    public int    getWidth()  { return width; }
+    public int    getHeight() { return height; }
+    public byte[] getPixels() { return pixels; }
+
+    //------------------------------------------------------------------------
+
+    private void read() throws IOException
+    {
+        // Header: magic number, width, height and largest value
+        if (buffer.get() != 'P')
+          throw new IOException("Not a PPM file");
+        int format = buffer.get() - '0';
+        if (format < 2 || format > 6 || format == 4)
+          throw new IOException("Not a PPM file");
+
+        width    = readHeaderNumber();
+        height   = readHeaderNumber();
+        maxValue = readHeaderNumber();
+        if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 65535)
+          throw new IOException("Not a PPM file");
+
+        // (readNumber() has also read the single whitespace character
+        // between the header and binary data)
+        boolean binary = format >= 5;
+        int channels = (format == 3 || format == 6) ? 3 : 1;
+        long size = (long)width * height * 3;
+        if (size > Integer.MAX_VALUE)
+          throw new IOException("Not a PPM file");
+
+        // (Before anything is allocated: binary samples take 1 or 2
+        // bytes, and text ones at least a digit and a space, but the last)
+        long samples = (long)width * height * channels;
+        long needed = binary ? samples * (maxValue < 256 ? 1 : 2) :
+                               2 * samples - 1;
+        if (needed > buffer.remaining())
+          throw new IOException("Image file is too short");
+
+        pixels = new byte[(int)size];
+
+        if (binary && channels == 3 && maxValue == 255) {
+            // Rows as they are (the file starts with the top row)
+            for (int j = height-1; j >= 0; j--)
+              buffer.get(pixels, 3 * j * width, 3 * width);
+            return;
+        }
+
+        // Bytes for each sample value (unless it is already a byte)
+        byte[] scale = null;
+        if (maxValue != 255) {
+            scale = new byte[maxValue + 1];
+            for (int v = 0; v <= maxValue; v++)
+              scale[v] = (byte)((v * 255 + maxValue / 2) / maxValue);
+        }
+
+        for (int j = height-1; j >= 0; j--) {
+            for (int n = 3 * j * width, end = n + 3 * width; n < end; ) {
+                int r = readSample(binary), g = r, b = r;
+                if (channels == 3) {
+                    g = readSample(binary);
+                    b = readSample(binary);
+                }
+
+                if (r > maxValue || g > maxValue || b > maxValue)
+                  throw new IOException("Sample out of range");
+
+                if (scale != null) {
+                    pixels[n++] = scale[r];
+                    pixels[n++] = scale[g];
+                    pixels[n++] = scale[b];
+                } else {
+                    pixels[n++] = (byte)r;
+                    pixels[n++] = (byte)g;
+                    pixels[n++] = (byte)b;
+                }
+            }
+        }
+    }
+
+    /** the next sample: one or two bytes (if maxValue needs two) in
+     *  binary, or a number in text
+     */
+    private int readSample(boolean binary) throws IOException
+    {
+        if (!binary)
+          return readNumber();
+        if (maxValue < 256)
+          return buffer.get() & 0xff;
+
+        int high = buffer.get() & 0xff;
+        return (high << 8) | (buffer.get() & 0xff);
+    }
+
+    /** the next number of the header (which may have comments, from '#'
+     *  to the end of the line, before it)
+     */
+    private int readHeaderNumber() throws IOException
+    {
+        int c = buffer.get();
+        while (isSpace(c) || c == '#') {
+            if (c == '#')
+              while (c != '\n' && c != '\r')
+                c = buffer.get();
+            c = buffer.get();
+        }
+        buffer.position(buffer.position() - 1);
+
+        return readNumber();
+    }
+
+    /** the next number in text (after any whitespace), and the
+     *  whitespace character after it
+     */
+    private int readNumber() throws IOException
+    {
+        int c = buffer.get();
+        while (isSpace(c))
+          c = buffer.get();
+
+        if (c < '0' || c > '9')
+          throw new IOException("Not a number in image file");
+
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > 65535)
+              throw new IOException("Number too large in image file");
+
+            // (The number may end the file)
+            if (!buffer.hasRemaining())
+              return value;
+            c = buffer.get();
+        }
+
+        if (!isSpace(c))
+          throw new IOException("Not a number in image file");
+
+        return value;
+    }
+
+    private static boolean isSpace(int c)
+    {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' ||
+               c == '\f' || c == 0x0b;
+    }
+}
@@ -4,33 +4,72 @@
  *
  * Doug DeCarlo
  */
+import java.lang.invoke.*;
 import java.lang.reflect.*;
 import java.io.*;
 import java.text.ParseException;
+import javax.vecmath.*;
 
 class ParamSpec
 {
+    // Kinds of values (how the value is read)
+    static final int STRING   = 0;
+    static final int DOUBLE   = 1;
+    static final int VECTOR2D = 2;
+    static final int VECTOR3D = 3;
+    static final int POINT3D  = 4;
+    static final int SPECIAL  = 5;
+
     /** the keyword of the parameter (e.g. "ka")*/
     String keyword;
-    
+
     /** the type of the object (e.g. "java.lang.String" */
     Class type;
-    
-    /** the accessor method */
-    Method accessor;
-    
-    /** the reader method (null if a predefined parser type) */
-    Method specialReader;
-    
+
+    /** how the value is read (one of the kinds above) */
+    int kind;
+
+    /** the accessor method, taking the object and the value */
+    MethodHandle accessor;
+
+    /** the reader method, taking the object and the tokenizer (null if a
+	predefined parser type) */
+    MethodHandle specialReader;
+
+    // Types the handles are called with (the same for every parameter)
+    private static final MethodType accessorType =
+	MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType readerType =
+	MethodType.methodType(Object.class, Object.class,
+			      StreamTokenizer.class);
+
     //------------------------------------------------------------------------
-    public ParamSpec(String newKeyword, Class newType, Method newAccessor,
-		     Method newReader)
+    public ParamSpec(String newKeyword, Class newType, MethodHandle newAccessor,
+		     MethodHandle newReader)
         throws ClassNotFoundException
     {
 	keyword  = newKeyword;
 	type     = newType;
-	accessor = newAccessor;
-	specialReader = newReader;
+	accessor = newAccessor.asType(accessorType);
+	if (newReader != null && newReader.type().parameterCount() == 1)
+	    // a static reader: it is given the target, and ignores it
+	    newReader = MethodHandles.dropArguments(newReader, 0, Object.class);
+	specialReader = newReader == null ? null : newReader.asType(readerType);
+
+	if (specialReader != null)
+	  kind = SPECIAL;
+	else if (type == String.class)
+	  kind = STRING;
+	else if (type == Double.class)
+	  kind = DOUBLE;
+	else if (type == Vector2d.class)
+	  kind = VECTOR2D;
+	else if (type == Vector3d.class)
+	  kind = VECTOR3D;
+	else if (type == Point3d.class)
+	  kind = POINT3D;
+	else throw new RuntimeException("Type "+ type.getName()+
+					" not supported by parser");
     }
 
     //------------------------------------------------------------------------
@@ -43,26 +82,31 @@ class ParamSpec
                 InvocationTargetException, IOException,
                 IllegalAccessException, ParseException
     {
-	Object[] parameter = new Object[1];
-	
-	if (specialReader != null) {
-	    parameter[0] = specialReader.invoke(target,
-						new Object[] { tokenizer });
-	} else if ( type.equals(Class.forName("java.lang.String")) )
-	  parameter[0]=Parser.readString(tokenizer);
-	else if ( type.equals(Class.forName("java.lang.Double")) )
-	  parameter[0]=Parser.readDouble(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Vector2d")) )
-	  parameter[0]=Parser.readVector2d(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Vector3d")) )
-	  parameter[0]=Parser.readVector3d(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Point3d"))  )
-	  parameter[0]=Parser.readPoint3d(tokenizer);
-	else throw new RuntimeException("Type "+ type.getName()+
-					" not supported by parser. Line " +
-					tokenizer.lineno());
-	
-	accessor.invoke(target, parameter);
+	Object parameter = null;
+
+	switch (kind) {
+	  case STRING:   parameter = Parser.readString(tokenizer);   break;
+	  case DOUBLE:   parameter = Parser.readDouble(tokenizer);   break;
+	  case VECTOR2D: parameter = Parser.readVector2d(tokenizer); break;
+	  case VECTOR3D: parameter = Parser.readVector3d(tokenizer); break;
+	  case POINT3D:  parameter = Parser.readPoint3d(tokenizer);  break;
+	}
+
+	try {
+	    if (kind == SPECIAL)
+		parameter = (Object)specialReader.invokeExact(target, tokenizer);
+
+	    accessor.invokeExact(target, parameter);
+	} catch (ParseException e) {
+	    throw e;
+	} catch (RuntimeException e) {
+	    throw e;
+	} catch (Error e) {
+	    throw e;
+	} catch (Throwable e) {
+	    // (As reported when the accessors were called through reflection)
+	    throw new InvocationTargetException(e);
+	}
     }
 
     //------------------------------------------------------------------------
@@ -5,30 +5,60 @@
  */
 import java.io.*;
 import java.text.ParseException;
+import java.lang.invoke.*;
 import java.lang.reflect.*;
+import java.util.*;
 import javax.vecmath.*;
 
 /** Implements a parser for the input file format */
 class Parser
 {
-    private static Class[] objectTypes;
+    // Constructor (from a tokenizer) of each object type, by the value
+    // of its "keyword" field (looked up once)
+    private static HashMap<String, MethodHandle> objectTypes =
+       new HashMap<String, MethodHandle>();
     private static Scene   mainScene;
 
+    static {
+       // to add the actual types once they're created
+       addObjectType(Material.class);
+       addObjectType(Light.class);
+       addObjectType(Sphere.class);
+       addObjectType(Cylinder.class);
+       addObjectType(Cone.class);
+       addObjectType(Box.class);
+       addObjectType(Camera.class);
+       addObjectType(Mesh.class);
+       addObjectType(Instance.class);
+    }
+
     public Parser(Scene s)
            throws ClassNotFoundException
     {
        mainScene = s;
-       // initialize the array of object types
-       objectTypes = new Class[8];
+    }
 
-       // to add the actual types once they're created
-       objectTypes[0] = Class.forName("Material");
-       objectTypes[1] = Class.forName("Light");
-       objectTypes[2] = Class.forName("Sphere");
-       objectTypes[3] = Class.forName("Cylinder");
-       objectTypes[4] = Class.forName("Cone");
-       objectTypes[5] = Class.forName("Box");
-       objectTypes[6] = Class.forName("Camera");
+    /** registers an object type under its keyword */
+    private static void addObjectType(Class<?> type)
+    {
+       try {
+          String keyword = (String)type.getDeclaredField("keyword").get(null);
+          MethodHandle constructor = MethodHandles.lookup().findConstructor(
+             type, MethodType.methodType(void.class, StreamTokenizer.class));
+          objectTypes.put(keyword, constructor.asType(
+             MethodType.methodType(RaytracerObject.class,
+                                   StreamTokenizer.class)));
+       }
+       catch (NoSuchFieldException E)
+       {
+          throw new RuntimeException(type.getName() +
+                                     " does not have the \"keyword\" field.");
+       }
+       catch (ReflectiveOperationException E)
+       {
+          throw new RuntimeException("Cannot create " + type.getName() +
+                                     " objects: " + E);
+       }
     }
 
     //------------------------------------------------------------------------
@@ -42,7 +72,8 @@ class Parser
 
        try
        {
-          FileReader input = new FileReader(fileName);
+          Reader input = new BufferedReader(new FileReader(fileName));
+          mainScene.setFileName(fileName);
 
           // create the tokenizer and set its parameters
           StreamTokenizer tokenizer = new StreamTokenizer(input);
@@ -103,55 +134,39 @@ class Parser
                         NoSuchMethodException, InstantiationException,
                         IllegalAccessException, IOException
     {
-       try
-       {
-          if ( tokenizer.ttype == StreamTokenizer.TT_WORD ) {
-             int i;
-             for ( i=0; i<objectTypes.length; i++)
-                 if (objectTypes[i]!=null){
-                   // check for the value of the "keyword" field
-                   Field keyword = objectTypes[i].getDeclaredField("keyword");
-                   java.lang.String s = new java.lang.String();
-                   s=(String)keyword.get(null);
-
-                   // if the keyword mathches the current token
-                   if (s.compareTo(tokenizer.sval)==0) {
-                      // create a new instance of the class
-                      Class[] list = {Class.forName("java.io.StreamTokenizer")};
-                      Constructor c = objectTypes[i].getConstructor(list);
-
-                      Object[] listOfParameters = {tokenizer};
-                      Object newObject = c.newInstance(listOfParameters);
+       if ( tokenizer.ttype == StreamTokenizer.TT_WORD ) {
+          MethodHandle constructor = objectTypes.get(tokenizer.sval);
 
-                      mainScene.addObject((RaytracerObject)newObject);
+          if (constructor != null) {
+             // create a new instance of the class
+             RaytracerObject newObject;
+             String type = tokenizer.sval;
+             try {
+                newObject = (RaytracerObject)constructor.invokeExact(tokenizer);
+             }
+             catch (ParseException E) { throw E; }
+             catch (RuntimeException E) { throw E; }
+             catch (Error E) { throw E; }
+             catch (Throwable E)
+             {
+                // (As reported when the constructors were called through
+                // reflection)
+                System.err.print("Could not instanciate class for ");
+                System.err.println(type + " object ");
+                throw new InvocationTargetException(E);
+             }
 
-		      //((RaytracerObject)newObject).print(System.out);
+             mainScene.addObject(newObject);
 
-                      // exit the loop
-                      break;
-                   }
-                 }
-             if (i>=objectTypes.length) {
-		 // the keyword did not match any object type.
-		 // It must be a scene command
-		 SceneCommand sc = new SceneCommand(tokenizer, mainScene);
-             }
+             //newObject.print(System.out);
+          } else {
+             // the keyword did not match any object type.
+             // It must be a scene command
+             SceneCommand sc = new SceneCommand(tokenizer, mainScene);
           }
-          else
-          throw new ParseException("Unknown object type.", tokenizer.lineno());
-       }
-       catch (NoSuchFieldException E)
-       {
-          System.err.print(tokenizer.sval);
-          System.err.println("does not have the \"keyword\" field.");
-          throw E;
-       }
-       catch (InvocationTargetException E)
-       {
-          System.err.print("Could not instanciate class for ");
-          System.err.println(tokenizer.sval + " object ");
-          throw E;
        }
+       else
+       throw new ParseException("Unknown object type.", tokenizer.lineno());
     }
 
 
@@ -235,14 +250,16 @@ class Parser
     }
 
 
-    /** reads a string from the tokenizer
+    /** reads a string from the tokenizer (a word, or any text in double
+        quotes, such as a file name with a path)
         @param tokenizer the tokenizer to read from
     */
     public static String readString(StreamTokenizer tokenizer)
            throws ParseException, IOException
     {
        tokenizer.nextToken();
-       if (tokenizer.ttype != StreamTokenizer.TT_WORD)
+       if (tokenizer.ttype != StreamTokenizer.TT_WORD &&
+           tokenizer.ttype != '"')
                throw new ParseException("String expected "+tokenizer,
                                         tokenizer.lineno());
        return tokenizer.sval;
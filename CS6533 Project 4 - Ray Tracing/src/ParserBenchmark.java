@@ -0,0 +1,98 @@
+/* class ParserBenchmark
+ * Times the parser on a generated scene of about a million lines:
+ * materials, lights and a camera, then objects of every type each placed
+ * by push/translate/rotate/scale/pop, their parameters one per line.
+ *
+ *   java ParserBenchmark [lines]       (default: 1000000)
+ */
+import java.io.*;
+
+class ParserBenchmark
+{
+    // Reads timed (the fastest is reported), after as many to warm up
+    static final int RUNS = 3;
+
+    // Object types placed in turn, and their lines
+    static final String[] objects = {
+        "sphere {\n   material = m%d\n}\n",
+        "box {\n   material = m%d\n}\n",
+        "cylinder {\n   material = m%d\n}\n",
+        "cone {\n   material = m%d\n}\n"
+    };
+
+    public static void main(String arguments[])
+    {
+        int lines = 1000000;
+        if (arguments.length > 0)
+          lines = Integer.parseInt(arguments[0]);
+
+        Trace.verbose = false;
+        try {
+            File scene = File.createTempFile("bench", ".ray");
+            try {
+                int objectCount = writeScene(scene.getPath(), lines);
+                System.out.println(countLines(scene.getPath()) + " lines, " +
+                                   objectCount + " objects");
+
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < 2 * RUNS; run++) {
+                    long start = System.nanoTime();
+                    new Parser(new Scene()).readFile(scene.getPath());
+                    long elapsed = System.nanoTime() - start;
+
+                    if (run >= RUNS)
+                      best = Math.min(best, elapsed);
+                }
+
+                System.out.printf("parsed in %.0f ms (%.0f lines/s)%n",
+                                  best / 1e6, lines / (best / 1e9));
+            } finally {
+                scene.delete();
+            }
+        } catch (Exception e) {
+            System.err.println(e);
+        }
+    }
+
+    /** write a scene of about the given number of lines, and return the
+     *  number of objects in it
+     */
+    static int writeScene(String fileName, int lines) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+
+        out.println("camera {\n   eye = (0 0 10)\n   look = (0 0 -1)\n" +
+                    "   up = (0 1 0)\n   fovy = 45\n}");
+        for (int i = 0; i < 8; i++)
+          out.printf("material {\n   name = m%d\n   ka = (0.1 0.1 0.1)\n" +
+                     "   kd = (0.%d 0.5 0.5)\n   ks = (0.2 0.2 0.2)\n" +
+                     "   shiny = %d\n}%n", i, i + 1, 10 + i);
+        out.println("light {\n   direction = (2 3 5)\n   color = (1 1 1)\n}");
+        out.println("light {\n   position = (-5 5 5)\n   color = (0.5 0.5 0.5)\n}");
+
+        // 9 lines per object
+        int objectCount = Math.max(0, (lines - 70) / 9);
+        for (int n = 0; n < objectCount; n++) {
+            out.println("push {}");
+            out.printf("  translate { (%.3f %.3f %.3f) }%n",
+                       (n % 100) * 0.1, (n / 100 % 100) * 0.1, n / 10000 * -0.1);
+            out.printf("  rotate { %d (0 1 0) }%n", n % 360);
+            out.println("  scale { (0.05 0.05 0.05) }");
+            out.printf(objects[n % objects.length], n % 8);
+            out.println("pop {}");
+            out.println();
+        }
+
+        out.close();
+        return objectCount;
+    }
+
+    static int countLines(String fileName) throws IOException
+    {
+        LineNumberReader in = new LineNumberReader(new FileReader(fileName));
+        while (in.readLine() != null)
+          ;
+        in.close();
+        return in.getLineNumber();
+    }
+}
@@ -0,0 +1,36 @@
+/* class PerThread
+ * Scratch storage of each thread that uses an object, held by the object
+ * itself.  A ThreadLocal's values are held by the threads instead: a value
+ * that refers back to its object (as the queries do) keeps the object
+ * alive for as long as the thread runs, and pool threads outlive the
+ * scenes they render.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+
+abstract class PerThread<T>
+{
+    private ConcurrentHashMap<Thread, T> values =
+        new ConcurrentHashMap<Thread, T>();
+
+    /** new storage for the calling thread */
+    protected abstract T initialValue();
+
+    /** the storage of the calling thread (made the first time it asks) */
+    public T get()
+    {
+        Thread thread = Thread.currentThread();
+        T value = values.get(thread);
+        if (value == null) {
+            // (Forget the threads that have ended, which pools replace)
+            Iterator<Thread> i = values.keySet().iterator();
+            while (i.hasNext())
+              if (!i.next().isAlive())
+                i.remove();
+
+            value = initialValue();
+            values.put(thread, value);
+        }
+        return value;
+    }
+}
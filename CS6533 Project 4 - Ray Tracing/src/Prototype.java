@@ -0,0 +1,136 @@
+/* class Prototype
+ * A named set of shapes that is defined once in the scene file (between
+ * "define" and "end") and placed any number of times with instances.
+ * The shapes have their own hierarchy, shared by all the instances.
+ */
+import java.util.*;
+import javax.vecmath.*;
+
+class Prototype
+{
+    // Name used by instances to refer to this prototype
+    String name;
+
+    // Shapes in the definition (placed by the matrix stack at the time
+    // they were defined)
+    Vector<Shape> shapes = new Vector<Shape>();
+
+    // Hierarchy over the shapes and their descendants (built by setup())
+    Shape[] shapeArray = null;
+    BVH     tree       = null;
+
+    // Bounds of all the shapes
+    BoundingBox bounds = new BoundingBox();
+
+    // Query of each thread, reused for every ray
+    PerThread<ClosestQuery> queries = new PerThread<ClosestQuery>() {
+        protected ClosestQuery initialValue() {
+            return new ClosestQuery();
+        }
+    };
+
+    //------------------------------------------------------------------------
+
+    public Prototype(String newName)
+    {
+        name = newName;
+    }
+
+    /** build the hierarchy (once all the shapes have been added) */
+    public void setup()
+    {
+        // (Instances are few and small, so the object hierarchy of the
+        // shapes is flattened into the BVH)
+        Vector<Shape> all = new Vector<Shape>();
+        for (int i = 0; i < shapes.size(); i++)
+          shapes.elementAt(i).collectGroup(all);
+        shapeArray = all.toArray(new Shape[all.size()]);
+
+        BoundingBox[] shapeBounds = new BoundingBox[shapeArray.length];
+        bounds.clear();
+        for (int i = 0; i < shapeArray.length; i++) {
+            shapeBounds[i] = shapeArray[i].getBounds();
+            bounds.extend(shapeBounds[i]);
+        }
+
+        tree = new BVH(shapeBounds);
+    }
+
+    //------------------------------------------------------------------------
+
+    // accessors
+    public String        getName()   { return name; }
+    public Vector<Shape> getShapes() { return shapes; }
+    public BoundingBox   getBounds() { return bounds; }
+
+    //------------------------------------------------------------------------
+
+    /** computes the closest intersection of ray r (in the coordinate
+     *  system of the definition) with the shapes, beyond minT
+     *  (see Shape.hit()); the hit object is the shape that was hit
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+        ClosestQuery query = queries.get();
+        query.start(r, intersection, all, minT);
+        tree.traverse(r, Double.MAX_VALUE, query, query.stack);
+
+        if (query.closest == null)
+          return false;
+
+        if (all) {
+            // Back from the coordinate system of the shape
+            query.closest.M.transform(intersection.hitPoint);
+            query.closest.MTInverse.transform(intersection.normal);
+            intersection.normal.normalize();
+        }
+
+        return true;
+    }
+
+    /** BVH visitor for hit(): keeps the closest shape hit */
+    private class ClosestQuery implements BVH.Visitor
+    {
+        Ray     ray;
+        ISect   intersection;
+        boolean all;
+        double  minT;
+        Shape   closest;
+
+        // Ray in the coordinate system of a shape, and the hit with it
+        Ray     shapeRay   = new Ray();
+        ISect   shapeISect = new ISect();
+
+        // Traversal stack
+        int[]   stack = tree.newStack();
+
+        void start(Ray r, ISect newIntersection, boolean newAll,
+                   double newMinT)
+        {
+            ray = r;
+            intersection = newIntersection;
+            all = newAll;
+            minT = newMinT;
+            closest = null;
+        }
+
+        public double visit(int primitive, double tMax)
+        {
+            Shape current = shapeArray[primitive];
+
+            shapeISect.clear();
+            shapeRay.setOrigin(ray.getPoint());
+            shapeRay.setDirection(ray.getDirection());
+            current.MInverse.transform(shapeRay.direction);
+            current.MInverse.transform(shapeRay.origin);
+
+            if (current.hit(shapeRay, shapeISect, all, minT) &&
+                shapeISect.getT() < tMax) {
+                intersection.set(shapeISect);
+                closest = current;
+                return shapeISect.getT();
+            }
+            return tMax;
+        }
+    }
+}
@@ -4,11 +4,17 @@
  * Doug DeCarlo
  */
 import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
 import javax.vecmath.*;
 
 class RGBImage
 {
-    Vector3d[][] data;
+    // Pixel values, row by row (3 values per pixel, with row 0 at the
+    // bottom of the image); set pixels are kept as computed, and only
+    // gamma corrected and clamped when written
+    float[] data;
     int width  = 0;
     int height = 0;
     int depth  = 3;
@@ -33,10 +39,7 @@ class RGBImage
        // length of the file to be written
        length = width * height * depth;
 
-       data = new Vector3d[width][height];
-       for (int i=0; i < data.length; i++)
-           for (int j=0; j < data[i].length; j++)
-               data[i][j] = new Vector3d();
+       data = new float[length];
     }
 
     //-----------------------------------------------------------------------
@@ -44,31 +47,30 @@ class RGBImage
     public int getWidth()  { return width; }
     public int getHeight() { return height; }
 
-    /** Get value of pixel (i,j) */
+    /** Get value of pixel (i,j) (a copy: changing it does not change
+     *  the image)
+     */
     public Vector3d getPixel(int i, int j)
     {
-	return data[i][j];
+	Vector3d p = new Vector3d();
+	getPixel(i, j, p);
+	return p;
     }
 
-    /** Set value of pixel (i,j) */
-    public void setPixel(int i, int j, Vector3d newVal)
+    /** same as getPixel() above, but stores the value in p */
+    public void getPixel(int i, int j, Vector3d p)
     {
-	data[i][j].set(newVal);
-
-	adjustColor(data[i][j]);
+	int n = 3 * (j * width + i);
+	p.set(data[n], data[n+1], data[n+2]);
     }
 
-    /** Make sure pixel value is in correct range */
-    private void adjustColor(Vector3d color)
+    /** Set value of pixel (i,j) */
+    public void setPixel(int i, int j, Vector3d newVal)
     {
-	// Gamma convert to match display (for better contrast)
-	double gamma = 2.4;
-	color.x = Math.pow(color.x, 1.0/gamma);
-	color.y = Math.pow(color.y, 1.0/gamma);
-	color.z = Math.pow(color.z, 1.0/gamma);
-
-	// clamp RGB values to [0,1]
-	color.clamp(0.0, 1.0);
+	int n = 3 * (j * width + i);
+	data[n]   = (float)newVal.x;
+	data[n+1] = (float)newVal.y;
+	data[n+2] = (float)newVal.z;
     }
 
     /** Determine the pixel value at a location of the images by bi-linear
@@ -76,111 +78,161 @@ class RGBImage
      * (u and v are both in the range [0,1])
      */
     public Vector3d getSubPixel(double u, double v)
+    {
+        Vector3d p = new Vector3d();
+        getSubPixel(u, v, p);
+        return p;
+    }
+
+    /** same as getSubPixel() above, but stores the value in p */
+    public void getSubPixel(double u, double v, Vector3d p)
     {
         double x = u * (width-1), y = v * (height-1);
         
         int x0 = (int)x, y0 = (int)y;
         double alphaX = x - x0, alphaY = y - y0;
 	
-        Vector3d p = new Vector3d(), p0 = new Vector3d();
+        p.set(0, 0, 0);
 
         // Add up weighted average of 4 neighbors
-        p0.scale((1-alphaX) * (1-alphaY), getPixel(x0  , y0));     p.add(p0);
-        p0.scale(  (alphaX) * (1-alphaY), getPixel(x0+1, y0));     p.add(p0);
-        p0.scale((1-alphaX) *   (alphaY), getPixel(x0  , y0+1));   p.add(p0);
-        p0.scale(  (alphaX) *   (alphaY), getPixel(x0+1, y0+1));   p.add(p0);
-        
-        return p;
+        int n = 3 * (y0 * width + x0), row = 3 * width;
+        addWeighted(p, (1-alphaX) * (1-alphaY), n);
+        addWeighted(p,   (alphaX) * (1-alphaY), n + 3);
+        addWeighted(p, (1-alphaX) *   (alphaY), n + row);
+        addWeighted(p,   (alphaX) *   (alphaY), n + row + 3);
+    }
+
+    /** p += w * (the pixel whose values start at data[n]) */
+    private void addWeighted(Vector3d p, double w, int n)
+    {
+        p.x += w * data[n];
+        p.y += w * data[n+1];
+        p.z += w * data[n+2];
     }
     
+    //-----------------------------------------------------------------------
+    // Display values
+
+    // Gamma of the display (pixels are corrected for it when written, for
+    // better contrast)
+    static final double GAMMA = 2.4;
+
+    // GAMMA_STEPS[k-1] is the smallest value that is written as byte k
+    // (value (k/255)^GAMMA, as byte 255 * value^(1/GAMMA) is rounded down)
+    private static final double[] GAMMA_STEPS = new double[255];
+    static {
+	for (int k = 1; k <= 255; k++)
+	    GAMMA_STEPS[k-1] = Math.pow(k / 255.0, GAMMA);
+    }
+
+    /** a pixel value the way it is displayed: gamma corrected, and
+     *  clamped to [0,1]
+     */
+    static double displayValue(double c)
+    {
+	return Math.pow(Math.min(Math.max(c, 0.0), 1.0), 1.0/GAMMA);
+    }
+
+    /** a pixel value as the byte (0 to 255) it is written as, the same as
+     *  255 * displayValue(c) rounded down (looked up among the steps)
+     */
+    static int displayByte(double c)
+    {
+	if (!(c > 0.0))
+	    return 0;
+
+	int k = Arrays.binarySearch(GAMMA_STEPS, c);
+	return k >= 0 ? k + 1 : -k - 1;
+    }
+
     //-----------------------------------------------------------------------
     // Image file I/O
 
-    /** Read the data using PPM format (text or binary) */
+    /** true if an image file is written and read in PFM format (its
+     *  name ends in ".pfm"): floats as they are computed, without gamma
+     *  or clamping, rather than display bytes
+     */
+    static boolean isPFM(String filename)
+    {
+	return filename.toLowerCase().endsWith(".pfm");
+    }
+
+    /** Read the data using PPM format (text or binary), or PFM format */
     public void read(String filename)
     {
 	try {
-	    FileInputStream is = new FileInputStream(filename);
-	    LineInputStream in = new LineInputStream(is);
-	    
-	    // read header
-	    boolean raw;
-	    
-	    String magic = getsPPM(in);
-	    if (magic.equals("P6"))
-	      raw = true;
-	    else if (magic.equals("P3"))
-	      raw = false;
-	    else 
-	      throw new IOException("Not a PPM file");
-	    
-	    depth = 3;
-	    
-	    String size = getsPPM(in);
-	    width = Integer.parseInt(size.substring(0,size.indexOf(' ')));
-	    height = Integer.parseInt(size.substring(size.indexOf(' ')+1));
-	    
-	    data = new Vector3d[width][height];
-	    
-	    String max = getsPPM(in);
-	    if (Integer.parseInt(max) != 255) {
-		throw new IOException("Not a PPM file");
-	    }
-	    
-	    if (raw) {
-		// read raw data
-		byte brow[] = new byte[width*3];
-		for (int i=0; i < height; i++) {
-		    if (in.readdata(brow) != width*3)
-		      throw new IOException("File read error");
-		    for (int j=0, k=0; j < width*3; j += 3) {
-			int r = brow[j], g = brow[j+1], b = brow[j+2];
-			r = r < 0 ? r+256 : r;
-			g = g < 0 ? g+256 : g;
-			b = b < 0 ? b+256 : b;
-
-			data[k++][height-i-1] = 
-			  new Vector3d(r/255.0, g/255.0, b/255.0);
-		    }
-		}
-	    } else {
-		// read ascii data
-		for (int i=0; i < height; i++) {
-		    for(int j=0; j < width; j++) {
-			int r = Integer.parseInt(in.getw());
-			int g = Integer.parseInt(in.getw());
-			int b = Integer.parseInt(in.getw());
-
-			data[j][height-i-1] = 
-			  new Vector3d(r/255.0, g/255.0, b/255.0);
-		    }
-		}
+	    if (isPFM(filename)) {
+		readPFM(filename);
+		return;
 	    }
-	    in.close();
 
+	    PPMReader reader = new PPMReader(filename);
+
+	    width  = reader.getWidth();
+	    height = reader.getHeight();
+	    depth  = 3;
+	    length = width * height * depth;
+
+	    byte[] pixels = reader.getPixels();
+	    data = new float[length];
+	    for (int n = 0; n < length; n++)
+		data[n] = (float)((pixels[n] & 0xff) / 255.0);
+
+	} catch (IOException e) {
+	    System.out.println(e);
+	    System.exit(-1);
+	}
+    }
+
+    /** Write the data using PPM format (binary), or PFM format */
+    public void write(String filename)
+    {
+	try {
+	    OutputStream stream =
+		new BufferedOutputStream(new FileOutputStream(filename));
+	    write(stream, isPFM(filename));
+	    stream.close();
 	} catch (IOException e) {
 	    System.out.println(e);
 	    System.exit(-1);
 	}
     }
 
-    // Read one line from PPM format image data, ignoring comments
-    private String getsPPM(LineInputStream in)
+    /** Write the data using PPM format (binary), or PFM format, so that
+     *  the file is replaced all at once: it is written under a temporary name next
+     *  to it, then renamed (readers of the file never see part of it)
+     */
+    public void writeAtomically(String filename) throws IOException
     {
-	String line;
-	do {
-	    try { 
-		line = in.gets();
-	    } catch(IOException e) {
-		return "";
-	    }
-	} while(line.charAt(0) == '#');
+	Path target = Paths.get(filename).toAbsolutePath();
+	Path temp = target.resolveSibling(target.getFileName() + ".tmp");
 
-	return line;
+	OutputStream stream = Files.newOutputStream(temp);
+	try {
+	    write(stream, isPFM(filename));
+	} finally {
+	    stream.close();
+	}
+
+	try {
+	    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+		       StandardCopyOption.REPLACE_EXISTING);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+	}
     }
 
-    /** Write the data using PPM format (binary) */
-    public void write(String filename)
+    // Write the image to a stream, in PFM or PPM format
+    private void write(OutputStream stream, boolean pfm) throws IOException
+    {
+	if (pfm)
+	    writePFM(stream);
+	else
+	    writePPM(stream);
+    }
+
+    // Write the PPM header and image bytes to a stream
+    private void writePPM(OutputStream stream) throws IOException
     {
 	String header = new String("P6" + '\n' +
 				   width + " " + height + '\n' +
@@ -188,31 +240,99 @@ class RGBImage
 	// Space for image data
 	byte[] dataOut = new byte[length];
 	
+	// Write file header
+	stream.write(header.getBytes());
+
+	// Collect image bytes (top row first)
+	int pos = 0;
+	for (int j=height-1; j >= 0; j--)
+	    for (int n = 3 * j * width, end = n + 3 * width; n < end; n++)
+		dataOut[pos++] = (byte)displayByte(data[n]);
+
+	// Write image contents
+	stream.write(dataOut, 0, dataOut.length);
+    }
+
+    // Write the PFM header and pixel values to a stream (little-endian
+    // floats, bottom row first, as they are stored)
+    private void writePFM(OutputStream stream) throws IOException
+    {
+	String header = "PF" + '\n' + width + " " + height + '\n' +
+			"-1.0" + '\n';
+	stream.write(header.getBytes());
+
+	ByteBuffer row = ByteBuffer.allocate(4 * 3 * width);
+	row.order(ByteOrder.LITTLE_ENDIAN);
+	for (int j = 0; j < height; j++) {
+	    row.clear();
+	    row.asFloatBuffer().put(data, 3 * j * width, 3 * width);
+	    stream.write(row.array());
+	}
+    }
+
+    // Read a PFM file (color "PF" or gray "Pf"; the sign of the scale
+    // gives the byte order of the floats)
+    private void readPFM(String filename) throws IOException
+    {
+	InputStream stream =
+	    new BufferedInputStream(new FileInputStream(filename));
 	try {
-	    FileOutputStream stream = new FileOutputStream(filename);
+	    String magic = readWord(stream);
+	    if (!magic.equals("PF") && !magic.equals("Pf"))
+		throw new IOException("Not a PFM file");
+	    int channels = magic.equals("PF") ? 3 : 1;
 
-	    // Write file header
-	    stream.write(header.getBytes());
+	    double scale;
+	    try {
+		width  = Integer.parseInt(readWord(stream));
+		height = Integer.parseInt(readWord(stream));
+		scale  = Double.parseDouble(readWord(stream));
+	    } catch (NumberFormatException e) {
+		throw new IOException("Not a PFM file");
+	    }
+	    if (width <= 0 || height <= 0)
+		throw new IOException("Not a PFM file");
 
-	    // Collect image bytes
-	    int pos = 0;
-	    for (int j=0; j < data[0].length; j++) {
-		for (int i=0; i < data.length; i++) {
-		    Vector3d pixel = getPixel(i,height-j-1);
+	    // (readWord() has also read the single whitespace character
+	    // between the header and the floats)
+	    depth  = 3;
+	    length = width * height * depth;
+	    data = new float[length];
 
-		    dataOut[pos++] = (byte)(255*pixel.x);
-		    dataOut[pos++] = (byte)(255*pixel.y);
-		    dataOut[pos++] = (byte)(255*pixel.z);
+	    byte[] bytes = new byte[4 * channels * width];
+	    ByteBuffer row = ByteBuffer.wrap(bytes);
+	    row.order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	    for (int j = 0; j < height; j++) {
+		new DataInputStream(stream).readFully(bytes);
+		FloatBuffer values = row.asFloatBuffer();
+		if (channels == 3) {
+		    values.get(data, 3 * j * width, 3 * width);
+		} else {
+		    for (int n = 3 * j * width, end = n + 3 * width; n < end; n += 3)
+			data[n] = data[n+1] = data[n+2] = values.get();
 		}
 	    }
+	} finally {
+	    stream.close();
+	}
+    }
 
-	    // Write image contents
-	    stream.write(dataOut, 0, dataOut.length);
+    // The next word of a header (after any whitespace), and the
+    // whitespace character after it
+    private static String readWord(InputStream stream) throws IOException
+    {
+	int c = stream.read();
+	while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+	    c = stream.read();
 
-	    stream.close();
-	} catch (IOException e) {
-	    System.out.println(e);
-	    System.exit(-1);
+	StringBuilder word = new StringBuilder();
+	while (c >= 0 && c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+	    word.append((char)c);
+	    c = stream.read();
 	}
+	if (c < 0)
+	    throw new IOException("File read error");
+
+	return word.toString();
     }
 }
@@ -0,0 +1,92 @@
+/* class RayContext
+ * Scratch storage for tracing rays on one thread: the rays, intersections
+ * and colors used at each recursion depth, and the vectors of the
+ * lighting computation.  Reusing them keeps the rendering loop from
+ * allocating any objects.
+ */
+import javax.vecmath.*;
+
+class RayContext
+{
+    // Indexed by recursion depth: the closest intersection, the color
+    // computed at that depth, the sum of the light contributions and the
+    // secondary ray sent from it (whose color ends up one depth below)
+    ISect[]    isects;
+    Vector3d[] colors;
+    Vector3d[] lightColors;
+    Ray[]      secondaryRays;
+
+    // Indexed by recursion depth: the distance travelled from the camera
+    // to the origin of the ray (0 for primary rays)
+    double[]   distances;
+
+    // Primary ray, and the color of the pixel it goes through
+    Ray        primaryRay  = new Ray();
+    Vector3d   pixelColor  = new Vector3d();
+
+    // Testing a single object: ray transformed into the object's
+    // coordinate system, and the intersection with it
+    Ray        objectRay   = new Ray();
+    ISect      objectISect = new ISect();
+
+    // Shadow feeler ray, and the tint of the light along it
+    Ray        shadowRay   = new Ray();
+    Vector3d   tint        = new Vector3d();
+
+    // Refraction normal
+    Vector3d   normal      = new Vector3d();
+
+    // Lighting computation (see Light.compute())
+    Vector3d   lightResult = new Vector3d();
+    Vector3d   ambient     = new Vector3d();
+    Vector3d   diffuse     = new Vector3d();
+    Vector3d   specular    = new Vector3d();
+    Vector3d   toLight     = new Vector3d();
+    Vector3d   surfaceNormal = new Vector3d();
+    Vector3d   reflected   = new Vector3d();
+    Vector3d   view        = new Vector3d();
+    Vector3d   texel       = new Vector3d();
+
+    // Queries and traversal stack for the scene hierarchy (set by the
+    // scene that creates the context)
+    Scene.ClosestQuery closestQuery = null;
+    Scene.ShadowQuery  shadowQuery  = null;
+    int[]      stack       = null;
+
+    // For each light, the object that last blocked it entirely (or null)
+    Shape[]    occluders   = null;
+
+    // First sample of each pixel of a tile and the pixels around it, and
+    // the same on the display scale (null unless anti-aliasing is adaptive)
+    double[]   firstColors  = null;
+    double[]   firstDisplay = null;
+
+    // Bytes of the pixels of the current tile, as they are written to a
+    // mapped output file (null unless the output is mapped)
+    byte[]     tilePixels  = null;
+
+    // Work done with this context, and a copy of it from the start of
+    // the current tile
+    RayStats   stats       = new RayStats();
+    RayStats   tileStats   = new RayStats();
+
+    //------------------------------------------------------------------------
+
+    /** scratch space for rays up to a recursion depth */
+    public RayContext(int maxRecursion)
+    {
+        int levels = maxRecursion + 2;
+
+        isects          = new ISect[levels];
+        colors          = new Vector3d[levels];
+        lightColors     = new Vector3d[levels];
+        secondaryRays   = new Ray[levels];
+        distances       = new double[levels];
+        for (int i = 0; i < levels; i++) {
+            isects[i]          = new ISect();
+            colors[i]          = new Vector3d();
+            lightColors[i]     = new Vector3d();
+            secondaryRays[i]   = new Ray();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/* class RayStats
+ * Counts of the work done while tracing rays.  Each rendering thread
+ * keeps its own, and they are added up for the whole render.
+ */
+class RayStats
+{
+    // Rays cast (primary, reflected and refracted)
+    long rays         = 0;
+
+    // Shadow rays, and those found blocked by the last object that
+    // blocked the same light
+    long shadowRays   = 0;
+    long occluderHits = 0;
+
+    // Objects tested by the culling stage, rejected by it, and then hit
+    // (of those that were not rejected)
+    long cullTested   = 0;
+    long cullRejected = 0;
+    long cullHits     = 0;
+
+    //------------------------------------------------------------------------
+
+    /** set all counts to zero */
+    public void clear()
+    {
+        rays = shadowRays = occluderHits = 0;
+        cullTested = cullRejected = cullHits = 0;
+    }
+
+    /** copy the counts of other */
+    public void set(RayStats other)
+    {
+        rays         = other.rays;
+        shadowRays   = other.shadowRays;
+        occluderHits = other.occluderHits;
+        cullTested   = other.cullTested;
+        cullRejected = other.cullRejected;
+        cullHits     = other.cullHits;
+    }
+
+    /** add the counts of end, minus those of start (the work done between
+     *  two copies of the same counts)
+     */
+    public void add(RayStats end, RayStats start)
+    {
+        rays         += end.rays         - start.rays;
+        shadowRays   += end.shadowRays   - start.shadowRays;
+        occluderHits += end.occluderHits - start.occluderHits;
+        cullTested   += end.cullTested   - start.cullTested;
+        cullRejected += end.cullRejected - start.cullRejected;
+        cullHits     += end.cullHits     - start.cullHits;
+    }
+}
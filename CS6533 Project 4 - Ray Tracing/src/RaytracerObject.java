@@ -7,6 +7,7 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.*;
+import java.lang.invoke.*;
 import java.lang.reflect.*;
 import java.util.*;
 
@@ -15,16 +16,30 @@ abstract class RaytracerObject
    /** the name of the object. Default value : an empty string */
    String name="";
 
-   /** parameters of the object */
-   Vector<ParamSpec> paramSpecs;
+   /** parameters of the object, by keyword (shared by all the objects
+       of a class; see addSpec()) */
+   HashMap<String, ParamSpec> paramSpecs;
+
+   /** true while the constructors add the parameters of the class for
+       the first time */
+   boolean newSpecs = false;
+
+   /** parameters of each class, once an object of it has been read */
+   private static HashMap<Class<?>, HashMap<String, ParamSpec>> classSpecs =
+      new HashMap<Class<?>, HashMap<String, ParamSpec>>();
 
    /** this constructor enforces the creation of an object from a file */
    protected RaytracerObject(StreamTokenizer tokenizer)
              throws NoSuchMethodException, SecurityException,
                     ClassNotFoundException
    {
-      // nothing to do here
-      paramSpecs = new Vector<ParamSpec>();
+      synchronized (classSpecs) {
+         paramSpecs = classSpecs.get(getClass());
+      }
+      if (paramSpecs == null) {
+         paramSpecs = new HashMap<String, ParamSpec>();
+         newSpecs = true;
+      }
       addSpec("name", "setName", "java.lang.String");
    }
    //------------------------------------------------------------------------
@@ -39,6 +54,15 @@ abstract class RaytracerObject
                throws ParseException,  IOException, InvocationTargetException,
                ClassNotFoundException, IllegalAccessException
    {
+      // the constructors have added all the parameters by now: the other
+      // objects of the class use them as they are
+      if (newSpecs) {
+         synchronized (classSpecs) {
+            classSpecs.put(getClass(), paramSpecs);
+         }
+         newSpecs = false;
+      }
+
       // read the open brace
       tokenizer.nextToken();
       if ( tokenizer.ttype!='{' )
@@ -49,16 +73,12 @@ abstract class RaytracerObject
       while (!Stop) {
          if (tokenizer.nextToken()==StreamTokenizer.TT_WORD) {
             String paramName = tokenizer.sval;
-            // search for the parameter in the list
-            int i;
-            for (i=0; i<paramSpecs.size(); i++)
-                if ( ((ParamSpec)paramSpecs.elementAt(i)).is(paramName))
-                   break;
+            // search for the parameter
+            ParamSpec temp = paramSpecs.get(paramName);
 
-            if (i<paramSpecs.size()) {
+            if (temp != null) {
                // skip the "="
                tokenizer.nextToken();
-               ParamSpec temp = (ParamSpec)(paramSpecs.elementAt(i));
                temp.read(tokenizer, this);
             }
          }
@@ -90,25 +110,33 @@ abstract class RaytracerObject
       }
    }
 
-   /** creates a new ParamSpec and adds it to the list of specs */
+   /** creates a new ParamSpec and adds it to the list of specs (once per
+       class: later objects of the class share the specs of the first) */
    protected void addSpec( String kWord, String accessorName, String paramType)
              throws NoSuchMethodException, SecurityException,
                     ClassNotFoundException
    {
+      if (!newSpecs)
+         return;
+
       Class[] c = new Class[1];
       c[0]      = Class.forName(paramType);
       Method m  = getAccessor(accessorName, c);
 
-      ParamSpec nameSpec = new ParamSpec(kWord, c[0], m, null);
-      paramSpecs.addElement(nameSpec);
+      ParamSpec nameSpec = new ParamSpec(kWord, c[0], handle(m), null);
+      paramSpecs.put(kWord, nameSpec);
    }
 
-   /** creates a new ParamSpec and adds it to the list of specs */
+   /** creates a new ParamSpec and adds it to the list of specs (once per
+       class, as addSpec()) */
    protected void addSpecSpecial(String kWord, String accessorName,
 		                 String readerName)
              throws NoSuchMethodException, SecurityException,
                     ClassNotFoundException
    {
+      if (!newSpecs)
+         return;
+
       Class[] c  = new Class[1];
       c[0]       = Class.forName("java.util.Vector");
       Method m   = getAccessor(accessorName, c);
@@ -117,8 +145,21 @@ abstract class RaytracerObject
       ct[0]      = Class.forName("java.io.StreamTokenizer");
       Method r   = getAccessor(readerName, ct);
       
-      ParamSpec nameSpec = new ParamSpec(kWord, c[0], m, r);
-      paramSpecs.addElement(nameSpec);
+      ParamSpec nameSpec = new ParamSpec(kWord, c[0], handle(m), handle(r));
+      paramSpecs.put(kWord, nameSpec);
+   }
+
+   /** a method handle calling an accessor (looked up from here, as the
+       classes of the objects are not public) */
+   private static MethodHandle handle(Method m)
+             throws NoSuchMethodException
+   {
+      try {
+         return MethodHandles.lookup().unreflect(m);
+      } catch (IllegalAccessException E) {
+         throw new NoSuchMethodException("Accessor " + m.getName() +
+                                         " cannot be called");
+      }
    }
 
    //------------------------------------------------------------------------
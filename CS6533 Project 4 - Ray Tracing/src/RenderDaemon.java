@@ -0,0 +1,284 @@
+/* class RenderDaemon
+ * Renders the jobs TraceClient sends it (the command line of Trace, run
+ * in the client's directory) without starting a program for each one.
+ * The scenes read are kept, with their object hierarchies, so a scene
+ * rendered again is not read again (unless its file, or a file it uses,
+ * has changed); the ones used least recently are dropped first.
+ * Textures are shared by all the scenes through TextureCache.
+ *
+ * Up to jobCount jobs are rendered at a time, and the others wait, all
+ * on the same rendering threads.  A scene is taken out of the cache while
+ * a job renders it: jobs rendering the same scene at once read a copy of
+ * it each.
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+
+class RenderDaemon
+{
+    // First number a client sends, and the port used unless another is
+    // given
+    static final int MAGIC = 0x54524344;
+    static final int DEFAULT_PORT = 6533;
+
+    // Time a client has to send its job (in milliseconds), and the most
+    // arguments a job can have
+    static final int JOB_TIMEOUT = 10000;
+    static final int MAX_ARGUMENTS = 256;
+
+    // Jobs are taken on this machine only
+    ServerSocket server;
+    ExecutorService jobs;
+
+    // Rendering threads shared by every job (null to render each job on
+    // the thread that runs it)
+    int threads;
+    ForkJoinPool pool = null;
+
+    // Scenes read and not being rendered, least recently used first (by
+    // the file and the settings they were read with), and the most kept
+    LinkedHashMap<String, CachedScene> scenes =
+        new LinkedHashMap<String, CachedScene>(16, 0.75f, true);
+    int sceneCount;
+
+    //------------------------------------------------------------------------
+
+    /** a scene read, and the files it was read from (with the time each
+     *  was last changed then)
+     */
+    static class CachedScene
+    {
+        Scene scene;
+        Vector<String> files = new Vector<String>();
+        Vector<Long> modified = new Vector<Long>();
+
+        /** true if none of the files has changed since */
+        boolean isCurrent()
+        {
+            for (int f = 0; f < files.size(); f++)
+              if (new File(files.elementAt(f)).lastModified() !=
+                  modified.elementAt(f).longValue())
+                return false;
+            return true;
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** take jobs on a port, rendering up to jobCount at a time on
+     *  newThreads threads, and keep up to sceneCount scenes
+     */
+    public RenderDaemon(int port, int jobCount, int newSceneCount,
+                        int newThreads)
+        throws IOException
+    {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        jobs = Executors.newFixedThreadPool(jobCount);
+        sceneCount = newSceneCount;
+
+        threads = Math.max(1, newThreads);
+        if (threads > 1)
+          pool = new ForkJoinPool(threads);
+    }
+
+    /** take jobs until the program is stopped */
+    public void run() throws IOException
+    {
+        if (Trace.verbose)
+          System.out.println("Taking render jobs on port " +
+                             server.getLocalPort());
+
+        while (true) {
+            final Socket socket = server.accept();
+            jobs.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /** read a job from a client, render it and send back the result: a
+     *  status (0 if the image was written) and a message
+     */
+    private void serve(Socket socket)
+    {
+        try {
+            // (A client that does not send its job would hold a job
+            // thread)
+            socket.setSoTimeout(JOB_TIMEOUT);
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readInt() != MAGIC)
+              return;
+            String directory = in.readUTF();
+            int argumentCount = in.readInt();
+            if (argumentCount < 0 || argumentCount > MAX_ARGUMENTS)
+              return;
+            String[] arguments = new String[argumentCount];
+            for (int a = 0; a < arguments.length; a++)
+              arguments[a] = in.readUTF();
+
+            int status = 1;
+            String message;
+            try {
+                message = render(directory, arguments);
+                status = 0;
+            } catch (IllegalArgumentException e) {
+                message = e.getMessage() != null ? e.getMessage() :
+                    "Usage: " + TraceOptions.getUsage("TraceClient");
+            } catch (ParseException e) {
+                message = e.getMessage() + " in line " + e.getErrorOffset();
+            } catch (InvocationTargetException e) {
+                message = String.valueOf(e.getTargetException());
+            } catch (Exception e) {
+                message = String.valueOf(e);
+            }
+
+            if (Trace.verbose)
+              System.out.println(message);
+
+            out.writeInt(status);
+            out.writeUTF(message);
+            out.flush();
+        } catch (IOException e) {
+            // The client is gone
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed already
+            }
+        }
+    }
+
+    /** render a job (a command line of Trace, run in directory); returns
+     *  what was done
+     */
+    private String render(String directory, String[] arguments)
+        throws ParseException, IOException, NoSuchMethodException,
+        ClassNotFoundException, IllegalAccessException,
+        InvocationTargetException, NoSuchFieldException,
+        InstantiationException
+    {
+        TraceOptions options = new TraceOptions(arguments);
+        if (options.isDistributed() || options.coordinatorAddress != null ||
+            options.daemonPort > 0 || options.frames)
+          throw new IllegalArgumentException("Distributed rendering, -frames " +
+                                             "and -daemon are not available in jobs");
+        // (The texture cache is shared by every job)
+        if (options.textureCache >= 0)
+          throw new IllegalArgumentException("-texcache is set when the " +
+                                             "daemon starts, not in jobs");
+        options.setDirectory(directory);
+        options.threads = threads;
+        options.pool = pool;
+        if (!new File(options.inputFileName).isFile())
+          throw new IllegalArgumentException("Specified file does not exist. --- " +
+                                             options.inputFileName);
+
+        long start = System.currentTimeMillis();
+
+        // The scene (read with the settings the threads' scratch storage
+        // depends on)
+        String key = new File(options.inputFileName).getCanonicalPath() +
+            " " + directory +
+            (options.adaptive ? " adaptive" : "") +
+            (options.mapped ? " mapped" : "") +
+            (options.bvhCache ? "" : " nocache");
+        CachedScene cached = takeScene(key);
+        boolean reused = cached != null;
+        if (cached == null)
+          cached = read(options, directory);
+
+        long read = System.currentTimeMillis();
+
+        // (A scene whose render failed is not kept: its threads are stopped)
+        Scene s = cached.scene;
+        boolean rendered = false;
+        try {
+            options.apply(s);
+            RGBImage image = s.render(options.width, options.height, false);
+            if (image != null)
+              image.writeAtomically(options.outputFileName);
+            s.setImage(null);
+            rendered = true;
+        } finally {
+            if (!rendered)
+              cached.scene.shutdown();
+        }
+
+        putScene(key, cached);
+
+        long done = System.currentTimeMillis();
+        return options.outputFileName + ": " + options.width + "x" +
+            options.height + " in " + (done - start) + " ms (" +
+            (reused ? "scene cached" : "scene read in " + (read - start) +
+             " ms") + ")";
+    }
+
+    /** read a scene, and list the files it uses */
+    private static CachedScene read(TraceOptions options, String directory)
+        throws ParseException, IOException, NoSuchMethodException,
+        ClassNotFoundException, IllegalAccessException,
+        InvocationTargetException, NoSuchFieldException,
+        InstantiationException
+    {
+        CachedScene cached = new CachedScene();
+
+        // (No other scene is read in between: see readScene())
+        Vector<String> names;
+        synchronized (TraceOptions.class) {
+            SceneFiles.clear();
+            cached.scene = options.readScene(options.inputFileName, directory);
+            names = SceneFiles.getNames();
+        }
+
+        names.insertElementAt(options.inputFileName, 0);
+        for (int f = 0; f < names.size(); f++) {
+            String file = names.elementAt(f);
+            if (f > 0 && !new File(file).isAbsolute())
+              file = new File(directory, file).getPath();
+            cached.files.addElement(file);
+            cached.modified.addElement(new File(file).lastModified());
+        }
+
+        return cached;
+    }
+
+    /** take a scene out of the cache (null if it is not there, or its
+     *  files have changed)
+     */
+    private synchronized CachedScene takeScene(String key)
+    {
+        CachedScene cached = scenes.remove(key);
+        if (cached != null && !cached.isCurrent()) {
+            cached.scene.shutdown();
+            cached = null;
+        }
+        return cached;
+    }
+
+    /** put a scene back into the cache, dropping the ones used least
+     *  recently if there are too many
+     */
+    private synchronized void putScene(String key, CachedScene cached)
+    {
+        CachedScene old = scenes.put(key, cached);
+        if (old != null)
+          old.scene.shutdown();
+
+        Iterator<CachedScene> i = scenes.values().iterator();
+        while (scenes.size() > sceneCount && i.hasNext()) {
+            i.next().scene.shutdown();
+            i.remove();
+        }
+    }
+}
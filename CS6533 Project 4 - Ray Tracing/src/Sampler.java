@@ -0,0 +1,44 @@
+/* class Sampler
+ * Random numbers for placing rays in pixels.  Each number is computed
+ * from the pixel, the sample and the dimension (u or v) alone, by
+ * hashing them, so it does not depend on which thread renders the pixel
+ * or in what order, and nothing has to be allocated.  A seed picks
+ * another set of numbers (for renders of the same image whose samples
+ * are to be averaged).
+ */
+class Sampler
+{
+    // Dimensions of a sample
+    public static final int U = 0;
+    public static final int V = 1;
+
+    private static final double UNIT = 1.0 / (1L << 53);
+
+    /** number in [0, 1) for a dimension of a sample of a pixel (given by
+     *  its index in the image); the same arguments give the same number
+     */
+    public static double get(int pixel, int sample, int dimension)
+    {
+        return get(0, pixel, sample, dimension);
+    }
+
+    /** same as get() above, for the set of numbers of a seed (seed 0 is
+     *  the set get() above uses)
+     */
+    public static double get(int seed, int pixel, int sample, int dimension)
+    {
+        long z = mix(pixel * 0x9E3779B97F4A7C15L + sample +
+                     seed * 0xD1B54A32D192ED03L);
+        z = mix(z + (dimension + 1) * 0xBF58476D1CE4E5B9L);
+
+        return (z >>> 11) * UNIT;
+    }
+
+    // Scramble the bits of z (the finalizer of the SplitMix64 generator)
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
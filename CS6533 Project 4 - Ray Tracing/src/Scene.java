@@ -5,9 +5,13 @@
  * Doug DeCarlo
  */
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.ParseException;
 import java.lang.reflect.*;
 import java.io.*;
+import java.security.*;
+import java.math.*;
+import java.lang.management.*;
 import javax.vecmath.*;
 
 class Scene
@@ -16,21 +20,66 @@ class Scene
     Vector<Shape>    objects    = new Vector<Shape>();
     Vector<Light>    lights     = new Vector<Light>();
     Vector<Material> materials  = new Vector<Material>();
+    Hashtable<String, Material> materialNames = new Hashtable<String, Material>();
     Camera      camera     = null;
     MatrixStack MStack     = new MatrixStack();
 
+    // Keys of an animated camera, in the order of their frames (camera
+    // is set between them for each frame; empty if it does not move)
+    Vector<Camera> cameraKeys = new Vector<Camera>();
+
+    // Frame of the animation the scene is at (objects and lights that
+    // move are placed for it, see setFrame())
+    double      frame      = 0;
+
     RGBImage    image      = null;
 
+    // Size of the image being rendered
+    int         width      = 0;
+    int         height     = 0;
+
+    // Output written tile by tile into a mapped file (if outputFile is
+    // set), instead of into image; with resume, the tiles finished by an
+    // earlier run of the same render are kept
+    String      outputFile = null;
+    boolean     resume     = false;
+    MappedImage output     = null;
+
+    // Bounding volume hierarchy over objects (built by setup()), with
+    // the bounds of each object and its descendants, and which of them
+    // move from frame to frame (their bounds are refitted)
+    Shape[]     objectArray = null;
+    BVH         objectTree  = null;
+    BoundingBox[] objectBounds = null;
+    boolean[]   objectMoves = null;
+    boolean     animated    = false;
+
+    // Scene file this scene was read from (set by the parser), and the
+    // files it uses (textures and meshes; see SceneFiles)
+    String      fileName    = null;
+    Vector<String> usedFiles = new Vector<String>();
+
+    // Keep the hierarchy in a file next to the scene file, so it does not
+    // have to be rebuilt the next time the same scene is rendered
+    boolean     bvhCache    = true;
+
     // ------
     
-    // Current insertion point in hierarchy for parser
+    // Current insertion point in hierarchy for parser, and the levels
+    // above it ("down" pushes the current level, "up" pops it)
     Vector<Shape> currentLevel;
+    Stack<Vector<Shape>> levels = new Stack<Vector<Shape>>();
+
+    // Prototypes placed by instances, by name, and the one currently
+    // being defined (null outside of define/end)
+    Hashtable<String, Prototype> prototypes = new Hashtable<String, Prototype>();
+    Prototype   definition  = null;
 
     // Hierarchy enable (if off, "up" and "down" have no effect)
-    // (Use this if you implement hierarchical object management or CSG)
-    // (if you turn this on, you'll need to re-write intersects() and 
-    // shadowTint() recursively for it to see the child objects!)
-    boolean hierarchyOn    = false;
+    // (children of an object are tested only if the ray passes through
+    // the bounds of the object and all of its descendants, see
+    // Shape.setupGroup())
+    boolean hierarchyOn    = true;
     
     // ------
 
@@ -39,6 +88,73 @@ class Scene
     
     // Minimum t value in intersection computations
     double epsilon         = 1e-5;
+
+    // Number of rendering threads (1 renders on the calling thread)
+    int threads            = 1;
+
+    // Side length (in pixels) of the tiles the image is split into
+    int tileSize           = 32;
+
+    // Number of jittered rays per pixel
+    int samples            = 5;
+
+    // Set of random numbers used to place rays in pixels (renders of
+    // the same scene with different seeds can be averaged)
+    int seed               = 0;
+
+    // Adaptive anti-aliasing: one ray per pixel, then more (up to
+    // maxSamples, spread over the pixel) where the pixel differs from its
+    // neighbors by more than contrastThreshold on the display scale
+    boolean adaptive       = false;
+    int maxSamples         = 16;
+    double contrastThreshold = 0.05;
+
+    // Texture filtering: lookups are the size of the cone of rays
+    // through a pixel (mipmapping), or of a single point; pixelSpread is
+    // the widening of that cone per unit of distance (set by render())
+    boolean mipmapping     = true;
+    double pixelSpread     = 0;
+
+    // Progressive rendering: number of passes of one ray per pixel
+    // (0 renders each pixel in one go), averaged in the accumulation
+    // buffer; the image so far is written to snapshotFile every
+    // snapshotSeconds, and every snapshotPasses passes (if not 0)
+    int passes             = 0;
+    double snapshotSeconds = 10;
+    int snapshotPasses     = 0;
+    String snapshotFile    = null;
+    AccumulationBuffer accumulation = null;
+
+    // Pass being rendered
+    int pass               = 0;
+
+    // Number of tiles finished so far in the current render
+    int tilesDone          = 0;
+
+    // Threads used for rendering and building (created when first needed,
+    // unless shared with other scenes)
+    ForkJoinPool pool      = null;
+    boolean sharedPool     = false;
+
+    // Worker processes the tiles are rendered on (null to render them
+    // here)
+    Coordinator coordinator = null;
+
+    // Scratch storage of each rendering thread (see newContext())
+    PerThread<RayContext> contexts = new PerThread<RayContext>() {
+        protected RayContext initialValue() {
+            return newContext();
+        }
+    };
+
+    // Test of rays against the bounds of each object, before they are
+    // intersected with it
+    Culler culler          = new Culler.SphereCuller();
+
+    // Work done in the current render, and bytes allocated while tracing
+    // rays (-1 if unknown)
+    RayStats stats         = new RayStats();
+    long bytesAllocated    = 0;
     
     
     // Constructor
@@ -51,275 +167,937 @@ class Scene
         currentLevel = objects;
 
         // Add default material
-        materials.addElement(new Material("default"));
+        addMaterial(new Material("default"));
     }
 
     //-----------------------------------------------------------------------
 
-    /** render an image of size width X height */
+    /** render an image of size width X height (returns null if it is
+     *  written to a mapped output file instead)
+     */
     public RGBImage render(int width, int height, boolean verbose)
         throws ParseException, IOException, NoSuchMethodException,
         ClassNotFoundException,IllegalAccessException,
         InvocationTargetException
     {
-        // Set up camera for this image resolution
-        camera.setup(width, height);
+        setupImage(width, height);
         
-        // Make a new image
-        image = new RGBImage(width, height);
-
-        // Ray trace every pixel -- the main loop
-        for (int i = 0; i < image.getWidth(); i++) {
-            if (verbose)
-              System.out.print("Rendering " +
-                               (int)(100.0*i/(image.getWidth()-1)) + "%\r");
-
-            for (int j = 0; j < image.getHeight(); j++) {
-                // Compute (x,y) coordinates of pixel in [-1, 1]
-                double x = ((double)i)/(image.getWidth()  - 1) * 2 - 1;
-                double y = ((double)j)/(image.getHeight() - 1) * 2 - 1;
-	       
-                
-                Vector3d color = new Vector3d(0,0,0);
-                
-                Random rgen = new Random();
-                rgen.setSeed((long)(x+y));
-                
-                for (int a = 0; a < 5; a++)
-                {
-                   
-                	// Compute ray at pixel (x,y)
-                    Ray r = camera.pixelRay(
-                    		x + (rgen.nextDouble() * -2.0) * this.epsilon, 
-                    		y + (rgen.nextDouble() * -2.0) * this.epsilon);
-                    
-                    // Compute resulting color at pixel (x,y)
-                    color.add(castRay(r, 0));
-                }
+        // Ray trace every tile -- the main loop
+        Vector<Tile> tiles = Tile.split(width, height, tileSize);
 
-                Tools.termwiseMul3d(color, new Vector3d(0.2, 0.2, 0.2));
-	       
-                // Set color in image
-                image.setPixel(i,j, color);
+        // Make a new image (or open the output file, and leave out the
+        // tiles it already has)
+        image = null;
+        if (outputFile != null) {
+            output = new MappedImage(outputFile, width, height, tiles.size(),
+                                     renderSignature(), resume);
+            if (verbose && output.getDoneCount() > 0)
+              System.out.println("Resuming: " + output.getDoneCount() +
+                                 " of " + tiles.size() + " tiles done");
+
+            Vector<Tile> missing = new Vector<Tile>();
+            for (int t = 0; t < tiles.size(); t++)
+              if (!output.isDone(tiles.elementAt(t)))
+                missing.addElement(tiles.elementAt(t));
+            tiles = missing;
+        } else {
+            image = new RGBImage(width, height);
+        }
+        tilesDone = 0;
+        stats.clear();
+        bytesAllocated = 0;
+
+        // (The output file is closed even if rendering fails, keeping
+        // its journal for -resume)
+        boolean finished = false;
+        try {
+            if (passes > 0)
+              renderProgressive(tiles, verbose);
+            else
+              renderTiles(tiles, verbose);
+            finished = true;
+        } finally {
+            if (output != null) {
+                if (finished)
+                  output.close();
+                else
+                  output.abandon();
+                output = null;
             }
         }
 
-        if (verbose) {
+        // (Rays traced by workers are not counted)
+        if (verbose && coordinator != null && stats.rays == 0) {
+            System.out.println();
+            System.out.println("Done!");
+        } else if (verbose) {
             System.out.println();
             System.out.println("Done!");
+            System.out.print(stats.rays + " rays cast");
+            if (getBytesPerRay() >= 0)
+              System.out.printf(", %.1f bytes allocated per ray",
+                                getBytesPerRay());
+            System.out.println();
+            System.out.print(stats.shadowRays + " shadow rays");
+            if (stats.shadowRays > 0)
+              System.out.print(", " + (int)(100.0*stats.occluderHits/stats.shadowRays) +
+                               "% blocked by the last occluder");
+            System.out.println();
+            System.out.print("Culling (" + culler.getName() + "): " +
+                             stats.cullTested + " objects tested");
+            if (stats.cullTested > 0)
+              System.out.print(", " + (int)(100.0*stats.cullRejected/stats.cullTested) +
+                               "% culled, " + (int)(100.0*stats.cullHits/stats.cullTested) +
+                               "% hit");
+            System.out.println();
         }
 
         return image;
     }
 
-    /** compute pixel color for ray tracing computation for ray r
-     *  (at a recursion depth)
+    /** set up the camera for an image of size width X height (before
+     *  any of its tiles are rendered)
      */
-    private Vector3d castRay(Ray r, int depth)
+    void setupImage(int width, int height)
     {
-        Vector3d color = new Vector3d();
-        ISect isect = new ISect();
+        this.width  = width;
+        this.height = height;
 
-        // Check if the ray hit any object (or recursion depth was exceeded)
-        if (depth <= recursionDepth && intersects(r, isect)) {
-            // -- Ray hit object as specified in isect
-
-            Material mat = isect.getHitObject().getMaterialRef();
-
-            // -- Compute contribution to this pixel for each light by doing
-            //    the lighting computation there (sending out a shadow feeler
-            //    ray to see if light is visible from intersection point)
-            Vector3d lightColor = new Vector3d(0,0,0);
-            for (int i = 0; i < this.lights.size(); ++i)
-            {
-            	Light tmp = this.lights.elementAt(i);
-            	lightColor.add(tmp.compute(isect, shadowRay(isect, tmp), r));
+        // Set up camera for this image resolution
+        camera.setup(width, height);
+
+        // Angle between the rays through neighboring pixels
+        pixelSpread = 0;
+        if (mipmapping)
+          pixelSpread = 2 * Math.tan(camera.getFovy()/2.0 * Math.PI/180.0) /
+                        Math.max(height - 1, 1);
+    }
+
+    /** ray trace every tile, on the worker processes if there are any */
+    private void renderTiles(Vector<Tile> tiles, boolean verbose)
+        throws IOException
+    {
+        if (coordinator != null)
+          coordinator.render(tiles, verbose);
+        else
+          renderTiles(tiles, tiles.size(), verbose);
+    }
+
+    /** ray trace tiles on the rendering threads (out of tileCount tiles
+     *  in the render, for reporting progress)
+     */
+    void renderTiles(Vector<Tile> tiles, int tileCount, boolean verbose)
+    {
+        if (threads <= 1) {
+            for (int t = 0; t < tiles.size(); t++) {
+                renderTile(tiles.elementAt(t));
+                reportProgress(tileCount, verbose);
             }
+        } else {
+            getPool().invoke(new TileTask(tiles, 0, tiles.size(), tileCount,
+                                          verbose));
+        }
+    }
 
-            if (mat.getKs().length() != 0)
-            {
-                // REFLECTION
-                Ray reflectedRay = new Ray();
-                Vector3d reflectedRayDirection = new Vector3d(0,0,0);
-                Tools.reflect(reflectedRayDirection, r.getDirection(), isect.getNormal());
-                reflectedRayDirection.negate();
-                reflectedRayDirection.normalize();
-                
-                reflectedRay.setDirection(reflectedRayDirection);
-                reflectedRay.setOrigin(isect.getHitPoint());
-                
-                Vector3d reflectedColor = castRay(reflectedRay, depth + 1);
-                Tools.termwiseMul3d(reflectedColor, mat.getKs());   
-                lightColor.add(reflectedColor);
+    /** ray trace the image in passes of one ray per pixel, adding up the
+     *  passes in the accumulation buffer; between passes, snapshots of
+     *  the image so far are written out when due
+     */
+    private void renderProgressive(Vector<Tile> tiles, boolean verbose)
+    {
+        accumulation = new AccumulationBuffer(width, height);
+        long lastSnapshot = System.currentTimeMillis();
+
+        for (pass = 0; pass < passes; pass++) {
+            tilesDone = 0;
+            renderTiles(tiles, tiles.size(), verbose);
+            accumulation.endPass();
+
+            if (snapshotFile == null || pass == passes - 1)
+              continue;
+
+            long now = System.currentTimeMillis();
+            boolean due = now - lastSnapshot >= snapshotSeconds * 1000 ||
+              (snapshotPasses > 0 && (pass + 1) % snapshotPasses == 0);
+            if (due) {
+                accumulation.resolve(image);
+                try {
+                    image.writeAtomically(snapshotFile);
+                } catch (IOException e) {
+                    System.err.println("Could not write snapshot " +
+                                       snapshotFile + ": " + e.getMessage());
+                }
+                lastSnapshot = now;
             }
+        }
 
-            
-            if (mat.getKt().length() != 0)
-            {
-	            // REFRACTION
-	            Ray refractedRay = new Ray();
-	            Vector3d refractedRayDirection = new Vector3d(0,0,0);
-	            Vector3d refractionNormal = new Vector3d(isect.getNormal());
-	            
-	            double rdotn = r.getDirection().dot(refractionNormal);
-	            if (rdotn >= 0)
-	            {
-	            	refractionNormal.negate();
-	            	Tools.refract(refractedRayDirection, r.getDirection(), refractionNormal, mat.getIndex(), Material.air_index);
-	            }
-	            else
-	            {
-	            	Tools.refract(refractedRayDirection, r.getDirection(), refractionNormal, Material.air_index, mat.getIndex());
-	            }
-	            
-	            refractedRayDirection.normalize();
-	            
-	            refractedRay.setDirection(refractedRayDirection);
-	            refractedRay.setOrigin(isect.getHitPoint());
-	            
-	            Vector3d refractedColor = castRay(refractedRay, depth + 1);
-	            Tools.termwiseMul3d(refractedColor, mat.getKt());   
-	            lightColor.add(refractedColor);
+        accumulation.resolve(image);
+    }
+
+    /** ray trace every pixel of a tile */
+    void renderTile(Tile tile)
+    {
+        RayContext ctx = contexts.get();
+        Vector3d color = ctx.pixelColor;
+
+        ctx.tileStats.set(ctx.stats);
+        long allocated = allocatedBytes();
+
+        if (passes > 0) {
+            renderPass(tile, ctx);
+        } else if (adaptive) {
+            renderAdaptive(tile, ctx);
+        } else {
+            for (int i = tile.x0; i < tile.x1; i++) {
+                for (int j = tile.y0; j < tile.y1; j++) {
+                    renderPixel(i, j, ctx, color);
+	       
+                    // Set color in image
+                    setPixel(tile, i, j, color, ctx);
+                }
             }
-            
+        }
 
-            color.set(lightColor);
+        if (output != null) {
+            try {
+                output.writeTile(tile, ctx.tilePixels);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write " + outputFile +
+                                           ": " + e.getMessage());
+            }
         }
 
-        return color;
+        countRays(ctx.stats, ctx.tileStats,
+                  allocated < 0 ? -1 : allocatedBytes() - allocated);
     }
 
-    /** determine the closest intersecting object along ray r (if any) 
-     *  and its intersection point
+    /** store the pixels of a tile rendered elsewhere (3 values per pixel,
+     *  row by row along the tile from its row y0): in the image, or in
+     *  the mapped output file
+     */
+    void storeTile(Tile tile, float[] values) throws IOException
+    {
+        int rowLength = 3 * tile.getWidth();
+
+        if (output == null) {
+            for (int j = tile.y0, n = 0; j < tile.y1; j++, n += rowLength)
+              System.arraycopy(values, n, image.data,
+                               3 * (j * width + tile.x0), rowLength);
+        } else {
+            byte[] pixels = new byte[values.length];
+            for (int n = 0; n < values.length; n++)
+              pixels[n] = (byte)RGBImage.displayByte(values[n]);
+            output.writeTile(tile, pixels);
+        }
+    }
+
+    /** set the color of pixel (i,j) of a tile: in the image, or (if the
+     *  output is mapped) in the bytes of the tile, as they are written
+     */
+    private void setPixel(Tile tile, int i, int j, Vector3d color,
+                          RayContext ctx)
+    {
+        if (output == null) {
+            image.setPixel(i, j, color);
+        } else {
+            // (Rounded to float first, as the image stores them)
+            int n = 3 * ((j - tile.y0) * tile.getWidth() + (i - tile.x0));
+            ctx.tilePixels[n]   = (byte)RGBImage.displayByte((float)color.x);
+            ctx.tilePixels[n+1] = (byte)RGBImage.displayByte((float)color.y);
+            ctx.tilePixels[n+2] = (byte)RGBImage.displayByte((float)color.z);
+        }
+    }
+
+    /** description of the render, for telling whether an output file
+     *  was started by the same render: the scene file, the files it uses
+     *  (by the time each was last changed, and its length), and every
+     *  setting that changes pixels
      */
-    private boolean intersects(Ray r, ISect intersection)
+    private String renderSignature()
     {
-        // For each object
-        Enumeration e = objects.elements();
+        String scene = "-";
+        if (fileName != null) {
+            try {
+                scene = new BigInteger(1, fileHash(fileName)).toString(16);
+            } catch (IOException e) {
+                // Unreadable scene file: cannot tell
+            }
+        }
+        for (int f = 0; f < usedFiles.size(); f++) {
+            File used = new File(usedFiles.elementAt(f));
+            scene += " " + used.getPath() + " " + used.lastModified() +
+                " " + used.length();
+        }
+
+        return "trace " + scene + " " + width + "x" + height +
+            " tile " + tileSize + " samples " + samples +
+            (adaptive ? " adaptive " + maxSamples + " " + contrastThreshold : "") +
+            (mipmapping ? " mipmap" : "") +
+            (seed != 0 ? " seed " + seed : "") +
+            (frame != 0 ? " frame " + frame : "");
+    }
+
+    /** compute the color of pixel (i,j) */
+    private void renderPixel(int i, int j, RayContext ctx, Vector3d color)
+    {
+        // Compute (x,y) coordinates of pixel in [-1, 1]
+        double x = ((double)i)/(width  - 1) * 2 - 1;
+        double y = ((double)j)/(height - 1) * 2 - 1;
+       
+        int pixel = j * width + i;
+
+        color.set(0,0,0);
         
-        while (e.hasMoreElements()) {
-            Shape current = (Shape)e.nextElement();
+        Ray r = ctx.primaryRay;
+        for (int a = 0; a < samples; a++)
+        {
+           
+        	// Compute ray at pixel (x,y)
+            camera.pixelRay(
+            		x + (Sampler.get(seed, pixel, a, Sampler.U) * -2.0) * this.epsilon, 
+            		y + (Sampler.get(seed, pixel, a, Sampler.V) * -2.0) * this.epsilon, r);
             
-            ISect itmp = new ISect();
-            Ray rtmp = new Ray(r);
+            // Compute resulting color at pixel (x,y)
+            castRay(r, 0, ctx);
+            color.add(ctx.colors[0]);
+        }
+
+        color.scale(1.0 / samples);
+    }
+
+    /** add one ray per pixel of a tile to the accumulation buffer: through
+     *  the center of the pixel in the first pass, and through a random
+     *  point of it in later ones
+     */
+    private void renderPass(Tile tile, RayContext ctx)
+    {
+
+        for (int i = tile.x0; i < tile.x1; i++) {
+            for (int j = tile.y0; j < tile.y1; j++) {
+                double u = 0.5, v = 0.5;
+                if (pass > 0 || seed != 0) {
+                    u = Sampler.get(seed, j * width + i, pass, Sampler.U);
+                    v = Sampler.get(seed, j * width + i, pass, Sampler.V);
+                }
+
+                accumulation.add(i, j, traceSample(i, j, u, v, ctx));
+            }
+        }
+    }
+
+    /** ray trace every pixel of a tile with adaptive anti-aliasing: the
+     *  center of each pixel (and of the pixels just around the tile, to
+     *  compare the tile's edge pixels against) is traced first, and only
+     *  the pixels that differ from their neighbors get more samples
+     */
+    private void renderAdaptive(Tile tile, RayContext ctx)
+    {
+        int x0 = Math.max(tile.x0 - 1, 0), x1 = Math.min(tile.x1 + 1, width);
+        int y0 = Math.max(tile.y0 - 1, 0), y1 = Math.min(tile.y1 + 1, height);
+        int rowLength = y1 - y0;
+        double[] first = ctx.firstColors, display = ctx.firstDisplay;
+        Vector3d color = ctx.pixelColor;
+
+        // First samples (3 values per pixel, row by row along j)
+        for (int i = x0; i < x1; i++) {
+            for (int j = y0; j < y1; j++) {
+                int n = 3 * ((i - x0) * rowLength + (j - y0));
+                Vector3d c = traceSample(i, j, 0.5, 0.5, ctx);
+                first[n]   = c.x;
+                first[n+1] = c.y;
+                first[n+2] = c.z;
+                display[n]   = RGBImage.displayValue(c.x);
+                display[n+1] = RGBImage.displayValue(c.y);
+                display[n+2] = RGBImage.displayValue(c.z);
+            }
+        }
+
+        for (int i = tile.x0; i < tile.x1; i++) {
+            for (int j = tile.y0; j < tile.y1; j++) {
+                int n = 3 * ((i - x0) * rowLength + (j - y0));
+                color.set(first[n], first[n+1], first[n+2]);
+
+                // Largest difference with the 4 neighbors
+                double contrast = 0;
+                if (i > x0)
+                  contrast = Math.max(contrast, difference(display, n, n - 3*rowLength));
+                if (i < x1 - 1)
+                  contrast = Math.max(contrast, difference(display, n, n + 3*rowLength));
+                if (j > y0)
+                  contrast = Math.max(contrast, difference(display, n, n - 3));
+                if (j < y1 - 1)
+                  contrast = Math.max(contrast, difference(display, n, n + 3));
+
+                int count = 1;
+                if (contrast > contrastThreshold && maxSamples > 1)
+                  count = refinePixel(i, j, display, n, ctx, color);
+
+                color.scale(1.0 / count);
+                setPixel(tile, i, j, color, ctx);
+            }
+        }
+    }
+
+    /** add jittered samples to the color of pixel (i,j) (whose first
+     *  sample is display[n..n+2] on the display scale): up to 4 samples,
+     *  then up to maxSamples if they still vary; returns the number of
+     *  samples in color
+     */
+    private int refinePixel(int i, int j, double[] display, int n,
+                            RayContext ctx, Vector3d color)
+    {
+        int pixel = j * width + i;
+
+        // Brightness of the samples on the display scale, to estimate
+        // their variation
+        double b = (display[n] + display[n+1] + display[n+2]) / 3;
+        double sum = b, sumSquares = b*b;
+
+        int count = 1, target = Math.min(4, maxSamples);
+        while (count < target) {
+            Vector3d c = traceSample(i, j,
+                                     Sampler.get(seed, pixel, count, Sampler.U),
+                                     Sampler.get(seed, pixel, count, Sampler.V),
+                                     ctx);
+            color.add(c);
+            count++;
+
+            b = (RGBImage.displayValue(c.x) + RGBImage.displayValue(c.y) +
+                 RGBImage.displayValue(c.z)) / 3;
+            sum += b;
+            sumSquares += b*b;
+
+            if (count == target && target < maxSamples) {
+                double mean = sum / count;
+                double variance = sumSquares / count - mean*mean;
+                if (variance > contrastThreshold * contrastThreshold)
+                  target = maxSamples;
+            }
+        }
+
+        return count;
+    }
+
+    /** trace a ray through point (u,v) of pixel (i,j), with u and v in
+     *  [0,1] across the pixel; returns its color (in ctx.colors[0])
+     */
+    private Vector3d traceSample(int i, int j, double u, double v,
+                                 RayContext ctx)
+    {
+        double x = (i + u - 0.5) / (width  - 1) * 2 - 1;
+        double y = (j + v - 0.5) / (height - 1) * 2 - 1;
+
+        camera.pixelRay(x, y, ctx.primaryRay);
+        castRay(ctx.primaryRay, 0, ctx);
+
+        return ctx.colors[0];
+    }
+
+    /** largest difference between the colors at values[a] and values[b] */
+    private static double difference(double[] values, int a, int b)
+    {
+        return Math.max(Math.abs(values[a]   - values[b]),
+               Math.max(Math.abs(values[a+1] - values[b+1]),
+                        Math.abs(values[a+2] - values[b+2])));
+    }
+
+    /** count a finished tile, and print the progress (called from all
+     *  rendering threads)
+     */
+    synchronized void reportProgress(int tileCount, boolean verbose)
+    {
+        tilesDone++;
+
+        if (verbose && passes > 0)
+          System.out.print("Pass " + (pass + 1) + "/" + passes + ": ");
+        if (verbose)
+          System.out.print("Rendering " + (int)(100.0*tilesDone/tileCount) +
+                           "% (" + tilesDone + "/" + tileCount +
+                           " tiles)\r");
+    }
+
+    /** renders a range of tiles, splitting it up across the pool */
+    private class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        Vector<Tile> tiles;
+        int first, last;
+        int tileCount;
+        boolean verbose;
+
+        TileTask(Vector<Tile> newTiles, int newFirst, int newLast,
+                 int newTileCount, boolean newVerbose)
+        {
+            tiles = newTiles;
+            first = newFirst;
+            last = newLast;
+            tileCount = newTileCount;
+            verbose = newVerbose;
+        }
+
+        protected void compute()
+        {
+            if (first >= last) {
+                // no tiles (an empty image)
+                return;
+            } else if (last - first == 1) {
+                renderTile(tiles.elementAt(first));
+                reportProgress(tileCount, verbose);
+            } else {
+                int middle = (first + last) / 2;
+                invokeAll(new TileTask(tiles, first, middle, tileCount, verbose),
+                          new TileTask(tiles, middle, last, tileCount, verbose));
+            }
+        }
+    }
+
+    /** compute pixel color for ray tracing computation for ray r
+     *  (at a recursion depth), into ctx.colors[depth]
+     */
+    private void castRay(Ray r, int depth, RayContext ctx)
+    {
+        Vector3d color = ctx.colors[depth];
+        ISect isect = ctx.isects[depth];
+
+        color.set(0,0,0);
+        isect.clear();
+        ctx.stats.rays++;
+
+        // Check if the ray hit any object (or recursion depth was exceeded)
+        if (depth <= recursionDepth && intersects(r, isect, ctx))
+          shade(r, isect, depth, ctx, color);
+    }
+
+    /** compute the color for ray r that hit an object (as specified in
+     *  isect) at a recursion depth
+     */
+    private void shade(Ray r, ISect isect, int depth, RayContext ctx,
+                       Vector3d color)
+    {
+        Material mat = isect.getHitObject().getMaterialRef();
+
+        // Size of the texture lookups: the width of the cone of rays
+        // through the pixel where it reaches the surface (the cone keeps
+        // widening along reflected and refracted rays)
+        Shape object = isect.getHitObject();
+        double distance = ctx.distances[depth] + isect.getT();
+        isect.footprintU = distance * pixelSpread / object.getTextureLengthU();
+        isect.footprintV = distance * pixelSpread / object.getTextureLengthV();
+        ctx.distances[depth + 1] = distance;
+
+        // -- Compute contribution to this pixel for each light by doing
+        //    the lighting computation there (sending out a shadow feeler
+        //    ray to see if light is visible from intersection point)
+        Vector3d lightColor = ctx.lightColors[depth];
+        lightColor.set(0,0,0);
+        for (int i = 0; i < this.lights.size(); ++i)
+        {
+        	Light tmp = this.lights.elementAt(i);
+        	tmp.compute(isect, shadowRay(isect, i, ctx), r, ctx,
+        	            ctx.lightResult);
+        	lightColor.add(ctx.lightResult);
+        }
+
+        if (mat.getKs().length() != 0)
+        {
+            // REFLECTION
+            Ray reflectedRay = ctx.secondaryRays[depth];
+            Vector3d reflectedRayDirection = reflectedRay.getDirection();
+            Tools.reflect(reflectedRayDirection, r.getDirection(), isect.getNormal());
+            reflectedRayDirection.negate();
+            reflectedRayDirection.normalize();
             
-            current.MInverse.transform(rtmp.direction);
-            current.MInverse.transform(rtmp.origin);
+            reflectedRay.setOrigin(isect.getHitPoint());
             
-            itmp.setT(0.0);
-                        
-            while (current.hit(rtmp, itmp, true, itmp.getT() + this.epsilon))
-            {
-            	if (Math.abs(itmp.getHitPoint().distance(rtmp.getPoint())) > this.epsilon // ignore close hits
-            		&& Math.abs(itmp.getNormal().dot(rtmp.getDirection())) > this.epsilon) // ignore tangent)
-            	{
-	            	if (intersection.getHitObject() == null || itmp.getT() < intersection.getT())
-	            	{
-	            		//Material m = current.getMaterialRef();
-	            		//if (m.hasBumpmap())
-	            			//itmp.normal = m.getBumpmapNormal(itmp.getU(), itmp.get)
-	            			
-	            		intersection.set(itmp);
-	            		intersection.setHitObject(current);
-	            	}
-            	}
-            }
+            castRay(reflectedRay, depth + 1, ctx);
+            Vector3d reflectedColor = ctx.colors[depth + 1];
+            Tools.termwiseMul3d(reflectedColor, mat.getKs());   
+            lightColor.add(reflectedColor);
+        }
+
+        
+        if (mat.getKt().length() != 0)
+        {
+	    // REFRACTION
+	    Ray refractedRay = ctx.secondaryRays[depth];
+	    Vector3d refractedRayDirection = refractedRay.getDirection();
+	    Vector3d refractionNormal = ctx.normal;
+	    refractedRayDirection.set(0,0,0);
+	    refractionNormal.set(isect.getNormal());
+	    
+	    double rdotn = r.getDirection().dot(refractionNormal);
+	    if (rdotn >= 0)
+	    {
+	    	refractionNormal.negate();
+	    	Tools.refract(refractedRayDirection, r.getDirection(), refractionNormal, mat.getIndex(), Material.air_index);
+	    }
+	    else
+	    {
+	    	Tools.refract(refractedRayDirection, r.getDirection(), refractionNormal, Material.air_index, mat.getIndex());
+	    }
+	    
+	    refractedRayDirection.normalize();
+	    
+	    refractedRay.setOrigin(isect.getHitPoint());
+	    
+	    castRay(refractedRay, depth + 1, ctx);
+	    Vector3d refractedColor = ctx.colors[depth + 1];
+	    Tools.termwiseMul3d(refractedColor, mat.getKt());   
+	    lightColor.add(refractedColor);
         }
+        
+
+        color.set(lightColor);
+    }
+
+    /** determine the closest intersecting object along ray r (if any) 
+     *  and its intersection point
+     */
+    private boolean intersects(Ray r, ISect intersection, RayContext ctx)
+    {
+        // Only the objects whose bounds the ray passes through are tested
+        // (and none beyond the closest hit found so far)
+        ClosestQuery query = ctx.closestQuery;
+        query.start(r, intersection);
+        objectTree.traverse(r, Double.MAX_VALUE, query, ctx.stack);
        
-        if (intersection.getHitObject() != null) {
-            // Transform intersection into world space
-        	
-        	Shape object = intersection.getHitObject();
-        	object.M.transform(intersection.hitPoint);
-        	object.MTInverse.transform(intersection.normal);
-        	intersection.normal.normalize();
-        	
+        if (query.closest != null) {
+            toWorld(query.closest, intersection);
         	return true;
         }
 
         return false;
     }
 
+    /** transform an intersection with an object into world space */
+    private static void toWorld(Shape object, ISect intersection)
+    {
+        object.M.transform(intersection.hitPoint);
+        object.MTInverse.transform(intersection.normal);
+        intersection.normal.normalize();
+    }
+
+    /** BVH visitor for intersects(): keeps the closest object hit (the
+     *  hit object of the intersection can be a shape inside of it, if it
+     *  is an instance); the children of an object are visited only if
+     *  the ray passes through their group bounds
+     */
+    class ClosestQuery implements BVH.Visitor
+    {
+        RayContext context;
+        Ray        ray;
+        ISect      intersection;
+        Shape      closest;
+
+        ClosestQuery(RayContext newContext)
+        {
+            context = newContext;
+        }
+
+        void start(Ray r, ISect newIntersection)
+        {
+            ray = r;
+            intersection = newIntersection;
+            closest = null;
+        }
+
+        public double visit(int primitive, double tMax)
+        {
+            return visitGroup(objectArray[primitive], tMax);
+        }
+
+        /** test an object, then its children; returns the new tMax */
+        double visitGroup(Shape current, double tMax)
+        {
+            if (mayHit(current, ray, tMax, context) &&
+                intersectObject(current, ray, intersection, context)) {
+                closest = current;
+                tMax = intersection.getT();
+            }
+
+            Shape[] children = current.childArray;
+            if (children.length > 0 && current.groupBounds.hit(ray, tMax))
+              for (int i = 0; i < children.length; i++)
+                tMax = visitGroup(children[i], tMax);
+
+            return tMax;
+        }
+    }
+
+    /** intersect ray r with a single object, replacing intersection if
+     *  the object is hit closer than it (and then returning true)
+     */
+    private boolean intersectObject(Shape current, Ray r, ISect intersection,
+                                    RayContext ctx)
+    {
+        ISect itmp = ctx.objectISect;
+        Ray rtmp = ctx.objectRay;
+        rtmp.setOrigin(r.getPoint());
+        rtmp.setDirection(r.getDirection());
+        
+        current.MInverse.transform(rtmp.direction);
+        current.MInverse.transform(rtmp.origin);
+        
+        // Closest crossing (ignoring close and tangent hits)
+        if (!current.nearestHit(rtmp, itmp, this.epsilon))
+          return false;
+        ctx.stats.cullHits++;
+
+        if (intersection.getHitObject() == null || itmp.getT() < intersection.getT())
+        {
+            intersection.set(itmp);
+            return true;
+        }
+
+        return false;
+    }
+
     /** compute the amount of unblocked color that is let through to
      *  a given intersection, for a particular light
      *
      *  If the light is entirely blocked, return (0,0,0), not blocked at all
      *  return (1,1,1), and partially blocked return the product of Kt's
      *  (from transparent objects)
+     *
+     *  (The result is ctx.tint, valid until the next shadow ray)
      */
-    Vector3d shadowRay(ISect intersection, Light light)
+    Vector3d shadowRay(ISect intersection, int lightIndex, RayContext ctx)
     {
+        Light light = lights.elementAt(lightIndex);
+        Ray r = ctx.shadowRay;
+        r.setOrigin(intersection.getHitPoint());
+
         // Compute shadow ray and call shadowTint() or shadowTintDirectional()
     	if (light.isDirectional())
     	{
-    		Ray r = new Ray();
-    		
-    		Point3d rayOrigin = new Point3d(intersection.getHitPoint());
-    		r.setOrigin(rayOrigin);
-    		
-    		Vector3d rayDirection = new Vector3d(light.getDirection());
+    		Vector3d rayDirection = r.getDirection();
+    		rayDirection.set(light.getDirection());
     		rayDirection.normalize();
-    		r.setDirection(rayDirection);
 
-    		return shadowTintDirectional(r);
+    		return shadowTintDirectional(r, lightIndex, ctx);
     	}
     	else
     	{
-    		Ray r = new Ray();
-    		
-    		Point3d rayOrigin = new Point3d(intersection.getHitPoint());
-    		r.setOrigin(rayOrigin);
-    		
-    		Vector3d rayDirection = new Vector3d();
+    		Vector3d rayDirection = r.getDirection();
     		rayDirection.x = light.getPosition().x - intersection.getHitPoint().x;
     		rayDirection.y = light.getPosition().y - intersection.getHitPoint().y;
     		rayDirection.z = light.getPosition().z - intersection.getHitPoint().z;
     		rayDirection.normalize();
-    		r.setDirection(rayDirection);
     		
-    		return shadowTint(r, r.getPoint().distance(light.getPosition()));
+    		return shadowTint(r, r.getPoint().distance(light.getPosition()),
+    		                  lightIndex, ctx);
     	}
     }
 
     /** determine how the light is tinted along a particular ray which
      *  has no maximum distance (i.e. from a directional light)
      */
-    private Vector3d shadowTintDirectional(Ray r)
+    private Vector3d shadowTintDirectional(Ray r, int lightIndex,
+                                           RayContext ctx)
     {
-        return shadowTint(r, Double.MAX_VALUE);
+        return shadowTint(r, Double.MAX_VALUE, lightIndex, ctx);
     }
 
     /** determine how the light is tinted along a particular ray, not
      *  considering intersections further than maxT
      */
-    private Vector3d shadowTint(Ray r, double maxT)
+    private Vector3d shadowTint(Ray r, double maxT, int lightIndex,
+                                RayContext ctx)
     {
-        Vector3d tint = new Vector3d(1.0, 1.0, 1.0);
-
-        // For each object
-        Enumeration e = objects.elements();
-        while (e.hasMoreElements()) {
-            Shape current = (Shape)e.nextElement();
+        Vector3d tint = ctx.tint;
+        ctx.stats.shadowRays++;
 
-            ISect itmp = new ISect();
-            Ray rtmp = new Ray(r);
-            
-            current.MInverse.transform(rtmp.direction);
-            current.MInverse.transform(rtmp.origin);
-            
-            itmp.setT(0.0);
-            
-            while (	current.hit(rtmp, itmp, false, itmp.getT() + this.epsilon) 
-            		&& itmp.getT() < maxT )
-            {
-            		Vector3d kt = current.getMaterialRef().getKt();
-	    			Tools.termwiseMul3d(tint, kt);
+        // The object that last blocked this light usually blocks it for
+        // the next point as well (it is then the only one tested)
+        Shape last = ctx.occluders[lightIndex];
+        if (last != null && mayHit(last, r, maxT, ctx)) {
+            tint.set(1.0, 1.0, 1.0);
+            if (shadowObject(last, r, maxT, tint, ctx))
+              ctx.stats.cullHits++;
+            if (isBlack(tint)) {
+                ctx.stats.occluderHits++;
+                return tint;
             }
         }
 
+        tint.set(1.0, 1.0, 1.0);
+
+        // For each object the ray passes near, until the light is blocked
+        ShadowQuery query = ctx.shadowQuery;
+        query.start(r, maxT, tint);
+        objectTree.traverse(r, maxT, query, ctx.stack);
+        ctx.occluders[lightIndex] = query.blocker;
+
         return tint;
     }
 
+    /** true if a tint lets no light through */
+    private static boolean isBlack(Vector3d tint)
+    {
+        return tint.x == 0 && tint.y == 0 && tint.z == 0;
+    }
+
+    /** BVH visitor for shadowTint(): tints by every object along the ray
+     *  (and the children of those whose group bounds it passes through),
+     *  and stops at the object that blocks the light entirely (if any)
+     */
+    class ShadowQuery implements BVH.Visitor
+    {
+        RayContext context;
+        Ray        ray;
+        double     maxT;
+        Vector3d   tint;
+        Shape      blocker;
+
+        ShadowQuery(RayContext newContext)
+        {
+            context = newContext;
+        }
+
+        void start(Ray r, double newMaxT, Vector3d newTint)
+        {
+            ray = r;
+            maxT = newMaxT;
+            tint = newTint;
+            blocker = null;
+        }
+
+        public double visit(int primitive, double tMax)
+        {
+            return visitGroup(objectArray[primitive]) ? -1 : tMax;
+        }
+
+        /** tint by an object, then its children; returns true (and stops)
+         *  once the light is blocked
+         */
+        boolean visitGroup(Shape current)
+        {
+            if (mayHit(current, ray, maxT, context) &&
+                shadowObject(current, ray, maxT, tint, context))
+              context.stats.cullHits++;
+
+            if (isBlack(tint)) {
+                blocker = current;
+                return true;
+            }
+
+            Shape[] children = current.childArray;
+            if (children.length > 0 && current.groupBounds.hit(ray, maxT))
+              for (int i = 0; i < children.length; i++)
+                if (visitGroup(children[i]))
+                  return true;
+
+            return false;
+        }
+    }
+
+    /** tint by the Kt of an object, for each time ray r crosses it (until
+     *  no light is let through); returns true if it crosses it at all
+     */
+    private boolean shadowObject(Shape current, Ray r, double maxT,
+                                 Vector3d tint, RayContext ctx)
+    {
+        boolean crossed = false;
+
+        ISect itmp = ctx.objectISect;
+        Ray rtmp = ctx.objectRay;
+        rtmp.setOrigin(r.getPoint());
+        rtmp.setDirection(r.getDirection());
+        
+        current.MInverse.transform(rtmp.direction);
+        current.MInverse.transform(rtmp.origin);
+        
+        itmp.clear();
+        
+        while (	current.hit(rtmp, itmp, false, itmp.getT() + this.epsilon) 
+        		&& itmp.getT() < maxT )
+        {
+        		Vector3d kt = itmp.getHitObject().getMaterialRef().getKt();
+    			Tools.termwiseMul3d(tint, kt);
+    			crossed = true;
+    			if (isBlack(tint))
+    			  break;
+        }
+
+        return crossed;
+    }
+
+    /** true if ray r (up to tMax) is not culled by the bounds of an
+     *  object, which then has to be intersected; counted in the
+     *  statistics of ctx
+     */
+    private boolean mayHit(Shape object, Ray r, double tMax, RayContext ctx)
+    {
+        ctx.stats.cullTested++;
+        if (culler.mayHit(object, r, tMax))
+          return true;
+
+        ctx.stats.cullRejected++;
+        return false;
+    }
+
+    /** scratch storage for a rendering thread */
+    RayContext newContext()
+    {
+        RayContext ctx = new RayContext((int)recursionDepth);
+
+        ctx.closestQuery = new ClosestQuery(ctx);
+        ctx.shadowQuery  = new ShadowQuery(ctx);
+        ctx.stack        = objectTree.newStack();
+        ctx.occluders    = new Shape[lights.size()];
+
+        if (adaptive) {
+            int apron = 3 * (tileSize + 2) * (tileSize + 2);
+            ctx.firstColors  = new double[apron];
+            ctx.firstDisplay = new double[apron];
+        }
+
+        if (outputFile != null)
+          ctx.tilePixels = new byte[3 * tileSize * tileSize];
+
+        return ctx;
+    }
+
+    /** add the work done between two copies of the statistics of a
+     *  thread to the rendering statistics (called from all rendering
+     *  threads; bytes is -1 if they could not be counted)
+     */
+    private synchronized void countRays(RayStats end, RayStats start,
+                                        long bytes)
+    {
+        stats.add(end, start);
+        if (bytes < 0 || bytesAllocated < 0)
+          bytesAllocated = -1;
+        else
+          bytesAllocated += bytes;
+    }
+
+    /** bytes allocated per ray traced in the last render (-1 if they
+     *  could not be counted, or no rays were traced here)
+     */
+    public double getBytesPerRay()
+    {
+        if (bytesAllocated < 0 || stats.rays == 0)
+          return -1;
+        return (double)bytesAllocated / stats.rays;
+    }
+
+    /** bytes allocated so far by the current thread (-1 if the virtual
+     *  machine does not count them)
+     */
+    static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+          return -1;
+
+        return ((com.sun.management.ThreadMXBean)bean)
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     //------------------------------------------------------------------------
 
     /** Fetch a material by name */
@@ -330,41 +1108,139 @@ class Scene
           name = new String("default");
 
         // Find the material with this name
-        for (int i = 0; i < materials.size(); i++){
-            Material mat = (Material)materials.elementAt(i);
+        Material mat = materialNames.get(name);
+        if (mat == null)
+          throw new RuntimeException("Undefined material " + name);
 
-            if (mat.getName().compareTo(name) == 0) {
-                return mat;
-            }
+        return mat;
+    }
+
+    /** Add a material (the first one of a name is the one it fetches) */
+    private void addMaterial(Material m)
+    {
+        materials.addElement(m);
+        if (!materialNames.containsKey(m.getName()))
+          materialNames.put(m.getName(), m);
+    }
+
+    /** Fetch a prototype by name (a single named shape, defined before,
+     *  is turned into a prototype of its own)
+     */
+    Prototype getPrototype(String name)
+    {
+        Prototype proto = prototypes.get(name);
+        if (proto != null)
+          return proto;
+
+        Shape shape = findShape(objects, name);
+        for (Enumeration<Prototype> e = prototypes.elements();
+             shape == null && e.hasMoreElements(); )
+          shape = findShape(e.nextElement().getShapes(), name);
+
+        if (shape == null)
+          throw new RuntimeException("Undefined object " + name);
+
+        // (The hierarchy of a prototype is built once)
+        Vector<Shape> group = new Vector<Shape>();
+        shape.collectGroup(group);
+        for (int i = 0; i < group.size(); i++)
+          if (group.elementAt(i).getAnimation() != null)
+            throw new RuntimeException("Cannot make instances of " + name +
+                                       ", which moves");
+
+        proto = new Prototype(name);
+        proto.getShapes().addElement(shape);
+        proto.setup();
+        prototypes.put(name, proto);
+
+        return proto;
+    }
+
+    /** find a shape by name, among shapes and their descendants (null if
+     *  there is none)
+     */
+    private Shape findShape(Vector<Shape> shapes, String name)
+    {
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape shape = shapes.elementAt(i);
+            if (shape.getName().equals(name))
+              return shape;
+
+            shape = findShape(shape.children, name);
+            if (shape != null)
+              return shape;
         }
 
-        throw new RuntimeException("Undefined material " + name);
+        return null;
+    }
+
+    /** start a prototype definition: shapes are added to it (instead of
+     *  the scene) until endDefinition()
+     */
+    void beginDefinition(String name)
+    {
+        definition = new Prototype(name);
+        currentLevel = definition.getShapes();
+    }
+
+    /** finish the prototype definition */
+    void endDefinition()
+    {
+        definition.setup();
+        prototypes.put(definition.getName(), definition);
+
+        definition = null;
+        currentLevel = objects;
     }
 
     /** Add a new scene element */
     public void addObject(RaytracerObject newItem)
     {
+        Animation animation = MStack.peekAnimation();
+
         if (newItem instanceof Light) {
             Light l = (Light)newItem;
 
-            l.transform(MStack.peek());
+            if (animation != null)
+              l.setAnimation(animation, frame);
+            else
+              l.transform(MStack.peek());
 
             lights.addElement(l);
         } else if (newItem instanceof Material) {
-            Material m = (Material)newItem;
-
-            materials.addElement(m);
+            addMaterial((Material)newItem);
         } else if (newItem instanceof Shape) {
             Shape s = (Shape)newItem;
 
+            if (s instanceof Instance) {
+                Instance inst = (Instance)s;
+                inst.setPrototype(getPrototype(inst.getObjectName()));
+            }
+
             s.parent = currentLevel;
             s.setMaterialRef(getMaterial(s.getMaterialName()));
-            s.setMatrix(MStack.peek());
+            if (animation == null)
+              s.setMatrix(MStack.peek());
+            else if (definition != null)
+              throw new RuntimeException("Objects in a definition cannot move");
+            else
+              s.setAnimation(animation, frame);
 
             currentLevel.addElement(s);
         }
         else if (newItem instanceof Camera){
-            camera = (Camera)newItem;
+            Camera c = (Camera)newItem;
+
+            if (!c.isKey()) {
+                camera = c;
+            } else {
+                // Keep the keys in order
+                int k = 0;
+                while (k < cameraKeys.size() &&
+                       cameraKeys.elementAt(k).getKeyFrame() < c.getKeyFrame())
+                  k++;
+                cameraKeys.insertElementAt(c, k);
+            }
         }
     }
 
@@ -374,15 +1250,130 @@ class Scene
         ClassNotFoundException,IllegalAccessException,
         InvocationTargetException
     {
-        // Specify default camera if none specified in scene file
-        if (camera == null)
+        // Specify default camera if none specified in scene file (an
+        // animated camera is set from its keys)
+        if (camera == null || !cameraKeys.isEmpty())
           camera = new Camera();
+        if (!cameraKeys.isEmpty())
+          camera.interpolate(cameraKeys, frame);
 
         // Set up materials
         for (int i = 0; i < materials.size(); i++){
             Material mat = (Material)materials.elementAt(i);
             mat.setup(Trace.verbose);
         }
+
+        // Build the hierarchy of object bounds (over the top level of the
+        // object hierarchy, each object bounded with its descendants)
+        objectArray = objects.toArray(new Shape[objects.size()]);
+        objectBounds = new BoundingBox[objectArray.length];
+        objectMoves = new boolean[objectArray.length];
+        animated = !cameraKeys.isEmpty();
+        for (int i = 0; i < objectArray.length; i++) {
+            objectArray[i].setupGroup();
+            objectBounds[i] = objectArray[i].getGroupBounds();
+            objectMoves[i] = objectArray[i].isGroupAnimated();
+            animated |= objectMoves[i];
+        }
+        for (int i = 0; i < lights.size(); i++)
+          animated |= lights.elementAt(i).animation != null;
+
+        setupHierarchy(objectBounds);
+    }
+
+    /** place the camera, lights and objects that move where they are at
+     *  a frame (before the scene is read, or between renders): only the
+     *  objects that move, and the parts of the hierarchy above them, are
+     *  updated; the hierarchy keeps its structure
+     */
+    public void setFrame(double newFrame)
+    {
+        if (newFrame == frame)
+          return;
+        frame = newFrame;
+
+        // (Objects read later are placed for the frame as they are added)
+        if (objectTree == null)
+          return;
+
+        if (!cameraKeys.isEmpty())
+          camera.interpolate(cameraKeys, frame);
+
+        for (int i = 0; i < lights.size(); i++)
+          lights.elementAt(i).setFrame(frame);
+
+        boolean moved = false;
+        for (int i = 0; i < objectArray.length; i++) {
+            if (objectMoves[i]) {
+                objectArray[i].setFrame(frame);
+                moved = true;
+            }
+        }
+        if (moved)
+          objectTree.refit(objectBounds, objectMoves);
+    }
+
+    /** build the object hierarchy, or read it from the cache file if the
+     *  scene file has not changed since it was written
+     */
+    private void setupHierarchy(BoundingBox[] bounds)
+    {
+        String cacheName = null;
+        byte[] key = null;
+
+        if (bvhCache && fileName != null) {
+            try {
+                cacheName = fileName + ".bvh";
+                key = fileHash(fileName);
+                objectTree = BVH.read(cacheName, key, bounds);
+                if (objectTree != null) {
+                    if (Trace.verbose)
+                      System.out.println("Read hierarchy from " + cacheName);
+                    return;
+                }
+            } catch (IOException e) {
+                // Unreadable or truncated cache file: rebuild it
+                objectTree = null;
+            } catch (RuntimeException e) {
+                // (Or anything else wrong with it)
+                objectTree = null;
+            }
+        }
+
+        objectTree = new BVH(bounds, threads > 1 ? getPool() : null);
+
+        if (key != null) {
+            try {
+                objectTree.write(cacheName, key);
+            } catch (IOException e) {
+                if (Trace.verbose)
+                  System.err.println("Could not write " + cacheName);
+            }
+        }
+    }
+
+    /** SHA-1 hash of the contents of a file */
+    static byte[] fileHash(String name)
+        throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        InputStream in = new FileInputStream(name);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+              digest.update(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+
+        return digest.digest();
     }
 
     //-------------------------------------------------------------------------
@@ -391,4 +1382,74 @@ class Scene
     public RGBImage getImage() { return image; }
     public void setImage(RGBImage newImage) { image = newImage; }
     public MatrixStack getMStack()  { return MStack; }
+    public int getThreads() { return threads; }
+    public void setThreads(int newThreads) { threads = newThreads; }
+    public boolean isAdaptive() { return adaptive; }
+    public void setAdaptive(boolean newAdaptive) { adaptive = newAdaptive; }
+    public int getMaxSamples() { return maxSamples; }
+    public void setMaxSamples(int newMax) { maxSamples = newMax; }
+    public double getFrame() { return frame; }
+    public boolean isAnimated() { return animated; }
+    public int getSeed() { return seed; }
+    public void setSeed(int newSeed) { seed = newSeed; }
+    public int getPasses() { return passes; }
+    public void setPasses(int newPasses) { passes = newPasses; }
+    public void setSnapshots(String newFile, double seconds, int everyPasses)
+    {
+        snapshotFile = newFile;
+        snapshotSeconds = seconds;
+        snapshotPasses = everyPasses;
+    }
+    public String getFileName() { return fileName; }
+    public void setFileName(String newName) { fileName = newName; }
+    public void setUsedFiles(Vector<String> files) { usedFiles = files; }
+    public void setBVHCache(boolean cache) { bvhCache = cache; }
+    public String getOutputFile() { return outputFile; }
+
+    /** write the image straight into a mapped file as it is rendered
+     *  (null to keep it in memory); see MappedImage
+     */
+    public void setOutputFile(String newFile, boolean newResume)
+    {
+        outputFile = newFile;
+        resume = newResume;
+    }
+    public int getTileSize() { return tileSize; }
+    public void setTileSize(int newSize) { tileSize = newSize; }
+    public Coordinator getCoordinator() { return coordinator; }
+
+    /** render the tiles on worker processes (null to render them here) */
+    public void setCoordinator(Coordinator newCoordinator)
+    {
+        coordinator = newCoordinator;
+    }
+    public Culler getCuller() { return culler; }
+    public void setCuller(Culler newCuller) { culler = newCuller; }
+    public boolean isMipmapping() { return mipmapping; }
+    public void setMipmapping(boolean newMipmapping) { mipmapping = newMipmapping; }
+
+    /** pool of rendering threads */
+    synchronized ForkJoinPool getPool()
+    {
+        if (pool == null)
+          pool = new ForkJoinPool(threads);
+        return pool;
+    }
+
+    /** render on threads shared with other scenes (which shutdown()
+     *  leaves running)
+     */
+    public synchronized void setPool(ForkJoinPool newPool)
+    {
+        pool = newPool;
+        sharedPool = true;
+    }
+
+    /** stop the rendering threads (once the scene is not used anymore) */
+    public synchronized void shutdown()
+    {
+        if (pool != null && !sharedPool)
+          pool.shutdown();
+        pool = null;
+    }
 }
@@ -14,9 +14,11 @@ import java.util.*;
  */
 class SceneCommand
 {
-    String[] names = { "push", "pop", "identity",
-		       "translate", "rotate", "scale",
-		       "up", "down" };
+    // Names of the commands (each is the method reading it)
+    static HashSet<String> names = new HashSet<String>(Arrays.asList(
+	"push", "pop", "identity",
+	"translate", "rotate", "scale", "animate",
+	"up", "down", "define", "end" ));
 
     /** constructor. All kinds of operations will be treated as regular
         parameters, setting some flags about the data.
@@ -29,34 +31,45 @@ class SceneCommand
 	if (tokenizer.ttype!=StreamTokenizer.TT_WORD)
 	    throw new ParseException("Name expected instead of " + tokenizer,
 				     tokenizer.lineno());
-	Class[] paramList = {tokenizer.getClass(), s.getClass()};
-	Object[] params = {tokenizer, s };
-	
-	int i;
-	for (i=0; i<names.length; i++) {
-	    if (names[i].compareTo(tokenizer.sval)==0) {
-		// check for '{'
-		tokenizer.nextToken();
-		if ( tokenizer.ttype!='{' )
-		    throw new ParseException("No \"{\" found",
-					     tokenizer.lineno());
-		
-		// call the appropriate method
-		Method m = getClass().getMethod(names[i],paramList);
-		m.invoke(this,params);
-		
-		// check for '}'
-		tokenizer.nextToken();
-		if ( tokenizer.ttype!='}' )
-		    throw new ParseException("No \"}\" found",
-					     tokenizer.lineno());
-		break;
-	    }
-	}
 
-	if (i>=names.length)
+	String name = tokenizer.sval;
+	if (!names.contains(name))
 	    throw new ParseException("Unknows token "+tokenizer,
 				     tokenizer.lineno());
+
+	// check for '{'
+	tokenizer.nextToken();
+	if ( tokenizer.ttype!='{' )
+	    throw new ParseException("No \"{\" found",
+				     tokenizer.lineno());
+
+	// call the appropriate method
+	run(name, tokenizer, s);
+
+	// check for '}'
+	tokenizer.nextToken();
+	if ( tokenizer.ttype!='}' )
+	    throw new ParseException("No \"}\" found",
+				     tokenizer.lineno());
+    }
+
+    /** calls the method of a command */
+    private void run(String name, StreamTokenizer tokenizer, Scene s)
+	throws ParseException, IOException
+    {
+	switch (name) {
+	  case "push":      push(tokenizer, s);      break;
+	  case "pop":       pop(tokenizer, s);       break;
+	  case "identity":  identity(tokenizer, s);  break;
+	  case "translate": translate(tokenizer, s); break;
+	  case "rotate":    rotate(tokenizer, s);    break;
+	  case "scale":     scale(tokenizer, s);     break;
+	  case "animate":   animate(tokenizer, s);   break;
+	  case "up":        up(tokenizer, s);        break;
+	  case "down":      down(tokenizer, s);      break;
+	  case "define":    define(tokenizer, s);    break;
+	  case "end":       end(tokenizer, s);       break;
+	}
     }
 
     //-----------------------------------------------------------------------
@@ -80,7 +93,7 @@ class SceneCommand
     public void identity(StreamTokenizer tokenizer, Scene s)
     {
 	// nothing to read from tokenizer
-	s.getMStack().peek().setIdentity();
+	s.getMStack().setIdentity();
     }
     
     /** emulates glTranslate */
@@ -127,6 +140,47 @@ class SceneCommand
         s.getMStack().push(m);
     }
 
+    /** keyframed translate, rotate or scale: the value (after the axis,
+     *  for a rotation) at each of several frames, as "frame value" pairs
+     */
+    public void animate( StreamTokenizer tokenizer, Scene s )
+	throws ParseException, IOException
+    {
+	String name = Parser.readString(tokenizer);
+
+	Keyframes keys;
+	if (name.equals("translate"))
+	    keys = new Keyframes(Keyframes.TRANSLATE, null);
+	else if (name.equals("rotate"))
+	    keys = new Keyframes(Keyframes.ROTATE, Parser.readVector3d(tokenizer));
+	else if (name.equals("scale"))
+	    keys = new Keyframes(Keyframes.SCALE, null);
+	else
+	    throw new ParseException("Cannot animate " + name,
+				     tokenizer.lineno());
+
+	// Keys up to the closing brace (left for the caller)
+	while (tokenizer.nextToken() == StreamTokenizer.TT_NUMBER) {
+	    double frame = tokenizer.nval;
+	    Vector3d value;
+	    if (keys.type == Keyframes.ROTATE)
+		value = new Vector3d(Parser.readDouble(tokenizer).doubleValue(), 0, 0);
+	    else
+		value = Parser.readVector3d(tokenizer);
+
+	    if (!keys.addKey(frame, value))
+		throw new ParseException("Key frames must be in increasing order",
+					 tokenizer.lineno());
+	}
+	tokenizer.pushBack();
+
+	if (keys.getKeyCount() == 0)
+	    throw new ParseException("No key frames for " + name,
+				     tokenizer.lineno());
+
+	s.getMStack().animate(keys);
+    }
+
     // -----------------------------------------------------------------------
     // Hierarchy
 
@@ -137,12 +191,13 @@ class SceneCommand
 	if (!s.hierarchyOn)
 	  return;
 
-	if (s.currentLevel == s.objects) {
+	if (s.levels.isEmpty()) {
 	    throw new ParseException("Hierarchy underflow",
 				     tokenizer.lineno());
 	} else {
-	    // Move up in hierarchy
-	    s.currentLevel = ((Shape)s.currentLevel.firstElement()).parent;
+	    // Move up in hierarchy (the level may have no objects yet, so
+	    // it cannot be found through their parent)
+	    s.currentLevel = s.levels.pop();
 	}
     }
 
@@ -159,7 +214,43 @@ class SceneCommand
 				     tokenizer.lineno());
 	} else {
 	    // Move down in hierarchy (into last child)
+	    s.levels.push(s.currentLevel);
 	    s.currentLevel = ((Shape)s.currentLevel.lastElement()).children;
 	}
     }
+
+    // -----------------------------------------------------------------------
+    // Prototypes
+
+    /** Start defining a prototype (shapes up to the next 'end' are not
+     *  part of the scene, but can be placed with instances)
+     */
+    public void define(StreamTokenizer tokenizer, Scene s)
+        throws ParseException, IOException
+    {
+	String name = Parser.readString(tokenizer);
+
+	if (s.definition != null)
+	  throw new ParseException("Definitions cannot be nested",
+				   tokenizer.lineno());
+	if (s.currentLevel != s.objects)
+	  throw new ParseException("Cannot define inside a hierarchy",
+				   tokenizer.lineno());
+
+	s.beginDefinition(name);
+    }
+
+    /** Finish defining a prototype */
+    public void end(StreamTokenizer tokenizer, Scene s)
+        throws ParseException
+    {
+	if (s.definition == null)
+	  throw new ParseException("'end' without 'define'",
+				   tokenizer.lineno());
+	if (s.currentLevel != s.definition.getShapes())
+	  throw new ParseException("Hierarchy not closed before 'end'",
+				   tokenizer.lineno());
+
+	s.endDefinition();
+    }
 }
@@ -0,0 +1,85 @@
+/* class SceneFiles
+ * The files a scene refers to (textures, bump maps and meshes), by the
+ * name the scene gives them.  Names are looked up here before the files
+ * are opened, so that a scene sent to a worker can use copies of its
+ * files stored under other names, and a scene read for a client of the
+ * render daemon can name them relative to the client's directory.  Every
+ * name looked up is kept, so that the files a scene uses can be listed
+ * (to send them along with it, or to tell whether they have changed).
+ */
+import java.io.*;
+import java.util.*;
+
+class SceneFiles
+{
+    // Names looked up so far, in order
+    private static LinkedHashSet<String> names = new LinkedHashSet<String>();
+
+    // Files to open instead of the ones the names give
+    private static HashMap<String, String> copies = new HashMap<String, String>();
+
+    // Directory names are relative to (null for the current directory)
+    private static String directory = null;
+
+    //------------------------------------------------------------------------
+
+    /** the file to open for a name in the scene */
+    static synchronized String resolve(String name)
+    {
+        names.add(name);
+        return getPath(name);
+    }
+
+    /** the file a name in the scene is opened from (without keeping it) */
+    private static String getPath(String name)
+    {
+        String copy = copies.get(name);
+        if (copy != null)
+          return copy;
+        if (directory != null && !new File(name).isAbsolute())
+          return new File(directory, name).getPath();
+        return name;
+    }
+
+    /** make names relative to a directory (null for the current one) */
+    static synchronized void setDirectory(String newDirectory)
+    {
+        directory = newDirectory;
+    }
+
+    /** open a copy of a file (at path) whenever the scene names it */
+    static synchronized void setCopy(String name, String path)
+    {
+        copies.put(name, path);
+    }
+
+    /** every name looked up so far */
+    static synchronized Vector<String> getNames()
+    {
+        return new Vector<String>(names);
+    }
+
+    /** the files every name looked up so far is opened from */
+    static synchronized Vector<String> getPaths()
+    {
+        Vector<String> paths = new Vector<String>();
+        Iterator<String> i = names.iterator();
+        while (i.hasNext())
+          paths.addElement(getPath(i.next()));
+        return paths;
+    }
+
+    /** forget the names looked up so far (before reading a scene, to
+     *  list the files it uses) */
+    static synchronized void clearNames()
+    {
+        names.clear();
+    }
+
+    /** forget the names and the copies */
+    static synchronized void clear()
+    {
+        names.clear();
+        copies.clear();
+    }
+}
@@ -26,10 +26,35 @@ abstract class Shape extends RaytracerObject
     // Transpose Inverse of M (just the 3x3 part is transposed)
     Matrix4d MTInverse;
 
+    // Keyframed transformation M follows from frame to frame (null if
+    // the object does not move)
+    Animation animation = null;
+
+    // World-space bounding box and bounding sphere (computed by
+    // setMatrix(); the radius is negative if the object is empty)
+    BoundingBox bounds = new BoundingBox();
+    Point3d     boundingCenter = new Point3d();
+    double      boundingRadius = -1;
+
+    // World-space length of the surface along which u (and v) goes from
+    // 0 to 1, roughly (computed by setMatrix(), for sizing texture
+    // lookups)
+    double      textureLengthU = 1;
+    double      textureLengthV = 1;
+
     // Hierarchical object management
     Vector<Shape> parent = null;
     Vector<Shape> children = new Vector<Shape>();
 
+    // The children as an array, and the bounds of the object together
+    // with all of its descendants (computed by setupGroup())
+    Shape[]     childArray  = new Shape[0];
+    BoundingBox groupBounds = new BoundingBox();
+
+    // True if the object or any of its descendants moves (computed by
+    // setupGroup())
+    boolean     groupAnimated = false;
+
     //------------------------------------------------------------------------
 
     /** enforcing the presence of this constructor */
@@ -62,6 +87,98 @@ abstract class Shape extends RaytracerObject
     abstract boolean hit(Ray r, ISect intersection,
 			 boolean computeAllFields, double minT);
 
+    /** computes the closest point where the ray really crosses the
+     *  object, and returns true if there is one
+     *
+     * A crossing is a hit beyond epsilon that is more than epsilon away
+     * from the ray origin (in the coordinate system of the object) and
+     * not tangent to the surface.  All fields of the intersection are
+     * computed for it.
+     */
+    boolean nearestHit(Ray r, ISect intersection, double epsilon)
+    {
+	intersection.clear();
+
+	if (firstCrossing(r, intersection, epsilon))
+	    return true;
+
+	// The first hit grazes the surface or is at the ray origin (if
+	// there is one): look further along the ray, one hit at a time
+	return intersection.getHitObject() != null &&
+	       nextCrossing(r, intersection, epsilon);
+    }
+
+    /** computes the first hit beyond epsilon, and returns true if it is
+     *  a crossing (see nearestHit())
+     *
+     * If there is a hit that is not a crossing, the intersection holds
+     * its t value and hit object (the other fields are not needed).
+     * Shapes override this to skip the texture coordinates of such hits.
+     */
+    boolean firstCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	return hit(r, intersection, true, epsilon) &&
+	       isCrossing(r, intersection, epsilon);
+    }
+
+    /** finds the next crossing after the hit in intersection */
+    boolean nextCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	while (hit(r, intersection, true, intersection.getT() + epsilon))
+	    if (isCrossing(r, intersection, epsilon))
+		return true;
+
+	return false;
+    }
+
+    /** true if a hit (with its point and normal computed) is not too
+     *  close to the origin of ray r, nor tangent to the surface
+     */
+    static boolean isCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	return Math.abs(intersection.getHitPoint().distance(r.getPoint())) > epsilon &&
+	       Math.abs(intersection.getNormal().dot(r.getDirection())) > epsilon;
+    }
+
+    /** set box to the bounds of the object in its own coordinate
+     *  system (before M is applied)
+     */
+    abstract void getLocalBounds(BoundingBox box);
+
+    /** set center to the center of a sphere around the object in its own
+     *  coordinate system, and return its radius (negative if the object
+     *  is empty); by default, the sphere around the local bounds
+     */
+    double getLocalSphere(Point3d center)
+    {
+	BoundingBox box = new BoundingBox();
+	getLocalBounds(box);
+	if (box.isEmpty())
+	    return -1;
+
+	Point3d min = box.getMin(), max = box.getMax();
+	center.interpolate(min, max, 0.5);
+	return 0.5 * min.distance(max);
+    }
+
+    /** set lengths to the lengths of the surface along which u and v go
+     *  from 0 to 1, in the object's own coordinate system; by default,
+     *  the largest side of the local bounds for both
+     */
+    void getLocalTextureLengths(Vector2d lengths)
+    {
+	BoundingBox box = new BoundingBox();
+	getLocalBounds(box);
+
+	double size = 1;
+	if (!box.isEmpty()) {
+	    Vector3d extent = new Vector3d();
+	    extent.sub(box.getMax(), box.getMin());
+	    size = Math.max(extent.x, Math.max(extent.y, extent.z));
+	}
+	lengths.set(size, size);
+    }
+
     // -----------------------------------------------------------------------
 
     public String   getMaterialName() { return materialName; }
@@ -70,10 +187,33 @@ abstract class Shape extends RaytracerObject
     public Matrix4d getMatrix()       { return M; }
     public Matrix4d getInvMatrix()    { return MInverse; }
     public Matrix4d getInvTMatrix()   { return MTInverse; }
+    public BoundingBox getBounds()    { return bounds; }
+    public Point3d  getBoundingCenter() { return boundingCenter; }
+    public double   getBoundingRadius() { return boundingRadius; }
+    public double   getTextureLengthU() { return textureLengthU; }
+    public double   getTextureLengthV() { return textureLengthV; }
+
+    public Animation getAnimation()   { return animation; }
+    public boolean  isGroupAnimated() { return groupAnimated; }
+
+    public Shape[]  getChildArray()   { return childArray; }
+    public BoundingBox getGroupBounds() { return groupBounds; }
 
     public void setMaterialName(String newName) { materialName = newName; }
     public void setMaterialRef(Material newRef) { materialRef = newRef; }
 
+    /** make the object follow an animation, placing it where it is at a
+     *  frame
+     */
+    public void setAnimation(Animation newAnimation, double frame)
+    {
+	animation = newAnimation;
+
+	Matrix4d m = new Matrix4d();
+	animation.getMatrix(frame, m);
+	setMatrix(m);
+    }
+
     /** set the object transformation, and compute inverse */
     public void setMatrix(Matrix4d mat)
     {
@@ -90,6 +230,101 @@ abstract class Shape extends RaytracerObject
 	Vector3d translation = new Vector3d();
 	MInverse.get(translation);
 	MTInverse.set(invRS, translation, 1.0);
+
+	// World-space bounds
+	getLocalBounds(bounds);
+	bounds.transform(bounds, M);
+
+	// World-space bounding sphere: M stretches the radius by at most
+	// its largest singular value (bounded from above, and padded so
+	// that round-off never makes it too small)
+	double radius = getLocalSphere(boundingCenter);
+	M.transform(boundingCenter);
+	if (radius < 0) {
+	    boundingRadius = -1;
+	} else {
+	    boundingRadius = radius * maxStretch(M);
+	    boundingRadius += 1e-6 * (boundingRadius + 1);
+	}
+
+	// Texture lengths, scaled by the average stretch of M (the cube
+	// root of the change in volume)
+	Vector2d lengths = new Vector2d();
+	getLocalTextureLengths(lengths);
+	Matrix3d rs = new Matrix3d();
+	M.getRotationScale(rs);
+	double scale = Math.cbrt(Math.abs(rs.determinant()));
+	textureLengthU = lengths.x * scale;
+	textureLengthV = lengths.y * scale;
+    }
+
+    /** compute the child array and group bounds of the object and of
+     *  its descendants (once they have all been added)
+     */
+    public void setupGroup()
+    {
+	childArray = children.toArray(new Shape[children.size()]);
+
+	groupBounds.clear();
+	groupBounds.extend(bounds);
+	groupAnimated = animation != null;
+	for (int i = 0; i < childArray.length; i++) {
+	    childArray[i].setupGroup();
+	    groupBounds.extend(childArray[i].groupBounds);
+	    groupAnimated |= childArray[i].groupAnimated;
+	}
+    }
+
+    /** move the object and its descendants to where they are at a
+     *  frame, and recompute the group bounds (after setupGroup(); the
+     *  objects that do not move, and groups without any, are left alone)
+     */
+    public void setFrame(double frame)
+    {
+	if (!groupAnimated)
+	    return;
+
+	if (animation != null) {
+	    Matrix4d m = new Matrix4d();
+	    animation.getMatrix(frame, m);
+	    setMatrix(m);
+	}
+
+	groupBounds.clear();
+	groupBounds.extend(bounds);
+	for (int i = 0; i < childArray.length; i++) {
+	    childArray[i].setFrame(frame);
+	    groupBounds.extend(childArray[i].groupBounds);
+	}
+    }
+
+    /** add the object and all of its descendants to a list */
+    public void collectGroup(Vector<Shape> list)
+    {
+	list.addElement(this);
+	for (int i = 0; i < children.size(); i++)
+	    children.elementAt(i).collectGroup(list);
+    }
+
+    /** upper bound on how much m (its 3x3 part) can lengthen a vector:
+     *  the smaller of its Frobenius norm and sqrt(|m|_1 |m|_inf)
+     */
+    static double maxStretch(Matrix4d m)
+    {
+	double frobenius = 0, rows = 0, columns = 0;
+
+	for (int i = 0; i < 3; i++) {
+	    double row = 0, column = 0;
+	    for (int j = 0; j < 3; j++) {
+		frobenius += m.getElement(i, j) * m.getElement(i, j);
+		row += Math.abs(m.getElement(i, j));
+		column += Math.abs(m.getElement(j, i));
+	    }
+	    rows = Math.max(rows, row);
+	    columns = Math.max(columns, column);
+	}
+
+	return Math.min(Math.sqrt(frobenius), Math.sqrt(rows * columns));
     }
 
     public void print(PrintStream out)
@@ -29,14 +29,31 @@ class Sphere extends Shape
      *  radius 1
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	return hit(r, intersection, all, minT, -1);
+    }
+
+    /** first hit beyond epsilon, texture coordinates only for a crossing */
+    boolean firstCrossing(Ray r, ISect intersection, double epsilon)
+    {
+	return hit(r, intersection, true, epsilon, epsilon);
+    }
+
+    /** hit(); if epsilon is not negative, returns false for a hit that is
+     *  not a crossing (see Shape.nearestHit()) without computing its
+     *  texture coordinates
+     */
+    private boolean hit(Ray r, ISect intersection, boolean all, double minT,
+			double epsilon)
     {
 	double dirLength = r.getDirection().length();
 	r.getDirection().normalize();
 	minT *= dirLength;
-	Vector3d v = new Vector3d(r.getPoint());
+	Point3d  v  = r.getPoint();
+	Vector3d rd = r.getDirection();
 
-	double b   = -v.dot(r.getDirection());
-	double d   = b*b - v.lengthSquared()+1;
+	double b   = -(v.x*rd.x + v.y*rd.y + v.z*rd.z);
+	double d   = b*b - (v.x*v.x + v.y*v.y + v.z*v.z)+1;
 
 	if (d<0.0) return false;
 
@@ -49,6 +66,7 @@ class Sphere extends Shape
 	intersection.t = firstT > minT ? firstT : secondT;
 	intersection.setHitObject(this);
 
+	boolean crossing = true;
 	if (all) {
 	    Point3d hitPoint = intersection.getHitPoint();
 
@@ -59,12 +77,34 @@ class Sphere extends Shape
 	    intersection.getNormal().set(hitPoint);
 	    intersection.getNormal().normalize();
 	    
-	    uvSphere(intersection);
+	    crossing = epsilon < 0 || isCrossing(r, intersection, epsilon);
+	    if (crossing)
+		uvSphere(intersection);
 	}
 	
 	intersection.t /= dirLength;
 
-	return true;
+	return crossing;
+    }
+
+    /** unit sphere bounds */
+    void getLocalBounds(BoundingBox box)
+    {
+	box.getMin().set(-1, -1, -1);
+	box.getMax().set( 1,  1,  1);
+    }
+
+    /** the unit sphere is its own bounding sphere */
+    double getLocalSphere(Point3d center)
+    {
+	center.set(0, 0, 0);
+	return 1;
+    }
+
+    /** u goes around the equator, v from pole to pole */
+    void getLocalTextureLengths(Vector2d lengths)
+    {
+	lengths.set(2*Math.PI, Math.PI);
     }
 
     private void uvSphere(ISect intersection)
@@ -103,8 +143,11 @@ class Sphere extends Shape
 	intersection.getDpDu().set(-ipoint.y, ipoint.x, 0);
 	intersection.getDpDu().normalize();
 	
-	intersection.getDpDv().cross(new Vector3d(ipoint),
-				     intersection.getDpDu());
+	// dPdV = ipoint x dPdU
+	Vector3d dpdu = intersection.getDpDu();
+	intersection.getDpDv().set(ipoint.y*dpdu.z - ipoint.z*dpdu.y,
+				   dpdu.x*ipoint.z - dpdu.z*ipoint.x,
+				   ipoint.x*dpdu.y - ipoint.y*dpdu.x);
 	intersection.getDpDv().normalize();
     }
 }
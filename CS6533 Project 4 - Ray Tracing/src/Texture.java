@@ -0,0 +1,177 @@
+/* class Texture
+ * Image used as a texture or bump map, stored as a MIP pyramid: the
+ * image itself, then copies of it half as large each time (averaging
+ * 2x2 texels) down to a single texel.  Texels are kept as bytes (3 per
+ * texel, row by row), as in the image file.
+ *
+ * A lookup is given the size of the area of the texture it stands for
+ * (the footprint), and blends the two levels whose texels are closest to
+ * that size (trilinear filtering), so distant textures do not alias.
+ */
+import java.io.*;
+import javax.vecmath.*;
+
+class Texture
+{
+    // Texels of each level (level 0 is the image), and their sizes
+    byte[][] levels;
+    int[]    widths;
+    int[]    heights;
+
+    // Value of each texel byte
+    private static final double[] VALUES = new double[256];
+    static {
+        for (int b = 0; b < 256; b++)
+          VALUES[b] = b / 255.0;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** read a texture from a PPM (or PGM) file */
+    public Texture(String fileName)
+           throws IOException, FileNotFoundException, SecurityException
+    {
+        this(new PPMReader(fileName));
+    }
+
+    private Texture(PPMReader reader)
+    {
+        this(reader.getPixels(), reader.getWidth(), reader.getHeight());
+    }
+
+    /** make a texture from an image (with values in [0,1]) */
+    public Texture(RGBImage image)
+    {
+        this(toBytes(image), image.getWidth(), image.getHeight());
+    }
+
+    /** make a texture from the bytes of its pixels (3 per pixel, row by
+     *  row from the bottom), which it keeps as level 0
+     */
+    public Texture(byte[] texels, int width, int height)
+    {
+        // Number of levels, down to 1x1
+        int count = 1;
+        for (int size = Math.max(width, height); size > 1; size = (size+1)/2)
+          count++;
+
+        levels  = new byte[count][];
+        widths  = new int[count];
+        heights = new int[count];
+
+        levels[0] = texels;
+        widths[0] = width;
+        heights[0] = height;
+
+        for (int l = 1; l < count; l++)
+          reduce(l);
+    }
+
+    /** the values of an image as bytes */
+    private static byte[] toBytes(RGBImage image)
+    {
+        float[] data = image.data;
+        byte[] texels = new byte[data.length];
+        for (int n = 0; n < texels.length; n++)
+          texels[n] = (byte)Math.round(255 * Math.min(Math.max(data[n], 0f), 1f));
+        return texels;
+    }
+
+    /** compute level l by averaging 2x2 texels of level l-1 (an odd last
+     *  row or column is averaged with itself)
+     */
+    private void reduce(int l)
+    {
+        byte[] src = levels[l-1];
+        int sw = widths[l-1], sh = heights[l-1];
+        int w = (sw+1) / 2, h = (sh+1) / 2;
+        byte[] dst = new byte[w * h * 3];
+
+        for (int j = 0, n = 0; j < h; j++) {
+            int r0 = 3 * (2*j) * sw, r1 = 3 * Math.min(2*j + 1, sh-1) * sw;
+            for (int i = 0; i < w; i++) {
+                int c0 = 3 * (2*i), c1 = 3 * Math.min(2*i + 1, sw-1);
+                for (int k = 0; k < 3; k++, n++)
+                  dst[n] = (byte)(((src[r0+c0+k] & 0xff) + (src[r0+c1+k] & 0xff) +
+                                   (src[r1+c0+k] & 0xff) + (src[r1+c1+k] & 0xff) +
+                                   2) / 4);
+            }
+        }
+
+        levels[l] = dst;
+        widths[l] = w;
+        heights[l] = h;
+    }
+
+    //------------------------------------------------------------------------
+
+    public int getWidth()      { return widths[0]; }
+    public int getHeight()     { return heights[0]; }
+    public int getLevelCount() { return levels.length; }
+
+    /** bytes taken by the texels of all the levels */
+    public long getMemory()
+    {
+        long bytes = 0;
+        for (int l = 0; l < levels.length; l++)
+          bytes += levels[l].length;
+        return bytes;
+    }
+
+    /** the texture color at (u,v) (both in [0,1]), for a lookup whose
+     *  footprint spans du along u and dv along v (0 for the image itself);
+     *  stores the value in c
+     */
+    public void sample(double u, double v, double du, double dv, Vector3d c)
+    {
+        // Level whose texels are as large as the footprint
+        double texels = Math.max(du * widths[0], dv * heights[0]);
+        double lod = texels > 1 ? Math.log(texels) / Math.log(2) : 0;
+
+        int l = (int)lod;
+        if (l >= levels.length - 1) {
+            sampleLevel(levels.length - 1, u, v, c, 1.0, false);
+        } else {
+            double alpha = lod - l;
+            sampleLevel(l, u, v, c, 1 - alpha, false);
+            if (alpha > 0)
+              sampleLevel(l + 1, u, v, c, alpha, true);
+        }
+    }
+
+    /** bi-linear interpolation of the 4 texels of level l around (u,v),
+     *  weighted by w, stored in c (or added to it)
+     */
+    private void sampleLevel(int l, double u, double v, Vector3d c,
+                             double w, boolean add)
+    {
+        byte[] texels = levels[l];
+        int width = widths[l], height = heights[l];
+
+        double x = Math.min(Math.max(u, 0.0), 1.0) * (width-1);
+        double y = Math.min(Math.max(v, 0.0), 1.0) * (height-1);
+        int x0 = (int)x, y0 = (int)y;
+        double alphaX = x - x0, alphaY = y - y0;
+
+        // Neighbors to the right and above (the same texel at the edges)
+        int n  = 3 * (y0 * width + x0);
+        int dx = x0 < width-1  ? 3 : 0;
+        int dy = y0 < height-1 ? 3 * width : 0;
+
+        if (!add)
+          c.set(0, 0, 0);
+
+        addWeighted(c, w * (1-alphaX) * (1-alphaY), texels, n);
+        addWeighted(c, w *   (alphaX) * (1-alphaY), texels, n + dx);
+        addWeighted(c, w * (1-alphaX) *   (alphaY), texels, n + dy);
+        addWeighted(c, w *   (alphaX) *   (alphaY), texels, n + dx + dy);
+    }
+
+    /** c += w * (the texel whose bytes start at texels[n]) */
+    private static void addWeighted(Vector3d c, double w, byte[] texels, int n)
+    {
+        c.x += w * VALUES[texels[n]   & 0xff];
+        c.y += w * VALUES[texels[n+1] & 0xff];
+        c.z += w * VALUES[texels[n+2] & 0xff];
+    }
+}
@@ -0,0 +1,170 @@
+/* class TextureCache
+ * Textures shared by every material (and every scene) in the program,
+ * by file.  A texture is only read when it is first sampled, and is
+ * read again if its file has changed since.  If a budget is set, the
+ * textures used least recently are dropped from the cache once the ones
+ * read take more bytes than that.
+ *
+ * The budget only bounds the textures the cache keeps: materials still
+ * using a dropped texture keep it in memory (the scenes in use may take
+ * more).  Until they let it go, a lookup of its file (if unchanged) gets
+ * that same texture back, rather than reading a second copy.
+ */
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+
+class TextureCache
+{
+    // Entries by canonical path of the file, least recently used first
+    private static LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // Entries dropped to fit the budget, by path, while materials use them
+    private static HashMap<String, WeakReference<Entry>> dropped =
+        new HashMap<String, WeakReference<Entry>>();
+
+    // Bytes taken by the textures read (of the entries in the cache),
+    // and the most they may take (0 for no limit)
+    private static long bytes  = 0;
+    private static long budget = 0;
+
+    //------------------------------------------------------------------------
+
+    /** a texture file, as it was when looked up */
+    static class Entry
+    {
+        final String path;
+        final long   modified;
+
+        // The texture (null until it is first needed)
+        volatile Texture texture = null;
+
+        Entry(String newPath, long newModified)
+        {
+            path     = newPath;
+            modified = newModified;
+        }
+
+        /** the texture, read from the file the first time */
+        Texture get()
+        {
+            Texture t = texture;
+            return t != null ? t : load(this);
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** the entry for a texture file (the same one for every material
+     *  using the file, unless it has changed or been dropped in between)
+     */
+    static synchronized Entry lookup(String fileName) throws IOException
+    {
+        File file = new File(fileName).getCanonicalFile();
+        if (!file.isFile())
+          throw new FileNotFoundException(fileName);
+
+        String path = file.getPath();
+        long modified = file.lastModified();
+
+        Entry entry = entries.get(path);
+        if (entry == null)
+          entry = restore(path, modified);
+        if (entry == null || entry.modified != modified) {
+            if (entry != null)
+              remove(entry);
+            entry = new Entry(path, modified);
+            entries.put(path, entry);
+        }
+
+        return entry;
+    }
+
+    /** put an entry dropped to fit the budget back in the cache, if it is
+     *  still in use and its file has not changed (returns null if not)
+     */
+    private static Entry restore(String path, long modified)
+    {
+        WeakReference<Entry> reference = dropped.remove(path);
+        Entry entry = reference != null ? reference.get() : null;
+        if (entry == null || entry.modified != modified)
+          return null;
+
+        entries.put(path, entry);
+        bytes += entry.texture.getMemory();
+        trim(entry);
+        return entry;
+    }
+
+    /** read the texture of an entry (unless another thread just did) */
+    private static synchronized Texture load(Entry entry)
+    {
+        if (entry.texture == null) {
+            try {
+                entry.texture = new Texture(entry.path);
+            } catch (IOException e) {
+                throw new RuntimeException("Error while reading file " +
+                                           entry.path);
+            }
+
+            if (entries.get(entry.path) == entry) {
+                bytes += entry.texture.getMemory();
+                trim(entry);
+            }
+        }
+
+        return entry.texture;
+    }
+
+    /** drop the least recently used textures (other than keep) until
+     *  the rest fit in the budget
+     */
+    private static void trim(Entry keep)
+    {
+        Iterator<Entry> i = entries.values().iterator();
+        while (budget > 0 && bytes > budget && i.hasNext()) {
+            Entry entry = i.next();
+            if (entry != keep && entry.texture != null) {
+                bytes -= entry.texture.getMemory();
+                i.remove();
+                dropped.put(entry.path, new WeakReference<Entry>(entry));
+            }
+        }
+
+        // (Forget the dropped entries no material uses anymore)
+        Iterator<WeakReference<Entry>> d = dropped.values().iterator();
+        while (d.hasNext())
+          if (d.next().get() == null)
+            d.remove();
+    }
+
+    private static void remove(Entry entry)
+    {
+        if (entry.texture != null)
+          bytes -= entry.texture.getMemory();
+        entries.remove(entry.path);
+    }
+
+    //------------------------------------------------------------------------
+
+    public static synchronized long getBytes()  { return bytes; }
+    public static synchronized long getBudget() { return budget; }
+
+    /** set the most bytes the textures in the cache may take (0 for no
+     *  limit), dropping textures if they take more now
+     */
+    public static synchronized void setBudget(long newBudget)
+    {
+        budget = newBudget;
+        trim(null);
+    }
+
+    /** drop every texture */
+    public static synchronized void clear()
+    {
+        entries.clear();
+        dropped.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,57 @@
+/* class Tile
+ * A rectangular block of pixels of the output image; the unit of work
+ * handed out to the rendering threads
+ */
+import java.util.*;
+
+class Tile
+{
+    // Position of this tile in the tile list (scanline order)
+    int index;
+
+    // Pixel range covered: [x0, x1) X [y0, y1)
+    int x0, y0, x1, y1;
+
+    //------------------------------------------------------------------------
+
+    public Tile(int newIndex, int newX0, int newY0, int newX1, int newY1)
+    {
+        index = newIndex;
+        x0 = newX0;
+        y0 = newY0;
+        x1 = newX1;
+        y1 = newY1;
+    }
+
+    /** split an image of size width X height into tiles of (at most)
+     *  size X size pixels
+     */
+    public static Vector<Tile> split(int width, int height, int size)
+    {
+        Vector<Tile> tiles = new Vector<Tile>();
+
+        for (int y = 0; y < height; y += size) {
+            for (int x = 0; x < width; x += size) {
+                tiles.addElement(new Tile(tiles.size(), x, y,
+                                          Math.min(x + size, width),
+                                          Math.min(y + size, height)));
+            }
+        }
+
+        return tiles;
+    }
+
+    //------------------------------------------------------------------------
+
+    // accessors
+    public int getIndex()  { return index; }
+    public int getWidth()  { return x1 - x0; }
+    public int getHeight() { return y1 - y0; }
+    public int getPixelCount() { return getWidth() * getHeight(); }
+
+    public String toString()
+    {
+        return "Tile " + index + " [" + x0 + "," + x1 + ") x [" +
+            y0 + "," + y1 + ")";
+    }
+}
@@ -54,11 +54,12 @@ class Tools
 	/* Total internal reflection */
 	if (cos2T2 < 0.0) return false;
 	
-	Vector3d temp = new Vector3d();
-	temp.scale(eta * cosT1 - Math.sqrt(cos2T2), n);
-	
-	target.scale(eta, in);
-	target.add(temp);
+	/* target = eta * in + (eta * cos(theta1) - cos(theta2)) * n */
+	double s = eta * cosT1 - Math.sqrt(cos2T2);
+
+	target.set(eta * in.x + s * n.x,
+		   eta * in.y + s * n.y,
+		   eta * in.z + s * n.z);
 	return true;
     }
 }
@@ -3,7 +3,7 @@
  *
  * Doug DeCarlo
  */
-import java.io.PrintStream;
+import java.io.*;
 import java.text.ParseException;
 import java.lang.reflect.*;
 
@@ -14,48 +14,86 @@ class Trace
     public static void main(String arguments[])
     {
         try {
-            String inputFileName = "";
-            String outputFileName = "out.ppm";
+            TraceOptions options = null;
+            try {
+                options = new TraceOptions(arguments);
+            } catch (IllegalArgumentException e) {
+                if (e.getMessage() != null)
+                  System.err.println(e.getMessage());
+                else
+                  printUsage();
+                System.exit(0);
+            }
 
-            int width  = 128;
-            int height = 128;
+            verbose = options.verbose;
+            if (options.textureCache >= 0)
+              TextureCache.setBudget((long)(options.textureCache * 1024 * 1024));
 
-            if (arguments.length < 1) {
-                printUsage();
-                System.exit(0);
+            // Render tiles for a coordinator, instead of a scene file
+            if (options.coordinatorAddress != null) {
+                String address = options.coordinatorAddress;
+                int colon = address.lastIndexOf(':');
+                Worker.run(address.substring(0, colon),
+                           Integer.parseInt(address.substring(colon + 1)),
+                           options.threads);
+                return;
             }
 
-            for (int i=0; i < arguments.length; i++) {
-                if (arguments[i].compareTo("-out")==0) {
-                    outputFileName = arguments[++i];
-                } else if (arguments[i].compareTo("-res")==0) {
-                    width  = (new Integer(arguments[++i])).intValue();
-                    height = (new Integer(arguments[++i])).intValue();
-                } else if (arguments[i].compareTo("-quiet")==0) {
-                    verbose = false;
-                } else if (arguments[i].charAt(0) == '-') {
-                    printUsage();
-                    System.exit(0);
-                } else {
-                    inputFileName = arguments[i];
+            // Render every scene of a list or directory
+            if (options.batchName != null) {
+                try {
+                    new BatchRenderer(options).run();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
                 }
+                return;
+            }
+
+            // Render the frames of an animation
+            if (options.frames) {
+                new FrameRenderer(options).run();
+                return;
+            }
+
+            // Take render jobs from TraceClient, until stopped
+            if (options.daemonPort > 0) {
+                new RenderDaemon(options.daemonPort, options.jobCount,
+                                 options.sceneCount, options.threads).run();
+                return;
             }
 
             try {
-                Scene s = new Scene();
-                Parser p = new Parser(s);
+                // Parse the scene file, and set up the scene
+                Scene s = options.readScene(options.inputFileName, null);
 		
-                // Parse scene file
-                p.readFile(inputFileName);
-		
-                // Set up the scene
-                s.setup();
+                // Hand the tiles out to worker processes
+                Coordinator coordinator = null;
+                if (options.isDistributed()) {
+                    coordinator = new Coordinator(s, options.listenHost,
+                                                  options.listenPort,
+                                                  options.workerCount,
+                                                  options.threads,
+                                                  options.timeout);
+                    s.setCoordinator(coordinator);
+                    if (verbose && options.listenPort > 0)
+                      System.out.println("Workers can connect on port " +
+                                         coordinator.getPort() +
+                                         (options.listenHost == null ?
+                                          " (from this machine only)" :
+                                          " of " + options.listenHost));
+                }
 		
                 // Render the image
-                RGBImage i = s.render(width, height, verbose);
+                RGBImage i = s.render(options.width, options.height, verbose);
+                if (coordinator != null)
+                  coordinator.close();
 		
-                // Save the image
-                i.write(outputFileName);
+                // Save the image (replacing the last snapshot at once; a
+                // mapped output file has been written already)
+                if (options.passes > 0)
+                  i.writeAtomically(options.outputFileName);
+                else if (!options.mapped)
+                  i.write(options.outputFileName);
             } catch (InvocationTargetException e) {
                 throw e.getTargetException();
             }
@@ -72,7 +110,6 @@ class Trace
     private static void printUsage()
     {
         System.out.println("Usage: ");
-        System.out.println("java Trace <fileName> [-res <width height>] "+
-                           " [-out <outputFileName>] [-quiet] ");
+        System.out.println(TraceOptions.getUsage("Trace"));
     }
 }
@@ -0,0 +1,74 @@
+/* class TraceClient
+ * Has a RenderDaemon (started with "java Trace -daemon <port>") render
+ * an image, instead of running Trace: takes the same arguments, and
+ * ends once the image is written.
+ *
+ *   java TraceClient [-port <port>] <arguments of Trace>
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+class TraceClient
+{
+    public static void main(String arguments[])
+    {
+        int port = RenderDaemon.DEFAULT_PORT;
+        Vector<String> job = new Vector<String>();
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-port")==0 && i+1 < arguments.length)
+              port = Integer.parseInt(arguments[++i]);
+            else
+              job.addElement(arguments[i]);
+        }
+        String[] jobArguments = job.toArray(new String[job.size()]);
+
+        // (Arguments that are not valid are not sent)
+        try {
+            new TraceOptions(jobArguments);
+        } catch (IllegalArgumentException e) {
+            if (e.getMessage() != null) {
+                System.err.println(e.getMessage());
+            } else {
+                System.out.println("Usage: ");
+                System.out.println(TraceOptions.getUsage("TraceClient [-port <port>]"));
+            }
+            System.exit(1);
+        }
+
+        int status = 1;
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+
+                out.writeInt(RenderDaemon.MAGIC);
+                out.writeUTF(System.getProperty("user.dir"));
+                out.writeInt(jobArguments.length);
+                for (int a = 0; a < jobArguments.length; a++)
+                  out.writeUTF(jobArguments[a]);
+                out.flush();
+
+                status = in.readInt();
+                String message = in.readUTF();
+                if (status == 0)
+                  System.out.println(message);
+                else
+                  System.err.println(message);
+            } finally {
+                socket.close();
+            }
+        } catch (ConnectException e) {
+            System.err.println("No render daemon on port " + port +
+                               " (start one with java Trace -daemon " +
+                               port + ")");
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+
+        System.exit(status);
+    }
+}
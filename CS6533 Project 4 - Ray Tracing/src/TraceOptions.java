@@ -0,0 +1,311 @@
+/* class TraceOptions
+ * The settings of a run of Trace, read from its command line (also used
+ * by RenderDaemon, for the command lines TraceClient passes on to it)
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+
+class TraceOptions
+{
+    String inputFileName = "";
+    String outputFileName = "out.ppm";
+
+    int width  = 128;
+    int height = 128;
+    int threads = 1;
+    boolean adaptive = false;
+    int maxSamples = 16;
+    int passes = 0;
+    double snapshotSeconds = 10;
+    int snapshotPasses = 0;
+    boolean bvhCache = true;
+    Culler culler = new Culler.SphereCuller();
+    boolean mipmapping = true;
+    boolean mapped = false;
+    boolean resume = false;
+    int seed = 0;
+    boolean verbose = true;
+
+    // Animation (see FrameRenderer): first and last frame to render (one
+    // image of the first frame, unless frames is set)
+    int firstFrame = 0;
+    int lastFrame = 0;
+    boolean frames = false;
+
+    // Size of the texture cache in megabytes (negative to leave it as is)
+    double textureCache = -1;
+
+    // Distributed rendering (see Coordinator): worker processes to start,
+    // port to listen on for others (on the address of listenHost, or on
+    // this machine only if null), and how long to wait for a worker; or
+    // the coordinator to render tiles for, as a worker
+    int workerCount = 0;
+    int listenPort = 0;
+    String listenHost = null;
+    double timeout = 60;
+    String coordinatorAddress = null;
+
+    // Batch rendering (see BatchRenderer): list of scenes, or directory
+    // of them (null to render one image), and the sizes to render them
+    // at (width and height; the size given with -res if empty)
+    String batchName = null;
+    Vector<int[]> sizes = new Vector<int[]>();
+
+    // Threads shared by every scene read (null for threads of its own)
+    ForkJoinPool pool = null;
+
+    // Render daemon (see RenderDaemon): port to take jobs on (0 for no
+    // daemon), jobs run at once (or frames, with -frames) and parsed
+    // scenes kept
+    int daemonPort = 0;
+    int jobCount = 2;
+    int sceneCount = 8;
+
+    //------------------------------------------------------------------------
+
+    /** read the settings from command line arguments; arguments that are
+     *  not valid throw an IllegalArgumentException, with a message (or
+     *  none, if the usage is to be printed)
+     */
+    public TraceOptions(String arguments[])
+    {
+        if (arguments.length < 1)
+          throw new IllegalArgumentException();
+
+        try {
+            for (int i=0; i < arguments.length; i++) {
+                if (arguments[i].compareTo("-out")==0) {
+                    outputFileName = arguments[++i];
+                } else if (arguments[i].compareTo("-res")==0) {
+                    width  = Integer.parseInt(arguments[++i]);
+                    height = Integer.parseInt(arguments[++i]);
+                    if (width <= 0 || height <= 0)
+                      throw new IllegalArgumentException("Resolution must be positive");
+                } else if (arguments[i].compareTo("-threads")==0) {
+                    threads = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-aa")==0) {
+                    String mode = arguments[++i];
+                    if (mode.compareTo("adaptive")==0)
+                      adaptive = true;
+                    else if (mode.compareTo("fixed")==0)
+                      adaptive = false;
+                    else
+                      throw new IllegalArgumentException();
+                } else if (arguments[i].compareTo("-spp-max")==0) {
+                    maxSamples = Integer.parseInt(arguments[++i]);
+                    if (maxSamples < 1)
+                      throw new IllegalArgumentException("Maximum samples must be at least 1");
+                } else if (arguments[i].compareTo("-progressive")==0) {
+                    passes = Integer.parseInt(arguments[++i]);
+                    if (passes < 1)
+                      throw new IllegalArgumentException("Number of passes must be at least 1");
+                } else if (arguments[i].compareTo("-snapshot")==0) {
+                    snapshotSeconds = Double.parseDouble(arguments[++i]);
+                } else if (arguments[i].compareTo("-snapshot-passes")==0) {
+                    snapshotPasses = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-cull")==0) {
+                    culler = Culler.forName(arguments[++i]);
+                    if (culler == null)
+                      throw new IllegalArgumentException();
+                } else if (arguments[i].compareTo("-texfilter")==0) {
+                    String filter = arguments[++i];
+                    if (filter.compareTo("trilinear")==0)
+                      mipmapping = true;
+                    else if (filter.compareTo("bilinear")==0)
+                      mipmapping = false;
+                    else
+                      throw new IllegalArgumentException();
+                } else if (arguments[i].compareTo("-texcache")==0) {
+                    textureCache = Double.parseDouble(arguments[++i]);
+                } else if (arguments[i].compareTo("-mmap")==0) {
+                    mapped = true;
+                } else if (arguments[i].compareTo("-resume")==0) {
+                    mapped = true;
+                    resume = true;
+                } else if (arguments[i].compareTo("-seed")==0) {
+                    seed = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-frames")==0) {
+                    parseFrames(arguments[++i]);
+                } else if (arguments[i].compareTo("-workers")==0) {
+                    workerCount = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-listen")==0) {
+                    String address = arguments[++i];
+                    int colon = address.lastIndexOf(':');
+                    if (colon >= 0) {
+                        listenHost = address.substring(0, colon);
+                        address = address.substring(colon + 1);
+                    }
+                    listenPort = Integer.parseInt(address);
+                    if (listenPort <= 0)
+                      throw new IllegalArgumentException("-listen needs a port");
+                } else if (arguments[i].compareTo("-timeout")==0) {
+                    timeout = Double.parseDouble(arguments[++i]);
+                } else if (arguments[i].compareTo("-worker")==0) {
+                    coordinatorAddress = arguments[++i];
+                    if (coordinatorAddress.indexOf(':') < 0)
+                      throw new IllegalArgumentException();
+                } else if (arguments[i].compareTo("-batch")==0) {
+                    batchName = arguments[++i];
+                } else if (arguments[i].compareTo("-sizes")==0) {
+                    sizes = parseSizes(arguments[++i]);
+                } else if (arguments[i].compareTo("-daemon")==0) {
+                    daemonPort = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-jobs")==0) {
+                    jobCount = Integer.parseInt(arguments[++i]);
+                    if (jobCount < 1)
+                      throw new IllegalArgumentException("Number of jobs must be at least 1");
+                } else if (arguments[i].compareTo("-scenes")==0) {
+                    sceneCount = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-nocache")==0) {
+                    bvhCache = false;
+                } else if (arguments[i].compareTo("-quiet")==0) {
+                    verbose = false;
+                } else if (arguments[i].charAt(0) == '-') {
+                    throw new IllegalArgumentException();
+                } else {
+                    inputFileName = arguments[i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // An option without its value
+            throw new IllegalArgumentException();
+        }
+
+        if (adaptive && passes > 0)
+          throw new IllegalArgumentException("-aa adaptive cannot be used with -progressive");
+        if (isDistributed() && passes > 0)
+          throw new IllegalArgumentException("-workers and -listen cannot be used with -progressive");
+        if (mapped && passes > 0)
+          throw new IllegalArgumentException("-mmap and -resume cannot be used with -progressive");
+        if (mapped && RGBImage.isPFM(outputFileName))
+          throw new IllegalArgumentException("-mmap and -resume only write PPM files");
+        if (batchName != null && isDistributed())
+          throw new IllegalArgumentException("-workers and -listen cannot be used with -batch");
+        if (frames && (isDistributed() || batchName != null))
+          throw new IllegalArgumentException("-workers, -listen and -batch cannot be used with -frames");
+    }
+
+    /** frames written as a..b (or a single frame) */
+    private void parseFrames(String range)
+    {
+        int dots = range.indexOf("..");
+        try {
+            if (dots < 0) {
+                firstFrame = lastFrame = Integer.parseInt(range.trim());
+            } else {
+                firstFrame = Integer.parseInt(range.substring(0, dots).trim());
+                lastFrame = Integer.parseInt(range.substring(dots + 2).trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Frames " + range + " are not a..b");
+        }
+        if (firstFrame < 0 || lastFrame < firstFrame)
+          throw new IllegalArgumentException("Frames " + range + " are not a..b, with 0 <= a <= b");
+        frames = true;
+    }
+
+    /** sizes written as WxH, separated by commas */
+    static Vector<int[]> parseSizes(String list)
+    {
+        Vector<int[]> sizes = new Vector<int[]>();
+        StringTokenizer tokens = new StringTokenizer(list, ",");
+        while (tokens.hasMoreTokens()) {
+            String size = tokens.nextToken().trim();
+            int x = size.indexOf('x');
+            if (x < 0)
+              throw new IllegalArgumentException("Size " + size + " is not WxH");
+            int w = Integer.parseInt(size.substring(0, x));
+            int h = Integer.parseInt(size.substring(x + 1));
+            if (w < 1 || h < 1)
+              throw new IllegalArgumentException("Size " + size + " is empty");
+            sizes.addElement(new int[] { w, h });
+        }
+        return sizes;
+    }
+
+    /** true if the tiles are rendered by worker processes */
+    public boolean isDistributed()
+    {
+        return workerCount > 0 || listenPort > 0;
+    }
+
+    /** make the scene and output file names relative to a directory
+     *  (rather than the current one)
+     */
+    public void setDirectory(String directory)
+    {
+        if (!new File(inputFileName).isAbsolute())
+          inputFileName = new File(directory, inputFileName).getPath();
+        if (!new File(outputFileName).isAbsolute())
+          outputFileName = new File(directory, outputFileName).getPath();
+    }
+
+    /** give a scene the settings (before it is read) */
+    public void apply(Scene s)
+    {
+        s.setThreads(threads);
+        s.setAdaptive(adaptive);
+        s.setMaxSamples(maxSamples);
+        s.setPasses(passes);
+        s.setSnapshots(outputFileName, snapshotSeconds, snapshotPasses);
+        s.setBVHCache(bvhCache);
+        s.setCuller(culler);
+        s.setMipmapping(mipmapping);
+        s.setSeed(seed);
+        s.setFrame(firstFrame);
+        s.setOutputFile(mapped ? outputFileName : null, resume);
+        if (pool != null)
+          s.setPool(pool);
+    }
+
+    /** read a scene file and set the scene up, with these settings (the
+     *  files it names are relative to directory, or to the current one if
+     *  null); one scene is read at a time, as the parser keeps the scene
+     *  it reads in a static field
+     */
+    public Scene readScene(String fileName, String directory)
+        throws ParseException, IOException, NoSuchMethodException,
+        ClassNotFoundException, IllegalAccessException,
+        InvocationTargetException, NoSuchFieldException,
+        InstantiationException
+    {
+        synchronized (TraceOptions.class) {
+            Scene s = new Scene();
+            apply(s);
+
+            SceneFiles.setDirectory(directory);
+            SceneFiles.clearNames();
+            try {
+                Parser p = new Parser(s);
+                p.readFile(fileName);
+                s.setup();
+                s.setUsedFiles(SceneFiles.getPaths());
+            } finally {
+                SceneFiles.setDirectory(null);
+            }
+            return s;
+        }
+    }
+
+    /** how to run a program taking these arguments (after its own) */
+    public static String getUsage(String program)
+    {
+        return "java " + program + " <fileName> [-res <width height>] "+
+            " [-out <outputFileName>] [-threads <n>]"+
+            " [-aa <fixed|adaptive>]"+
+            " [-spp-max <n>] [-progressive <passes>]"+
+            " [-snapshot <seconds>] [-snapshot-passes <n>]"+
+            " [-cull <none|sphere|box>]"+
+            " [-texfilter <trilinear|bilinear>]"+
+            " [-texcache <megabytes>] [-mmap] [-resume]"+
+            " [-seed <n>] [-frames <a..b>] [-jobs <n>]"+
+            " [-workers <n>] [-listen <[host:]port>]"+
+            " [-timeout <seconds>] [-worker <host:port>]"+
+            " [-batch <listfile|directory>] [-sizes <WxH,...>]"+
+            " [-daemon <port>] [-scenes <n>]"+
+            " [-nocache] [-quiet] ";
+    }
+}
@@ -0,0 +1,413 @@
+/* class TriangleMesh
+ * Triangle geometry read from a Wavefront OBJ file.  The triangles are
+ * kept in flat arrays, with a bounding volume hierarchy over them.
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class TriangleMesh
+{
+    // File the mesh was read from
+    String fileName;
+
+    // Vertex data: 3 values (x,y,z) per position and normal, 2 (u,v) per
+    // texture coordinate (texCoords is null if the file has none)
+    double[] positions;
+    double[] normals;
+    double[] texCoords;
+
+    // 3 indices per triangle into positions, normals and texCoords
+    int[] triangles;
+    int[] triangleNormals;
+    int[] triangleTexCoords;
+    int   triangleCount = 0;
+
+    // Hierarchy over the triangles, and the bounds of all of them
+    BVH tree;
+    BoundingBox bounds = new BoundingBox();
+
+    // Query of each thread, reused for every ray
+    PerThread<TriangleQuery> queries = new PerThread<TriangleQuery>() {
+        protected TriangleQuery initialValue() {
+            return new TriangleQuery();
+        }
+    };
+
+    //------------------------------------------------------------------------
+
+    /** read a mesh from an OBJ file (polygons are split into triangles) */
+    public TriangleMesh(String newFileName)
+        throws IOException
+    {
+        fileName = newFileName;
+
+        read(fileName);
+
+        // Smooth vertex normals if the file did not specify any
+        if (normals == null)
+          computeNormals();
+
+        // Build the hierarchy over the triangles
+        BoundingBox[] triangleBounds = new BoundingBox[triangleCount];
+        for (int i = 0; i < triangleCount; i++) {
+            triangleBounds[i] = new BoundingBox();
+            for (int k = 0; k < 3; k++) {
+                int p = 3*triangles[3*i + k];
+                triangleBounds[i].extend(positions[p], positions[p+1],
+                                         positions[p+2]);
+            }
+            bounds.extend(triangleBounds[i]);
+        }
+
+        tree = new BVH(triangleBounds);
+    }
+
+    //------------------------------------------------------------------------
+
+    // accessors
+    public String      getFileName()      { return fileName; }
+    public int         getTriangleCount() { return triangleCount; }
+    public BoundingBox getBounds()        { return bounds; }
+
+    //------------------------------------------------------------------------
+    // OBJ file input
+
+    /** read the v, vn, vt and f lines of an OBJ file (the rest is ignored) */
+    private void read(String name)
+        throws IOException
+    {
+        DoubleList p = new DoubleList(), n = new DoubleList();
+        DoubleList uv = new DoubleList();
+        IntList tp = new IntList(), tn = new IntList(), tuv = new IntList();
+        boolean faceNormals = true, faceTexCoords = true;
+
+        BufferedReader in = new BufferedReader(new FileReader(name));
+        int[] face = new int[3*16];
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                StringTokenizer tok = new StringTokenizer(line);
+                if (!tok.hasMoreTokens())
+                  continue;
+
+                String type = tok.nextToken();
+                if (type.equals("v")) {
+                    p.add(Double.parseDouble(tok.nextToken()));
+                    p.add(Double.parseDouble(tok.nextToken()));
+                    p.add(Double.parseDouble(tok.nextToken()));
+                } else if (type.equals("vn")) {
+                    n.add(Double.parseDouble(tok.nextToken()));
+                    n.add(Double.parseDouble(tok.nextToken()));
+                    n.add(Double.parseDouble(tok.nextToken()));
+                } else if (type.equals("vt")) {
+                    uv.add(Double.parseDouble(tok.nextToken()));
+                    uv.add(Double.parseDouble(tok.nextToken()));
+                } else if (type.equals("f")) {
+                    // Each corner is v, v/vt, v//vn or v/vt/vn (1-based,
+                    // or negative to count back from the last one)
+                    int corners = 0;
+                    while (tok.hasMoreTokens()) {
+                        if (3*corners == face.length)
+                          face = Arrays.copyOf(face, 2*face.length);
+
+                        String c = tok.nextToken();
+                        int s1 = c.indexOf('/');
+                        int s2 = s1 < 0 ? -1 : c.indexOf('/', s1 + 1);
+
+                        face[3*corners] = index(s1 < 0 ? c : c.substring(0, s1),
+                                                p.size() / 3);
+                        face[3*corners+1] = s1 < 0 || s1 + 1 == s2 ||
+                            s1 + 1 == c.length() ? -1 :
+                            index(c.substring(s1 + 1, s2 < 0 ? c.length() : s2),
+                                  uv.size() / 2);
+                        face[3*corners+2] = s2 < 0 ? -1 :
+                            index(c.substring(s2 + 1), n.size() / 3);
+                        corners++;
+                    }
+
+                    // Split the polygon into a fan of triangles
+                    for (int k = 1; k + 1 < corners; k++) {
+                        int[] corner = { 0, k, k + 1 };
+                        for (int m = 0; m < 3; m++) {
+                            tp.add(face[3*corner[m]]);
+                            tuv.add(face[3*corner[m]+1]);
+                            tn.add(face[3*corner[m]+2]);
+                            faceTexCoords &= face[3*corner[m]+1] >= 0;
+                            faceNormals   &= face[3*corner[m]+2] >= 0;
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad number in " + name);
+        } catch (NoSuchElementException e) {
+            throw new IOException("Incomplete line in " + name);
+        } finally {
+            in.close();
+        }
+
+        positions = p.toArray();
+        triangles = tp.toArray();
+        triangleCount = triangles.length / 3;
+
+        for (int i = 0; i < triangles.length; i++)
+          if (triangles[i] < 0 || 3*triangles[i] >= positions.length)
+            throw new IOException("Bad vertex index in " + name);
+
+        // Use normals and texture coordinates only if every corner has one
+        if (faceNormals && n.size() > 0) {
+            normals = n.toArray();
+            triangleNormals = tn.toArray();
+            for (int i = 0; i < triangleNormals.length; i++)
+              if (3*triangleNormals[i] >= normals.length)
+                throw new IOException("Bad normal index in " + name);
+        }
+        if (faceTexCoords && uv.size() > 0) {
+            texCoords = uv.toArray();
+            triangleTexCoords = tuv.toArray();
+            for (int i = 0; i < triangleTexCoords.length; i++)
+              if (2*triangleTexCoords[i] >= texCoords.length)
+                throw new IOException("Bad texture index in " + name);
+        }
+    }
+
+    /** convert an OBJ index (1-based, or negative relative to count) */
+    private static int index(String s, int count)
+    {
+        int i = Integer.parseInt(s);
+        return i < 0 ? count + i : i - 1;
+    }
+
+    /** set vertex normals to the area-weighted average of the normals of
+     *  the triangles around each vertex
+     */
+    private void computeNormals()
+    {
+        normals = new double[positions.length];
+        triangleNormals = triangles;
+
+        Vector3d e1 = new Vector3d(), e2 = new Vector3d();
+        Vector3d n = new Vector3d();
+        for (int i = 0; i < triangleCount; i++) {
+            int a = 3*triangles[3*i], b = 3*triangles[3*i+1];
+            int c = 3*triangles[3*i+2];
+
+            e1.set(positions[b] - positions[a], positions[b+1] - positions[a+1],
+                   positions[b+2] - positions[a+2]);
+            e2.set(positions[c] - positions[a], positions[c+1] - positions[a+1],
+                   positions[c+2] - positions[a+2]);
+            n.cross(e1, e2);
+
+            for (int k = 0; k < 3; k++) {
+                int v = 3*triangles[3*i + k];
+                normals[v]   += n.x;
+                normals[v+1] += n.y;
+                normals[v+2] += n.z;
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Ray intersection
+
+    /** computes the closest intersection of ray r with the triangles
+     *  beyond minT (see Shape.hit())
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+        TriangleQuery query = queries.get();
+        query.start(r, minT);
+
+        tree.traverse(r, Double.MAX_VALUE, query, query.stack);
+        if (query.triangle < 0)
+          return false;
+
+        intersection.t = query.t;
+
+        if (all)
+          fillIntersection(r, query, intersection);
+
+        return true;
+    }
+
+    /** compute hit point, normal, texture coordinates and surface
+     *  derivatives of the hit found by a query
+     */
+    private void fillIntersection(Ray r, TriangleQuery query,
+                                  ISect intersection)
+    {
+        int tri = 3*query.triangle;
+        int a = 3*triangles[tri], b = 3*triangles[tri+1];
+        int c = 3*triangles[tri+2];
+        double wa = query.wa, wb = query.wb, wc = query.wc;
+
+        Point3d ipoint = intersection.getHitPoint();
+        ipoint.scaleAdd(query.t, r.getDirection(), r.getPoint());
+
+        // Interpolated normal (the geometric normal if they cancel out)
+        int na = 3*triangleNormals[tri], nb = 3*triangleNormals[tri+1];
+        int nc = 3*triangleNormals[tri+2];
+        Vector3d inorm = intersection.getNormal();
+        inorm.set(wa*normals[na]   + wb*normals[nb]   + wc*normals[nc],
+                  wa*normals[na+1] + wb*normals[nb+1] + wc*normals[nc+1],
+                  wa*normals[na+2] + wb*normals[nb+2] + wc*normals[nc+2]);
+
+        Vector3d dPdU = intersection.getDpDu(), dPdV = intersection.getDpDv();
+        dPdU.set(positions[b] - positions[a], positions[b+1] - positions[a+1],
+                 positions[b+2] - positions[a+2]);
+        dPdV.set(positions[c] - positions[a], positions[c+1] - positions[a+1],
+                 positions[c+2] - positions[a+2]);
+
+        if (inorm.lengthSquared() == 0)
+          inorm.cross(dPdU, dPdV);
+        inorm.normalize();
+        dPdU.normalize();
+        dPdV.normalize();
+
+        // Texture coordinates (the barycentric coordinates if there are none)
+        if (texCoords != null) {
+            int ta = 2*triangleTexCoords[tri], tb = 2*triangleTexCoords[tri+1];
+            int tc = 2*triangleTexCoords[tri+2];
+            intersection.setU(wa*texCoords[ta] + wb*texCoords[tb] +
+                              wc*texCoords[tc]);
+            intersection.setV(wa*texCoords[ta+1] + wb*texCoords[tb+1] +
+                              wc*texCoords[tc+1]);
+        } else {
+            intersection.setU(wb);
+            intersection.setV(wc);
+        }
+    }
+
+    /** finds the closest triangle along a ray, using the watertight
+     *  ray-triangle test of Woop, Benthin and Wald (JCGT 2013): triangles
+     *  are sheared into a space where the ray is the +z axis, so rays
+     *  cannot slip through the edge shared by two triangles
+     */
+    private class TriangleQuery implements BVH.Visitor
+    {
+        double ox, oy, oz;
+        int kx, ky, kz;
+        double sx, sy, sz;
+        double minT;
+
+        // Closest hit: triangle (-1 if none), t and barycentric weights
+        int triangle = -1;
+        double t, wa, wb, wc;
+
+        // Traversal stack
+        int[] stack = tree.newStack();
+
+        /** set up the query for ray r */
+        void start(Ray r, double newMinT)
+        {
+            triangle = -1;
+
+            Point3d o = r.getPoint();
+            Vector3d d = r.getDirection();
+            ox = o.x;
+            oy = o.y;
+            oz = o.z;
+            minT = newMinT;
+
+            // z is the axis along which the direction is largest
+            double ax = Math.abs(d.x), ay = Math.abs(d.y), az = Math.abs(d.z);
+            kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+            kx = (kz + 1) % 3;
+            ky = (kx + 1) % 3;
+
+            double dx = component(d, kx), dy = component(d, ky);
+            double dz = component(d, kz);
+            sz = 1.0 / dz;
+            sx = dx * sz;
+            sy = dy * sz;
+        }
+
+        public double visit(int primitive, double tMax)
+        {
+            int a = 3*triangles[3*primitive], b = 3*triangles[3*primitive+1];
+            int c = 3*triangles[3*primitive+2];
+
+            // Vertices relative to the ray origin, in the ray's axis order
+            double az = positions[a+kz] - origin(kz);
+            double bz = positions[b+kz] - origin(kz);
+            double cz = positions[c+kz] - origin(kz);
+            double ax = positions[a+kx] - origin(kx) - sx*az;
+            double ay = positions[a+ky] - origin(ky) - sy*az;
+            double bx = positions[b+kx] - origin(kx) - sx*bz;
+            double by = positions[b+ky] - origin(ky) - sy*bz;
+            double cx = positions[c+kx] - origin(kx) - sx*cz;
+            double cy = positions[c+ky] - origin(ky) - sy*cz;
+
+            // Edge functions (scaled barycentric coordinates)
+            double u = cx*by - cy*bx;
+            double v = ax*cy - ay*cx;
+            double w = bx*ay - by*ax;
+            if ((u < 0 || v < 0 || w < 0) && (u > 0 || v > 0 || w > 0))
+              return tMax;
+
+            double det = u + v + w;
+            if (det == 0)
+              return tMax;
+
+            double hitT = (u*az + v*bz + w*cz) * sz / det;
+            if (!(hitT > minT && hitT < tMax))
+              return tMax;
+
+            triangle = primitive;
+            t  = hitT;
+            wa = u / det;
+            wb = v / det;
+            wc = w / det;
+
+            return hitT;
+        }
+
+        private double origin(int axis)
+        {
+            return axis == 0 ? ox : (axis == 1 ? oy : oz);
+        }
+    }
+
+    private static double component(Tuple3d v, int axis)
+    {
+        return axis == 0 ? v.x : (axis == 1 ? v.y : v.z);
+    }
+
+    //------------------------------------------------------------------------
+
+    /** growable list of doubles (used while reading) */
+    private static class DoubleList
+    {
+        double[] data = new double[1024];
+        int size = 0;
+
+        void add(double value)
+        {
+            if (size == data.length)
+              data = Arrays.copyOf(data, 2*size);
+            data[size++] = value;
+        }
+
+        int size() { return size; }
+        double[] toArray() { return Arrays.copyOf(data, size); }
+    }
+
+    /** growable list of ints (used while reading) */
+    private static class IntList
+    {
+        int[] data = new int[1024];
+        int size = 0;
+
+        void add(int value)
+        {
+            if (size == data.length)
+              data = Arrays.copyOf(data, 2*size);
+            data[size++] = value;
+        }
+
+        int size() { return size; }
+        int[] toArray() { return Arrays.copyOf(data, size); }
+    }
+}
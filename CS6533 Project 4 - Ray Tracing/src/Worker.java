@@ -0,0 +1,138 @@
+/* class Worker
+ * Renders tiles for a Coordinator: connects to it, reads the scene file
+ * and the files it refers to (into a temporary directory, deleted at
+ * the end), then renders the tiles it is sent and sends back their
+ * pixels, until it is told to stop.
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.util.*;
+
+class Worker
+{
+    /** render for the coordinator at host:port, on threads threads */
+    public static void run(String host, int port, int threads)
+        throws ParseException, IOException, NoSuchMethodException,
+        ClassNotFoundException, IllegalAccessException,
+        InvocationTargetException, NoSuchFieldException,
+        InstantiationException
+    {
+        Socket socket = new Socket(host, port);
+        File directory = Files.createTempDirectory("worker").toFile();
+
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+
+            out.writeInt(Coordinator.MAGIC);
+            out.writeInt(threads);
+            out.flush();
+
+            Scene scene = readJob(in, directory, threads);
+            Vector<Tile> tiles = Tile.split(scene.width, scene.height,
+                                            scene.getTileSize());
+
+            // Render each batch of tiles, and send them back
+            int count;
+            while ((count = in.readInt()) > 0) {
+                Vector<Tile> batch = new Vector<Tile>();
+                for (int t = 0; t < count; t++) {
+                    int index = in.readInt();
+                    if (index < 0 || index >= tiles.size())
+                      throw new IOException("No tile " + index);
+                    batch.addElement(tiles.elementAt(index));
+                }
+
+                scene.renderTiles(batch, batch.size(), false);
+
+                for (int t = 0; t < batch.size(); t++)
+                  writeTile(out, scene.getImage(), batch.elementAt(t));
+                out.flush();
+            }
+        } finally {
+            socket.close();
+
+            File[] files = directory.listFiles();
+            for (int f = 0; files != null && f < files.length; f++)
+              files[f].delete();
+            directory.delete();
+        }
+    }
+
+    /** read the scene file, the files it refers to and the settings, and
+     *  set the scene up to render tiles
+     */
+    private static Scene readJob(DataInputStream in, File directory,
+                                 int threads)
+        throws ParseException, IOException, NoSuchMethodException,
+        ClassNotFoundException, IllegalAccessException,
+        InvocationTargetException, NoSuchFieldException,
+        InstantiationException
+    {
+        File sceneFile = new File(directory, new File(in.readUTF()).getName());
+        readFile(in, sceneFile);
+
+        // Copies of the files, under numbers (the names in the scene
+        // are looked up through SceneFiles)
+        int fileCount = in.readInt();
+        for (int f = 0; f < fileCount; f++) {
+            String name = in.readUTF();
+            File copy = new File(directory, "file" + f + "-" +
+                                 new File(name).getName());
+            readFile(in, copy);
+            SceneFiles.setCopy(name, copy.getPath());
+        }
+
+        int width  = in.readInt();
+        int height = in.readInt();
+
+        Scene scene = new Scene();
+        scene.setThreads(threads);
+        scene.setBVHCache(false);
+        scene.setTileSize(in.readInt());
+        scene.setAdaptive(in.readBoolean());
+        scene.setMaxSamples(in.readInt());
+        scene.setCuller(Culler.forName(in.readUTF()));
+        scene.setMipmapping(in.readBoolean());
+        scene.setSeed(in.readInt());
+
+        Parser p = new Parser(scene);
+        p.readFile(sceneFile.getPath());
+        scene.setup();
+
+        scene.setupImage(width, height);
+        scene.setImage(new RGBImage(width, height));
+        return scene;
+    }
+
+    private static void readFile(DataInputStream in, File file)
+        throws IOException
+    {
+        byte[] contents = new byte[in.readInt()];
+        in.readFully(contents);
+        Files.write(file.toPath(), contents);
+    }
+
+    /** send the pixels of a tile (its index, then 3 floats per pixel, row
+     *  by row along the tile from its row y0)
+     */
+    private static void writeTile(DataOutputStream out, RGBImage image,
+                                  Tile tile)
+        throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * 3 * tile.getPixelCount());
+        FloatBuffer values = bytes.asFloatBuffer();
+        for (int j = tile.y0; j < tile.y1; j++)
+          values.put(image.data, 3 * (j * image.getWidth() + tile.x0),
+                     3 * tile.getWidth());
+
+        out.writeInt(tile.getIndex());
+        out.write(bytes.array());
+    }
+}